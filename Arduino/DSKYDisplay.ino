@@ -10,6 +10,10 @@
  *
  * Mods:     07/04/22  Initial Release.
  *           07/16/22  Performance improvements.
+ *           10/16/26  Binary framed protocol (v2).
+ *           10/16/26  Baud rate negotiation.
+ *           10/16/26  Flash the verb/noun locally.
+ *           10/16/26  Keep the verb/noun digits in the order they are drawn.
  */
 #include <SPI.h>
 #include "Adafruit_GFX.h"
@@ -131,6 +135,21 @@
 #define R3S_PLUS  30
 #define R3S_MINUS 31
 
+// Binary framed protocol: SYNC, command, value high byte, value low byte, checksum.
+#define FRAME_SYNC 0xA5
+#define FRAME_SIZE 5
+
+// Baud rate negotiation.
+#define DEFAULT_BAUD_RATE 9600
+#define SET_BAUD_COMMAND 6
+#define ECHO_COMMAND 7
+#define COMMIT_COMMAND 8
+#define BAUD_TIMEOUT 500
+
+// Local flashing of the verb and noun, each phase lasts the interval (ms).
+#define FLASH_MODE_COMMAND 9
+#define FLASH_INTERVAL 320
+
 // Use hardware SPI (on Uno, #13, #12, #11) and the above for CS/DC
 Adafruit_HX8357 tft = Adafruit_HX8357(TFT_CS, TFT_DC, TFT_RST);
 
@@ -146,11 +165,19 @@ int vd2 = 0;
 int nd1 = 0;
 int nd2 = 0;
 
+bool flashMode = false;
+bool verbNounShown = true;
+unsigned long flashTime = 0;
+
+byte frame[FRAME_SIZE];
+byte frameIndex = 0;
+unsigned long baudRate = DEFAULT_BAUD_RATE;
+
 void setup() 
 {
   String commandString;
   
-  Serial.begin(9600);
+  Serial.begin(DEFAULT_BAUD_RATE);
 
   // Set up LCD
   tft.begin();
@@ -174,7 +201,7 @@ void setup()
 
     if (commandString.length() > 0 && commandString.equals("2"))
     {
-      Serial.println("Display");
+      Serial.println("Display V2");
       initialized = true;
     }
     commandString = "";
@@ -183,9 +210,13 @@ void setup()
 
 /*
  * This is the main Arduino loop that runs continuously.  It waits for a command from the 
- * Raspberry Pi, then executes the command before waiting for the next command.  Each 
- * command is followed by a number representing the 15-bit channel value.  The COMP ACTY 
- * is followed by 0 = off or 1 = on.  
+ * Raspberry Pi, then executes the command before waiting for the next command.  Commands
+ * arrive as five byte frames: 0xA5, the command, the value high byte, the value low byte
+ * and a checksum that is the one's complement of the sum of the command and value bytes.
+ * Bytes are collected as they arrive and a frame with a bad checksum is discarded.  The
+ * display command value is the 15-bit channel value.  The COMP ACTY and Flash Verb/Noun
+ * values are 0 = off or 1 = on.  Flash Mode 1 blinks the verb and noun here, without the
+ * Raspberry Pi sending every on and off.
  * The commands are:
  * 
  * 0  = Noop
@@ -194,245 +225,330 @@ void setup()
  * 3  = Display Command
  * 4 = COMP ACTY
  * 5 = Flash Verb/Noun
+ * 6 = Set Baud, value = rate / 100
+ * 7 = Echo, only during a baud change
+ * 8 = Commit, only during a baud change
+ * 9 = Flash Mode
  */
 void loop() 
 {
-  String commandString;
-  
-  // Read the next command sequence.
-  while (Serial.available()) 
+  if (readFrame())
   {
-    delay(2);  // Delay 2 milliseconds to allow byte to arrive in input buffer
-    char c = Serial.read();  // Gets one byte from serial buffer
-    
-    if (c != '\n')  
-      commandString += c; 
+    executeCommand(frame[1], ((unsigned int)frame[2] << 8) | frame[3]);
   }
+  flashVerbNoun();
+}
 
-  // If there is a command string to parse...
-  if (commandString.length() > 0) 
+/*
+ * Blink the verb and noun while in flash mode.
+ */
+void flashVerbNoun()
+{
+  if (flashMode && millis() - flashTime >= FLASH_INTERVAL)
   {
-    String command = commandString;
-    String data = "";
-    String delim = " ";
-    int number;
-    byte dspl;
-    byte dsph;
-    byte rlwd;
-    bool signValue = false;
+    flashTime = millis();
+    showVerbNoun(!verbNounShown);
+  }
+}
 
-    // Parse the command string.
-    if (commandString != "0" && commandString != "1" && commandString != "2")
-    {
-      int firstDelimIndex = commandString.indexOf(delim);
-      command = commandString.substring(0, firstDelimIndex);
-      data = commandString.substring(firstDelimIndex + 1);
-      int intValue = data.toInt();
-      Serial.println(intValue);
-      rlwd = (intValue >> 11) & 0x000F;
-      dspl = intValue & 0x001F;
-      dsph = (intValue >> 5) & 0x001F;
-      signValue = (intValue >> 10) & 0x0001;
-     }
-    
-    // Process the Reset command.
-    if (command == "1")
+/*
+ * Show or blank the verb and noun digits.
+ */
+void showVerbNoun(bool shown)
+{
+  verbNounShown = shown;
+  if (shown)
+  {
+    displayCharacter(vd1, VD1_COL, VD1_ROW);
+    displayCharacter(vd2, VD2_COL, VD2_ROW);
+    displayCharacter(nd1, ND1_COL, ND1_ROW);
+    displayCharacter(nd2, ND2_COL, ND2_ROW);
+  }
+  else
+  {
+    displayCharacter(0, VD1_COL, VD1_ROW);
+    displayCharacter(0, VD2_COL, VD2_ROW);
+    displayCharacter(0, ND1_COL, ND1_ROW);
+    displayCharacter(0, ND2_COL, ND2_ROW);
+  }
+}
+
+/*
+ * Collect the bytes that have arrived into the frame buffer.  Returns true once a complete
+ * frame with a good checksum has been received.  A frame with a bad checksum is dropped and
+ * the search for the next sync byte starts again.
+ */
+bool readFrame()
+{
+  while (Serial.available() > 0) 
+  {
+    byte b = Serial.read();
+
+    // Hunt for the start of a frame.
+    if (frameIndex == 0 && b != FRAME_SYNC)
+      continue;
+
+    frame[frameIndex++] = b;
+    if (frameIndex == FRAME_SIZE)
     {
-      resetDisplay();
+      frameIndex = 0;
+      byte checksum = ~(frame[1] + frame[2] + frame[3]);
+      if (checksum == frame[4])
+        return true;
     }
+  }
+  return false;
+}
+
+/*
+ * Switch to a new baud rate and echo the test frames sent by the Raspberry Pi.  The new rate
+ * is kept once a COMMIT frame arrives.  If none arrives in time the old rate is restored.
+ */
+void changeBaudRate(unsigned long newRate)
+{
+  Serial.flush();
+  Serial.end();
+  Serial.begin(newRate);
+  frameIndex = 0;
 
-    // Process the MD1/MD2 command.
-    else if (command == "3")
+  unsigned long start = millis();
+  while (millis() - start < BAUD_TIMEOUT)
+  {
+    if (readFrame() && (frame[1] == ECHO_COMMAND || frame[1] == COMMIT_COMMAND))
     {
-      if (rlwd == 11)
+      Serial.write(frame, FRAME_SIZE);
+      if (frame[1] == COMMIT_COMMAND)
       {
-        displayCharacter(dsph, MD1_COL, MD1_ROW);
-        displayCharacter(dspl, MD2_COL, MD2_ROW);
+        baudRate = newRate;
+        return;
       }
-      else if (rlwd == 10)
-      {
-        vd1 = dspl;
-        vd2 = dsph;
-        displayCharacter(dsph, VD1_COL, VD1_ROW);
-        displayCharacter(dspl, VD2_COL, VD2_ROW);
-      }
-      else if (rlwd == 9)
-      {
-        nd1 = dspl;
-        nd2 = dsph;
-        displayCharacter(dsph, ND1_COL, ND1_ROW);
-        displayCharacter(dspl, ND2_COL, ND2_ROW);
-      }
-      else if (rlwd == 8)
+    }
+  }
+
+  Serial.end();
+  Serial.begin(baudRate);
+  frameIndex = 0;
+}
+
+/*
+ * Execute one command received from the Raspberry Pi.
+ */
+void executeCommand(byte command, unsigned int value)
+{
+  // Process the Reset command.
+  if (command == 1)
+  {
+    flashMode = false;
+    verbNounShown = true;
+    resetDisplay();
+  }
+
+  // Process the Display command.
+  else if (command == 3)
+  {
+    displayRelayWord(value);
+  }
+
+  // Process the COMP ACTY command.
+  else if (command == 4)
+  {
+    displayCompActy(value != 0);
+  }
+
+  // Process Flash Verb/Noun command.
+  else if (command == 5)
+  {
+    showVerbNoun(value != 0);
+  }
+
+  // Process the Flash Mode command.
+  else if (command == FLASH_MODE_COMMAND)
+  {
+    flashMode = value != 0;
+    flashTime = millis();
+    if (!flashMode)
+    {
+      showVerbNoun(true);
+    }
+  }
+
+  // Process the Set Baud command.
+  else if (command == SET_BAUD_COMMAND)
+  {
+    changeBaudRate((unsigned long)value * 100);
+  }
+}
+
+/*
+ * Display the pair of digits and sign addressed by a channel 10 value.  The format of the
+ * value is xRRR RSHH HHHL LLLL where L = DSPL, H = DSPH, S = sign bit and R = relay word.
+ */
+void displayRelayWord(unsigned int value)
+{
+  byte rlwd = (value >> 11) & 0x000F;
+  byte dspl = value & 0x001F;
+  byte dsph = (value >> 5) & 0x001F;
+  bool signValue = (value >> 10) & 0x0001;
+
+  if (rlwd == 11)
+  {
+    displayCharacter(dsph, MD1_COL, MD1_ROW);
+    displayCharacter(dspl, MD2_COL, MD2_ROW);
+  }
+  else if (rlwd == 10)
+  {
+    vd1 = dsph;
+    vd2 = dspl;
+    if (verbNounShown)
+    {
+      displayCharacter(dsph, VD1_COL, VD1_ROW);
+      displayCharacter(dspl, VD2_COL, VD2_ROW);
+    }
+  }
+  else if (rlwd == 9)
+  {
+    nd1 = dsph;
+    nd2 = dspl;
+    if (verbNounShown)
+    {
+      displayCharacter(dsph, ND1_COL, ND1_ROW);
+      displayCharacter(dspl, ND2_COL, ND2_ROW);
+    }
+  }
+  else if (rlwd == 8)
+  {
+    displayCharacter(dspl, R1D1_COL, R1D1_ROW);
+  }
+  else if (rlwd == 7)
+  {
+    if (signValue)
+    {
+      r1sPlus = true;
+      if (!r1sMinus)
       {
-        displayCharacter(dspl, R1D1_COL, R1D1_ROW);
+        displayPlus(R1S_COL, R1S_ROW);
       }
-      else if (rlwd == 7)
+    }
+    else
+    {
+      r1sPlus = false;
+      if (!r1sMinus)
       {
-        if (signValue)
-        {
-          r1sPlus = true;
-          if (!r1sMinus)
-          {
-            displayPlus(R1S_COL, R1S_ROW);
-          }
-        }
-        else
-        {
-          r1sPlus = false;
-          if (!r1sMinus)
-          {
-            displayBlank(R1S_COL, R1S_ROW);
-          }
-        }
-        displayCharacter(dsph, R1D2_COL, R1D2_ROW);
-        displayCharacter(dspl, R1D3_COL, R1D3_ROW);
+        displayBlank(R1S_COL, R1S_ROW);
       }
-      else if (rlwd == 6)
+    }
+    displayCharacter(dsph, R1D2_COL, R1D2_ROW);
+    displayCharacter(dspl, R1D3_COL, R1D3_ROW);
+  }
+  else if (rlwd == 6)
+  {
+    if (signValue)
+    {
+      r1sMinus = true;
+      if (!r1sPlus)
       {
-        if (signValue)
-        {
-          r1sMinus = true;
-          if (!r1sPlus)
-          {
-            displayMinus(R1S_COL, R1S_ROW);
-          }
-        }
-        else
-        {
-          r1sMinus = false;
-          if (!r1sPlus)
-          {
-            displayBlank(R1S_COL, R1S_ROW);
-          }
-        }
-        displayCharacter(dsph, R1D4_COL, R1D4_ROW);
-        displayCharacter(dspl, R1D5_COL, R1D5_ROW);
+        displayMinus(R1S_COL, R1S_ROW);
       }
-      else if (rlwd == 5)
+    }
+    else
+    {
+      r1sMinus = false;
+      if (!r1sPlus)
       {
-        if (signValue)
-        {
-          r2sPlus = true;
-          if (!r2sMinus)
-          {
-            displayPlus(R2S_COL, R2S_ROW);
-          }
-        }
-        else
-        {
-          r2sPlus = false;
-          if (!r2sMinus)
-          {
-            displayBlank(R2S_COL, R2S_ROW);
-          }
-        }
-        displayCharacter(dsph, R2D1_COL, R2D1_ROW);
-        displayCharacter(dspl, R2D2_COL, R2D2_ROW);
+        displayBlank(R1S_COL, R1S_ROW);
       }
-      else if (rlwd == 4)
+    }
+    displayCharacter(dsph, R1D4_COL, R1D4_ROW);
+    displayCharacter(dspl, R1D5_COL, R1D5_ROW);
+  }
+  else if (rlwd == 5)
+  {
+    if (signValue)
+    {
+      r2sPlus = true;
+      if (!r2sMinus)
       {
-        if (signValue)
-        {
-          r2sMinus = true;
-          if (!r2sPlus)
-          {
-            displayMinus(R2S_COL, R2S_ROW);
-          }
-        }
-        else
-        {
-          r2sMinus = false;
-          if (!r2sPlus)
-          {
-            displayBlank(R2S_COL, R2S_ROW);
-          }
-        }
-        displayCharacter(dsph, R2D3_COL, R2D3_ROW);
-        displayCharacter(dspl, R2D4_COL, R2D4_ROW);
+        displayPlus(R2S_COL, R2S_ROW);
       }
-      else if (rlwd == 3)
+    }
+    else
+    {
+      r2sPlus = false;
+      if (!r2sMinus)
       {
-        displayCharacter(dsph, R2D5_COL, R2D5_ROW);
-        displayCharacter(dspl, R3D1_COL, R3D1_ROW);
+        displayBlank(R2S_COL, R2S_ROW);
       }
-      else if (rlwd == 2)
+    }
+    displayCharacter(dsph, R2D1_COL, R2D1_ROW);
+    displayCharacter(dspl, R2D2_COL, R2D2_ROW);
+  }
+  else if (rlwd == 4)
+  {
+    if (signValue)
+    {
+      r2sMinus = true;
+      if (!r2sPlus)
       {
-        if (signValue)
-        {
-          r3sPlus = true;
-          if (!r3sMinus)
-          {
-            displayPlus(R3S_COL, R3S_ROW);
-          }
-        }
-        else
-        {
-          r3sPlus = false;
-          if (!r3sMinus)
-          {
-            displayBlank(R3S_COL, R3S_ROW);
-          }
-        }
-        displayCharacter(dsph, R3D2_COL, R3D2_ROW);
-        displayCharacter(dspl, R3D3_COL, R3D3_ROW);
+        displayMinus(R2S_COL, R2S_ROW);
       }
-      else if (rlwd == 1)
+    }
+    else
+    {
+      r2sMinus = false;
+      if (!r2sPlus)
       {
-        if (signValue)
-        {
-          r3sMinus = true;
-          if (!r3sPlus)
-          {
-            displayMinus(R3S_COL, R3S_ROW);
-          }
-        }
-        else
-        {
-          r3sMinus = false;
-          if (!r3sPlus)
-          {
-            displayBlank(R3S_COL, R3S_ROW);
-          }
-        }
-        displayCharacter(dsph, R3D4_COL, R3D4_ROW);
-        displayCharacter(dspl, R3D5_COL, R3D5_ROW);
+        displayBlank(R2S_COL, R2S_ROW);
       }
     }
-
-    // Process the COMP ACTY command.
-    else if (command == "4")
+    displayCharacter(dsph, R2D3_COL, R2D3_ROW);
+    displayCharacter(dspl, R2D4_COL, R2D4_ROW);
+  }
+  else if (rlwd == 3)
+  {
+    displayCharacter(dsph, R2D5_COL, R2D5_ROW);
+    displayCharacter(dspl, R3D1_COL, R3D1_ROW);
+  }
+  else if (rlwd == 2)
+  {
+    if (signValue)
     {
-      if (data == "0")
+      r3sPlus = true;
+      if (!r3sMinus)
       {
-        displayCompActy(false);
+        displayPlus(R3S_COL, R3S_ROW);
       }
-      else
+    }
+    else
+    {
+      r3sPlus = false;
+      if (!r3sMinus)
       {
-        displayCompActy(true);
+        displayBlank(R3S_COL, R3S_ROW);
       }
     }
-
-    // Process Flash Verb/Noun command.
-    else if (command = "5")
+    displayCharacter(dsph, R3D2_COL, R3D2_ROW);
+    displayCharacter(dspl, R3D3_COL, R3D3_ROW);
+  }
+  else if (rlwd == 1)
+  {
+    if (signValue)
     {
-      if (data == "0")
+      r3sMinus = true;
+      if (!r3sPlus)
       {
-        displayCharacter(0, VD1_COL, VD1_ROW);
-        displayCharacter(0, VD2_COL, VD2_ROW);
-        displayCharacter(0, ND1_COL, ND1_ROW);
-        displayCharacter(0, ND2_COL, ND2_ROW);
+        displayMinus(R3S_COL, R3S_ROW);
       }
-      else 
+    }
+    else
+    {
+      r3sMinus = false;
+      if (!r3sPlus)
       {
-        displayCharacter(vd1, VD1_COL, VD1_ROW);
-        displayCharacter(vd2, VD2_COL, VD2_ROW);
-        displayCharacter(nd1, ND1_COL, ND1_ROW);
-        displayCharacter(nd2, ND2_COL, ND2_ROW);
+        displayBlank(R3S_COL, R3S_ROW);
       }
     }
-
-    commandString = "";
+    displayCharacter(dsph, R3D4_COL, R3D4_ROW);
+    displayCharacter(dspl, R3D5_COL, R3D5_ROW);
   }
 }
 
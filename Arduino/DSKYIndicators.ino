@@ -9,6 +9,9 @@
  *
  * Mods:     07/04/22  Initial Release.
  *           07/15/22  Simplified commands to take 6 indicators at a time.
+ *           10/16/26  Binary framed protocol (v2).
+ *           10/16/26  Baud rate negotiation.
+ *           10/16/26  Blink indicators locally.
  */
 #include <SPI.h>
 #include "Adafruit_GFX.h"
@@ -44,6 +47,21 @@
 #define TEXT_LONG 45
 #define TEXT_XLONG 35
 
+// Binary framed protocol: SYNC, command, value high byte, value low byte, checksum.
+#define FRAME_SYNC 0xA5
+#define FRAME_SIZE 5
+
+// Baud rate negotiation.
+#define DEFAULT_BAUD_RATE 9600
+#define SET_BAUD_COMMAND 6
+#define ECHO_COMMAND 7
+#define COMMIT_COMMAND 8
+#define BAUD_TIMEOUT 500
+
+// Local blinking of the other indicators, each phase lasts the interval (ms).
+#define BLINK_MASK_COMMAND 9
+#define BLINK_INTERVAL 320
+
 // Use hardware SPI (on Uno, #13, #12, #11) and the above for CS/DC
 Adafruit_HX8357 tft = Adafruit_HX8357(TFT_CS, TFT_DC, TFT_RST);
 
@@ -53,11 +71,21 @@ Adafruit_HX8357 tft = Adafruit_HX8357(TFT_CS, TFT_DC, TFT_RST);
 int savedDisplayIndicators = 0;
 int savedOtherIndicators = 0;
 
+// The other indicators the Raspberry Pi has lit and those of them that blink.
+byte litOtherIndicators = 0;
+byte blinkMask = 0;
+bool blinkShown = true;
+unsigned long blinkTime = 0;
+
+byte frame[FRAME_SIZE];
+byte frameIndex = 0;
+unsigned long baudRate = DEFAULT_BAUD_RATE;
+
 void setup() 
 {
   String commandString;
   
-  Serial.begin(9600);
+  Serial.begin(DEFAULT_BAUD_RATE);
 
   // TODO: Set up LCD
   tft.begin();
@@ -81,7 +109,7 @@ void setup()
 
     if (commandString.length() > 0 && commandString.equals("2"))
     {
-      Serial.println("Indicators");
+      Serial.println("Indicators V2");
       initialized = true;
     }
     commandString = "";
@@ -90,8 +118,11 @@ void setup()
 
 /*
  * This is the main Arduino loop that runs continuously.  It waits for a command from the 
- * Raspberry Pi, then executes the command before waiting for the next command.  Commands 
- * 3 & 4 are followed by an integer string that represents the bits as defined below.
+ * Raspberry Pi, then executes the command before waiting for the next command.  Commands
+ * arrive as five byte frames: 0xA5, the command, the value high byte, the value low byte
+ * and a checksum that is the one's complement of the sum of the command and value bytes.
+ * Bytes are collected as they arrive and a frame with a bad checksum is discarded.
+ * Commands 3 & 4 carry a value that represents the bits as defined below.
  * The commands are:
  * 0  = Noop
  * 1  = Reset to power on state
@@ -110,134 +141,235 @@ void setup()
  *        Bit 3 = TEMP
  *        Bit 4 = STBY
  *        Bit 5 = RESTART
+ * 6  = Set Baud, value = rate / 100
+ * 7  = Echo, only during a baud change
+ * 8  = Commit, only during a baud change
+ * 9  = Blink Mask, the other indicators that blink here while lit, same bits as command 4
  */
 void loop() 
 {
-  String commandString;
+  if (readFrame())
+  {
+    executeCommand(frame[1], ((unsigned int)frame[2] << 8) | frame[3]);
+  }
+  blinkIndicators();
+}
 
-  // Read the next command sequence.
-  while (Serial.available() > 0) 
+/*
+ * Blink the lit indicators that are in the blink mask.
+ */
+void blinkIndicators()
+{
+  if ((litOtherIndicators & blinkMask) != 0 && millis() - blinkTime >= BLINK_INTERVAL)
   {
-    delay(2);  // Delay 2 milliseconds to allow byte to arrive in input buffer
-    char c = Serial.read();  // Gets one byte from serial buffer
-    
-    if (c != '\n' && c != '\r')  
-      commandString += c; 
+    blinkTime = millis();
+    blinkShown = !blinkShown;
+    showOtherIndicators();
   }
+}
 
-  // If there is a command string to parse...
-  if (commandString.length() > 0) 
+/*
+ * Draw the lit other indicators, leaving out the blinking ones during the off phase.
+ */
+void showOtherIndicators()
+{
+  if (blinkShown)
+    updateOtherIndicators(litOtherIndicators);
+  else
+    updateOtherIndicators(litOtherIndicators & ~blinkMask);
+}
+
+/*
+ * Collect the bytes that have arrived into the frame buffer.  Returns true once a complete
+ * frame with a good checksum has been received.  A frame with a bad checksum is dropped and
+ * the search for the next sync byte starts again.
+ */
+bool readFrame()
+{
+  while (Serial.available() > 0) 
   {
-    String command = commandString;
-    String data = "";
-    String delim = " ";
+    byte b = Serial.read();
 
-    // Parse the command string.
-    if (commandString != "0" && commandString != "1" && commandString != "2")
-    {
-      int firstDelimIndex = commandString.indexOf(delim);
-      command = commandString.substring(0, firstDelimIndex);
-      data = commandString.substring(firstDelimIndex + 1, commandString.length());
-    }
-    
-    // Process the Reset command.
-    if (command == "1")
-    {
-     resetDisplay();
-    }
-    
-    // Process the Display Indicators command.
-    else if (command == "3")
+    // Hunt for the start of a frame.
+    if (frameIndex == 0 && b != FRAME_SYNC)
+      continue;
+
+    frame[frameIndex++] = b;
+    if (frameIndex == FRAME_SIZE)
     {
-      byte newDisplayValue = (byte)data.toInt();
-      byte bitZero  = newDisplayValue & 0x01;
-      byte bitOne   = (newDisplayValue >> 1) & 0x01;
-      byte bitTwo   = (newDisplayValue >> 2) & 0x01;
-      byte bitThree = (newDisplayValue >> 3) & 0x01;
-      byte bitFour  = (newDisplayValue >> 4) & 0x01;
-      byte bitFive  = (newDisplayValue >> 5) & 0x01;
-      
-      byte oldBitZero  = savedDisplayIndicators & 0x01;
-      byte oldBitOne   = (savedDisplayIndicators >> 1) & 0x01;
-      byte oldBitTwo   = (savedDisplayIndicators >> 2) & 0x01;
-      byte oldBitThree = (savedDisplayIndicators >> 3) & 0x01;
-      byte oldBitFour  = (savedDisplayIndicators >> 4) & 0x01;
-      byte oldBitFive  = (savedDisplayIndicators >> 5) & 0x01;
-
-      if (bitZero != oldBitZero)
-      {
-        drawNOATT(bitZero);
-      }
-      if (bitOne != oldBitOne)
-      {
-        drawGIMBALLOCK(bitOne);
-      }
-      if (bitTwo != oldBitTwo)
-      {
-        drawPROG(bitTwo);
-      }
-      if (bitThree != oldBitThree)
-      {
-        drawTRACKER(bitThree);
-      }
-      if (bitFour != oldBitFour)
-      {
-        drawALT(bitFour);
-      }
-      if (bitFive != oldBitFive)
-      {
-        drawVEL(bitFive);
-      }
-      savedDisplayIndicators = newDisplayValue;
+      frameIndex = 0;
+      byte checksum = ~(frame[1] + frame[2] + frame[3]);
+      if (checksum == frame[4])
+        return true;
     }
+  }
+  return false;
+}
 
-    // Process the Other Indicators command.
-    else if (command == "4")
+/*
+ * Switch to a new baud rate and echo the test frames sent by the Raspberry Pi.  The new rate
+ * is kept once a COMMIT frame arrives.  If none arrives in time the old rate is restored.
+ */
+void changeBaudRate(unsigned long newRate)
+{
+  Serial.flush();
+  Serial.end();
+  Serial.begin(newRate);
+  frameIndex = 0;
+
+  unsigned long start = millis();
+  while (millis() - start < BAUD_TIMEOUT)
+  {
+    if (readFrame() && (frame[1] == ECHO_COMMAND || frame[1] == COMMIT_COMMAND))
     {
-      byte newOtherValue = (byte)data.toInt();
-      byte bitZero  = newOtherValue & 0x01;
-      byte bitOne   = (newOtherValue >> 1) & 0x01;
-      byte bitTwo   = (newOtherValue >> 2) & 0x01;
-      byte bitThree = (newOtherValue >> 3) & 0x01;
-      byte bitFour  = (newOtherValue >> 4) & 0x01;
-      byte bitFive  = (newOtherValue >> 5) & 0x01;
-      
-      byte oldBitZero  = savedOtherIndicators & 0x01;
-      byte oldBitOne   = (savedOtherIndicators >> 1) & 0x01;
-      byte oldBitTwo   = (savedOtherIndicators >> 2) & 0x01;
-      byte oldBitThree = (savedOtherIndicators >> 3) & 0x01;
-      byte oldBitFour  = (savedOtherIndicators >> 4) & 0x01;
-      byte oldBitFive  = (savedOtherIndicators >> 5) & 0x01;
-
-      if (bitZero != oldBitZero)
-      {
-        drawUPLINKACTY(bitZero);
-      }
-      if (bitOne != oldBitOne)
-      {
-        drawKEYREL(bitOne);
-      }
-      if (bitTwo != oldBitTwo)
-      {
-        drawOPRERR(bitTwo);
-      }
-      if (bitThree != oldBitThree)
-      {
-        drawTEMP(bitThree);
-      }
-      if (bitFour != oldBitFour)
-      {
-        drawSTBY(bitFour);
-      }
-      if (bitFive != oldBitFive)
+      Serial.write(frame, FRAME_SIZE);
+      if (frame[1] == COMMIT_COMMAND)
       {
-        drawRESTART(bitFive);
+        baudRate = newRate;
+        return;
       }
-      savedOtherIndicators = newOtherValue;
     }
+  }
 
-    commandString = "";
+  Serial.end();
+  Serial.begin(baudRate);
+  frameIndex = 0;
+}
+
+/*
+ * Execute one command received from the Raspberry Pi.  The indicator commands only use
+ * the low byte of the value.
+ */
+void executeCommand(byte command, unsigned int value)
+{
+  // Process the Reset command.
+  if (command == 1)
+  {
+    litOtherIndicators = 0;
+    blinkMask = 0;
+    blinkShown = true;
+    resetDisplay();
+  }
+
+  // Process the Display Indicators command.
+  else if (command == 3)
+  {
+    updateDisplayIndicators((byte)value);
+  }
+
+  // Process the Other Indicators command.
+  else if (command == 4)
+  {
+    litOtherIndicators = (byte)value;
+    showOtherIndicators();
+  }
+
+  // Process the Blink Mask command.
+  else if (command == BLINK_MASK_COMMAND)
+  {
+    blinkMask = (byte)value;
+    blinkShown = true;
+    blinkTime = millis();
+    showOtherIndicators();
+  }
+
+  // Process the Set Baud command.
+  else if (command == SET_BAUD_COMMAND)
+  {
+    changeBaudRate((unsigned long)value * 100);
+  }
+}
+
+/*
+ * Redraw the display indicators whose state has changed.
+ */
+void updateDisplayIndicators(byte newDisplayValue)
+{
+  byte bitZero  = newDisplayValue & 0x01;
+  byte bitOne   = (newDisplayValue >> 1) & 0x01;
+  byte bitTwo   = (newDisplayValue >> 2) & 0x01;
+  byte bitThree = (newDisplayValue >> 3) & 0x01;
+  byte bitFour  = (newDisplayValue >> 4) & 0x01;
+  byte bitFive  = (newDisplayValue >> 5) & 0x01;
+  
+  byte oldBitZero  = savedDisplayIndicators & 0x01;
+  byte oldBitOne   = (savedDisplayIndicators >> 1) & 0x01;
+  byte oldBitTwo   = (savedDisplayIndicators >> 2) & 0x01;
+  byte oldBitThree = (savedDisplayIndicators >> 3) & 0x01;
+  byte oldBitFour  = (savedDisplayIndicators >> 4) & 0x01;
+  byte oldBitFive  = (savedDisplayIndicators >> 5) & 0x01;
+
+  if (bitZero != oldBitZero)
+  {
+    drawNOATT(bitZero);
+  }
+  if (bitOne != oldBitOne)
+  {
+    drawGIMBALLOCK(bitOne);
+  }
+  if (bitTwo != oldBitTwo)
+  {
+    drawPROG(bitTwo);
+  }
+  if (bitThree != oldBitThree)
+  {
+    drawTRACKER(bitThree);
+  }
+  if (bitFour != oldBitFour)
+  {
+    drawALT(bitFour);
+  }
+  if (bitFive != oldBitFive)
+  {
+    drawVEL(bitFive);
+  }
+  savedDisplayIndicators = newDisplayValue;
+}
+
+/*
+ * Redraw the other indicators whose state has changed.
+ */
+void updateOtherIndicators(byte newOtherValue)
+{
+  byte bitZero  = newOtherValue & 0x01;
+  byte bitOne   = (newOtherValue >> 1) & 0x01;
+  byte bitTwo   = (newOtherValue >> 2) & 0x01;
+  byte bitThree = (newOtherValue >> 3) & 0x01;
+  byte bitFour  = (newOtherValue >> 4) & 0x01;
+  byte bitFive  = (newOtherValue >> 5) & 0x01;
+  
+  byte oldBitZero  = savedOtherIndicators & 0x01;
+  byte oldBitOne   = (savedOtherIndicators >> 1) & 0x01;
+  byte oldBitTwo   = (savedOtherIndicators >> 2) & 0x01;
+  byte oldBitThree = (savedOtherIndicators >> 3) & 0x01;
+  byte oldBitFour  = (savedOtherIndicators >> 4) & 0x01;
+  byte oldBitFive  = (savedOtherIndicators >> 5) & 0x01;
+
+  if (bitZero != oldBitZero)
+  {
+    drawUPLINKACTY(bitZero);
+  }
+  if (bitOne != oldBitOne)
+  {
+    drawKEYREL(bitOne);
+  }
+  if (bitTwo != oldBitTwo)
+  {
+    drawOPRERR(bitTwo);
+  }
+  if (bitThree != oldBitThree)
+  {
+    drawTEMP(bitThree);
+  }
+  if (bitFour != oldBitFour)
+  {
+    drawSTBY(bitFour);
+  }
+  if (bitFive != oldBitFive)
+  {
+    drawRESTART(bitFive);
   }
+  savedOtherIndicators = newOtherValue;
 }
 
 void drawUPLINKACTY(int bit)
@@ -9,6 +9,7 @@
  *  the Raspberry Pi.
  *
  * Mods:     07/04/22  Initial Release.
+ *           10/16/26  Clear the identify command after each check.
  *  
  */
  
@@ -83,6 +84,7 @@ void setup()
         Serial.println("Keyboard");
         initialized = true;
       }
+      commandString = "";  // The Pi repeats the command until it gets an answer
     }
   }
 }
@@ -8,281 +8,305 @@
   expressed or implied. See the GNU General Public License for more details.
 
   Purpose:	This class provides the interface to the hardware AGC via the channel bus and various control lines.
-            The interface to this connector is via Raspberry Pi GPIO pins.  All activity related to the GPIO
-            pins is encapsulated within this class.  Each control pin has an event listener that when the pin
-            is asserted, the appropriate action is taken.  Notice that these control pins use inverse logic.
+            The interface to this connector is via Raspberry Pi GPIO pins, reached through a GPIO backend:
+            Pi4J, the memory mapped GPIO registers, or a simulated AGC.  When a control pin changes, the
+            appropriate action is taken.  Notice that these control pins use inverse logic; when STBY goes
+            low the display and indicators are blanked.
             The Channel bus is a bidirectional bus.  The bus's pins are normally kept in an input mode.  If
             keyboard data is to be sent back to the AGC, it is requested by the AGC and the pin modes are
-            changed to output, the data is sent and the process sleeps long enough for the AGC to read the
-            data before the pin modes are changed back to input.
+            changed to output, the data is sent and the bus hold scheduler changes the pin modes back to
+            input once the AGC has had time to read the data.  DISP and INDC are ignored while the bus is
+            held.  The backend's listener only notes the time of the edge and the bus and hands them to the
+            edge dispatcher, which handles them on its own thread.
 
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Read and write the channel bus as whole words.
+            10/16/26  Hand the DISP and INDC words to the channel dispatcher.
+            10/16/26  Log through the asynchronous log.
+            10/16/26  Read, write and turn the channel bus around through the mapped GPIO registers.
+            10/16/26  Capture the control line edges in the listeners and handle them on another thread.
+            10/16/26  Reach the pins through a GPIO backend.
+            10/16/26  Hold the bus for KBD1 and RPRO through the bus hold scheduler.
+            10/16/26  Count the CLK1 edges and tell the hardware is present from the clock.
+            10/16/26  Start the threads only once the pins are claimed, and stop handling edges on close.
+            10/16/26  Blank the display and indicators when the AGC goes into standby.
+            10/16/26  Drive PRO for one RPRO per press of the key.
 */
-import com.pi4j.io.gpio.*;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
-
-import java.util.BitSet;
+import java.io.IOException;
 
 /**
- *   This interface encapsulates the Raspberry Pi GPIO interface.  Since this only functions on a Raspberry Pi,
- *   encapsulating this interface allows for a test package to replace this package.
- *
- *   The AGC interface uses the following pins:
- *
- *   Assignment		  GPIO Pin
- *   H/W Present        2
- *   Channel Bus 1			4
- *   Channel Bus 2			5
- *   Channel Bus 3			6
- *   Channel Bus 4			7
- *   Channel Bus 5			8
- *   Channel Bus 6			9
- *   Channel Bus 7			10
- *   Channel Bus 8			11
- *   Channel Bus 9			12
- *   Channel Bus 10	  	13
- *   Channel Bus 11	  	14
- *   Channel Bus 12	  	15
- *   Channel Bus 13	  	16
- *   Channel Bus 14		  17
- *   Channel Bus 15		  18
- *   CLK1			      	  19
- *   RST				        20
- *   STBY				        21
- *   KBD1				        22
- *   DISP 			      	23
- *   INDC				        24
- *   RPRO				        25
- *   KB_STR			        26
- *   PARALM			        27
+ *   This interface encapsulates the Raspberry Pi GPIO interface.  The pins themselves are reached through a
+ *   GpioBackend, so the hardware mode can also be run against a simulated AGC.  See Pi4JGpioBackend for the
+ *   pins used.
  */
 public class AGCInterface
 {
-  private static final Pin HW_PRESENT = RaspiPin.GPIO_02;
-  private static final Pin CH1_PIN = RaspiPin.GPIO_04;
-  private static final Pin CH2_PIN = RaspiPin.GPIO_05;
-  private static final Pin CH3_PIN = RaspiPin.GPIO_06;
-  private static final Pin CH4_PIN = RaspiPin.GPIO_07;
-  private static final Pin CH5_PIN = RaspiPin.GPIO_08;
-  private static final Pin CH6_PIN = RaspiPin.GPIO_09;
-  private static final Pin CH7_PIN = RaspiPin.GPIO_10;
-  private static final Pin CH8_PIN = RaspiPin.GPIO_11;
-  private static final Pin CH9_PIN = RaspiPin.GPIO_12;
-  private static final Pin CH10_PIN = RaspiPin.GPIO_13;
-  private static final Pin CH11_PIN = RaspiPin.GPIO_14;
-  private static final Pin CH12_PIN = RaspiPin.GPIO_15;
-  private static final Pin CH13_PIN = RaspiPin.GPIO_16;
-  private static final Pin CH14_PIN = RaspiPin.GPIO_17;
-  private static final Pin CH15_PIN = RaspiPin.GPIO_18;
-
-  private static final Pin CLK1_PIN = RaspiPin.GPIO_19;
-  private static final Pin RST_PIN = RaspiPin.GPIO_20;
-  private static final Pin STBY_PIN = RaspiPin.GPIO_21;
-  private static final Pin KBD1_PIN = RaspiPin.GPIO_22;
-  private static final Pin DISP_PIN = RaspiPin.GPIO_23;
-  private static final Pin INDC_PIN = RaspiPin.GPIO_24;
-  private static final Pin RPRO_PIN = RaspiPin.GPIO_25;
-  private static final Pin KB_STR_PIN = RaspiPin.GPIO_26;
-  private static final Pin PARALM_PIN = RaspiPin.GPIO_27;
-
-  private GpioPinDigitalInput clk1;
-  private GpioPinDigitalInput rst;
-  private GpioPinDigitalInput stby;
-  private GpioPinDigitalInput kbd1;
-  private GpioPinDigitalInput disp;
-  private GpioPinDigitalInput indc;
-  private GpioPinDigitalInput rpro;
-  private GpioPinDigitalOutput kb_str;
-  private GpioPinDigitalInput paralm;
-  private GpioPinDigitalInput hwPresent;
-
-  private GpioPinDigitalMultipurpose channelBit1;
-  private GpioPinDigitalMultipurpose channelBit2;
-  private GpioPinDigitalMultipurpose channelBit3;
-  private GpioPinDigitalMultipurpose channelBit4;
-  private GpioPinDigitalMultipurpose channelBit5;
-  private GpioPinDigitalMultipurpose channelBit6;
-  private GpioPinDigitalMultipurpose channelBit7;
-  private GpioPinDigitalMultipurpose channelBit8;
-  private GpioPinDigitalMultipurpose channelBit9;
-  private GpioPinDigitalMultipurpose channelBit10;
-  private GpioPinDigitalMultipurpose channelBit11;
-  private GpioPinDigitalMultipurpose channelBit12;
-  private GpioPinDigitalMultipurpose channelBit13;
-  private GpioPinDigitalMultipurpose channelBit14;
-  private GpioPinDigitalMultipurpose channelBit15;
-
-  private final GpioController gpio = GpioFactory.getInstance();
+  private final GpioBackend backend;
+  private final BusHoldScheduler busHold;
+  private final ClockMonitor clockMonitor;
   private final DisplayInterface displayInterface = DisplayInterface.getInstance();
   private final IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
   private final KeyboardInterface keyboardInterface = KeyboardInterface.getInstance();
+  private final ChannelDispatcher channelDispatcher = ChannelDispatcher.getInstance();
+  private final EdgeDispatcher edgeDispatcher = EdgeDispatcher.getInstance();
+
+  // The one handler this interface gives the edge dispatcher, so it can take back the same one.
+  private final EdgeDispatcher.Handler edgeHandler = this::handleEdge;
 
-  public void init()
+  /**
+   * Build the interface on the backend named by the gpioBackend setting.
+   */
+  public AGCInterface()
   {
-    // Provision the Channel Bus pins.
-    channelBit1 = gpio.provisionDigitalMultipurposePin(CH1_PIN,PinMode.DIGITAL_INPUT);
-    channelBit2 = gpio.provisionDigitalMultipurposePin(CH2_PIN,PinMode.DIGITAL_INPUT);
-    channelBit3 = gpio.provisionDigitalMultipurposePin(CH3_PIN,PinMode.DIGITAL_INPUT);
-    channelBit4 = gpio.provisionDigitalMultipurposePin(CH4_PIN,PinMode.DIGITAL_INPUT);
-    channelBit5 = gpio.provisionDigitalMultipurposePin(CH5_PIN,PinMode.DIGITAL_INPUT);
-    channelBit6 = gpio.provisionDigitalMultipurposePin(CH6_PIN,PinMode.DIGITAL_INPUT);
-    channelBit7 = gpio.provisionDigitalMultipurposePin(CH7_PIN,PinMode.DIGITAL_INPUT);
-    channelBit8 = gpio.provisionDigitalMultipurposePin(CH8_PIN,PinMode.DIGITAL_INPUT);
-    channelBit9 = gpio.provisionDigitalMultipurposePin(CH9_PIN,PinMode.DIGITAL_INPUT);
-    channelBit10 = gpio.provisionDigitalMultipurposePin(CH10_PIN,PinMode.DIGITAL_INPUT);
-    channelBit11 = gpio.provisionDigitalMultipurposePin(CH11_PIN,PinMode.DIGITAL_INPUT);
-    channelBit12 = gpio.provisionDigitalMultipurposePin(CH12_PIN,PinMode.DIGITAL_INPUT);
-    channelBit13 = gpio.provisionDigitalMultipurposePin(CH13_PIN,PinMode.DIGITAL_INPUT);
-    channelBit14 = gpio.provisionDigitalMultipurposePin(CH14_PIN,PinMode.DIGITAL_INPUT);
-    channelBit15 = gpio.provisionDigitalMultipurposePin(CH15_PIN,PinMode.DIGITAL_INPUT);
-
-    // Provision the various control pins as input or output.
-    clk1 = gpio.provisionDigitalInputPin(CLK1_PIN);
-    rst = gpio.provisionDigitalInputPin(RST_PIN);
-    stby = gpio.provisionDigitalInputPin(STBY_PIN);
-    kbd1 = gpio.provisionDigitalInputPin(KBD1_PIN);
-    disp = gpio.provisionDigitalInputPin(DISP_PIN);
-    indc = gpio.provisionDigitalInputPin(INDC_PIN);
-    rpro = gpio.provisionDigitalInputPin(RPRO_PIN);
-    kb_str = gpio.provisionDigitalOutputPin(KB_STR_PIN, PinState.LOW);
-    paralm = gpio.provisionDigitalInputPin(PARALM_PIN);
-    hwPresent = gpio.provisionDigitalInputPin(HW_PRESENT, PinPullResistance.PULL_DOWN);
-
-    // Create a CLK1 listener.
-    clk1.addListener((GpioPinListenerDigital) event ->
-    {
-      System.out.println(" --> GPIO PIN STATE CHANGE: " + event.getPin() + " = " + event.getState());
-    });
+    this(createBackend());
+  }
 
-    // Create a DISP listener.
-    disp.addListener((GpioPinListenerDigital) event ->
-    {
-      // TODO: For each of these control pins, use inverse logic.......
-
-      // Read Channel bus and send data to DisplayInterface.
-      // Note: The Channel bus should be set to input unless a write is occurring.
-      // Note: The AGC numbers bits starting at one.  Java starts with zero.
-      displayInterface.setChannel10Bit(0, channelBit1.getState().isHigh());
-      displayInterface.setChannel10Bit(1, channelBit2.getState().isHigh());
-      displayInterface.setChannel10Bit(2, channelBit3.getState().isHigh());
-      displayInterface.setChannel10Bit(3, channelBit4.getState().isHigh());
-      displayInterface.setChannel10Bit(4, channelBit5.getState().isHigh());
-      displayInterface.setChannel10Bit(5, channelBit6.getState().isHigh());
-      displayInterface.setChannel10Bit(6, channelBit7.getState().isHigh());
-      displayInterface.setChannel10Bit(7, channelBit8.getState().isHigh());
-      displayInterface.setChannel10Bit(8, channelBit9.getState().isHigh());
-      displayInterface.setChannel10Bit(9, channelBit10.getState().isHigh());
-      displayInterface.setChannel10Bit(10, channelBit11.getState().isHigh());
-      displayInterface.setChannel10Bit(11, channelBit12.getState().isHigh());
-      displayInterface.setChannel10Bit(12, channelBit13.getState().isHigh());
-      displayInterface.setChannel10Bit(13, channelBit14.getState().isHigh());
-      displayInterface.setChannel10Bit(14, channelBit15.getState().isHigh());
-
-      displayInterface.decodeData();
-    });
-
-    // Create a DISP listener.
-    indc.addListener((GpioPinListenerDigital) event ->
+  /**
+   * Build the interface on a backend.
+   *
+   * @param backend The GPIO backend.
+   */
+  public AGCInterface(GpioBackend backend)
+  {
+    this.backend = backend;
+    Settings settings = Settings.getInstance();
+    this.busHold = new BusHoldScheduler(backend, settings.getInt(Settings.BUS_HOLD_TIME, 100000));
+    this.clockMonitor = new ClockMonitor(settings.getInt(Settings.CLOCK_WINDOW, 1000),
+                                         settings.getInt(Settings.CLOCK_MIN_FREQUENCY, 10));
+  }
+
+  /**
+   * Method called to claim the pins and start handling the control lines.
+   *
+   * @return Whether or not the pins were claimed.
+   */
+  public boolean init()
+  {
+    // Note: The Channel bus should be set to input unless a write is occurring.
+    backend.setListener(this::lineChanged);
+    try
     {
-      // Read Channel bus and send data to IndicatorInterface.
-      // Note: The Channel bus should be set to input unless a write is occurring.
-      indicatorInterface.setCompActy(channelBit2.getState().isHigh());
-      indicatorInterface.setUplinkActy(channelBit3.getState().isHigh());
-      indicatorInterface.setTemp(channelBit4.getState().isHigh());
-      indicatorInterface.setKeyRel(channelBit5.getState().isHigh());
-      indicatorInterface.setFlashVerbNoun(channelBit6.getState().isHigh());
-      indicatorInterface.setOprErr(channelBit7.getState().isHigh());
-    });
-
-    // Create a PARALM listener.
-    paralm.addListener((GpioPinListenerDigital) event ->
+      backend.open();
+    }
+    catch (IOException e)
     {
-      // Read pin state and send data to IndicatorInterface.
-      indicatorInterface.setParalm(event.getState().isHigh());
-    });
+      Log.warn("Unable to open the %s GPIO backend: %s", backend.getName(), e.getMessage());
+      return false;
+    }
 
-    // Create a RST listener.
-    rst.addListener((GpioPinListenerDigital) event ->
-    {
-      // Blank displays and clear out persistant data.
-      displayInterface.resetDisplay();
-      indicatorInterface.resetDisplay();
-    });
+    // Only once the pins are claimed, so a failed open leaves nothing running.  Edges captured
+    // before the dispatcher has the handler wait in their rings.
+    channelDispatcher.registerDskyChannels();
+    edgeDispatcher.startDispatching(edgeHandler);
+    busHold.start();
+    clockMonitor.start();
+    Log.info("AGC interface on %s.", backend.getName());
+    return true;
+  }
 
-    // Create a STBY listener.
-    stby.addListener((GpioPinListenerDigital) event ->
-    {
-      // TODO: Blank display and indicators if standby pin is low.
-    });
+  /**
+   * Method called to release the pins and stop handling the control lines.
+   */
+  public void closeInterface()
+  {
+    edgeDispatcher.stopDispatching(edgeHandler);
+    busHold.interrupt();
+    clockMonitor.interrupt();
+    backend.close();
+  }
+
+  /**
+   * Method to get the GPIO backend.
+   *
+   * @return The backend.
+   */
+  public GpioBackend getBackend()
+  {
+    return backend;
+  }
+
+  /**
+   * Method to get the scheduler that holds the channel bus for the AGC.
+   *
+   * @return The bus hold scheduler.
+   */
+  public BusHoldScheduler getBusHold()
+  {
+    return busHold;
+  }
+
+  /**
+   * Method to get the monitor of the AGC's CLK1 clock.
+   *
+   * @return The clock monitor.
+   */
+  public ClockMonitor getClockMonitor()
+  {
+    return clockMonitor;
+  }
 
-    // Create a KBD1 listener.
-    kbd1.addListener((GpioPinListenerDigital) event ->
+  /**
+   * Internal method used to capture a control line edge on the backend's thread.  The edges are
+   * handled on the edge dispatcher's thread so a slow one doesn't delay or lose the next strobe.
+   *
+   * @param line The control line.
+   * @param edgeTime When the line changed.
+   * @param high Whether the line went high or low.
+   */
+  private void lineChanged(GpioBackend.Line line, long edgeTime, boolean high)
+  {
+    switch (line)
     {
-      setChannelBusDirection(PinMode.DIGITAL_OUTPUT);
-      BitSet data = keyboardInterface.getChannnel15Data();
-      channelBit1.setState(data.get(0));
-      channelBit2.setState(data.get(1));
-      channelBit3.setState(data.get(2));
-      channelBit4.setState(data.get(3));
-      channelBit5.setState(data.get(4));
-      try
-      {
-        Thread.sleep(100);
-      }
-      catch (InterruptedException e)
-      {
-        System.out.println("Sleep interrupted.");
-      }
-      setChannelBusDirection(PinMode.DIGITAL_INPUT);
-    });
-
-    // Create a RPRO listener.
-    rpro.addListener((GpioPinListenerDigital) event ->
+      case CLK1:
+        // The clock toggles far too fast to log each edge; they are only counted.
+        clockMonitor.clockEdge();
+        break;
+
+      // While the bus is held it carries the DSKY's word, so there is nothing of the AGC's to read.
+      case DISP:
+        if (!busHold.refusesRead())
+        {
+          edgeDispatcher.capture(EdgeDispatcher.Edge.DISP, edgeTime, high, backend.readChannelBus());
+        }
+        break;
+
+      case INDC:
+        if (!busHold.refusesRead())
+        {
+          edgeDispatcher.capture(EdgeDispatcher.Edge.INDC, edgeTime, high, backend.readChannelBus());
+        }
+        break;
+
+      case PARALM:
+        edgeDispatcher.capture(EdgeDispatcher.Edge.PARALM, edgeTime, high, 0);
+        break;
+
+      case RST:
+        edgeDispatcher.capture(EdgeDispatcher.Edge.RST, edgeTime, high, 0);
+        break;
+
+      case KBD1:
+        edgeDispatcher.capture(EdgeDispatcher.Edge.KBD1, edgeTime, high, 0);
+        break;
+
+      case RPRO:
+        edgeDispatcher.capture(EdgeDispatcher.Edge.RPRO, edgeTime, high, 0);
+        break;
+
+      case STBY:
+        edgeDispatcher.capture(EdgeDispatcher.Edge.STBY, edgeTime, high, 0);
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Internal method used to handle a control line edge on the edge dispatcher's thread.
+   *
+   * @param edge The control line.
+   * @param high Whether the line went high or low.
+   * @param word The channel bus when the edge was captured.
+   */
+  private void handleEdge(EdgeDispatcher.Edge edge, boolean high, int word)
+  {
+    switch (edge)
     {
-      // Note: this bit is inverse logic.
-      channelBit14.setState(true);
-      if (keyboardInterface.isProKeyPressed())
-      {
-        setChannelBusDirection(PinMode.DIGITAL_OUTPUT);
-        channelBit14.setState(false);
-      }
-    });
+      case DISP:
+        // Send the channel bus to the DisplayInterface.
+        channelDispatcher.dispatch(ChannelDispatcher.DISPLAY_CHANNEL, word);
+        break;
+
+      case INDC:
+        // Send the channel bus to the IndicatorInterface.
+        channelDispatcher.dispatch(ChannelDispatcher.INDICATOR_CHANNEL, word);
+        break;
+
+      case PARALM:
+        indicatorInterface.setParalm(high);
+        break;
+
+      case RST:
+        // Blank displays and clear out persistant data.
+        displayInterface.resetDisplay();
+        indicatorInterface.resetDisplay();
+        break;
+
+      case STBY:
+        // Inverse logic: low is standby, when the DSKY is dark.  The AGC writes the display
+        // again once it comes out of standby.
+        if (!high)
+        {
+          displayInterface.resetDisplay();
+          indicatorInterface.resetDisplay();
+        }
+        break;
+
+      case KBD1:
+        // The bus is turned back to input by the scheduler once the AGC has had time to read it.
+        busHold.hold(keyboardInterface.getChannnel15Data(), 0x001F);
+        break;
+
+      case RPRO:
+        // Note: this bit is inverse logic, so it is only driven when the key is pressed.
+        if (keyboardInterface.consumeProKey())
+        {
+          busHold.hold(0, 0x2000);
+        }
+        break;
+    }
   }
 
   /**
    * Method to check to see if the AGC hardware or simulator are present.
-   * Note that the internal pull-up resistor is set to pull the line low
-   * so hardware is present if the line goes high.
+   * The hardware is present if the CLK1 clock is seen toggling.  This waits
+   * for the clock monitor to sample a window.
    *
    * @return Whether or not the hardware is present.
    */
   public boolean isHwPresent()
   {
-    return false;
-//    return hwPresent.getState().isHigh();
+    try
+    {
+      return clockMonitor.waitForClock();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
   public void assertKbStr()
   {
-    kb_str.pulse(100, true);
+    backend.pulseKbStr(100);
   }
 
-  private void setChannelBusDirection(PinMode mode)
+  /**
+   * Internal method used to create the backend named by the gpioBackend setting.
+   *
+   * @return The backend.
+   */
+  private static GpioBackend createBackend()
   {
-    channelBit1.setMode(mode);
-    channelBit2.setMode(mode);
-    channelBit3.setMode(mode);
-    channelBit4.setMode(mode);
-    channelBit5.setMode(mode);
-    channelBit6.setMode(mode);
-    channelBit7.setMode(mode);
-    channelBit8.setMode(mode);
-    channelBit9.setMode(mode);
-    channelBit10.setMode(mode);
-    channelBit11.setMode(mode);
-    channelBit12.setMode(mode);
-    channelBit13.setMode(mode);
-    channelBit14.setMode(mode);
-    channelBit15.setMode(mode);
+    Settings settings = Settings.getInstance();
+    String name = settings.getString(Settings.GPIO_BACKEND, "pi4j");
+    switch (name.toLowerCase())
+    {
+      case "mapped":
+        return new MappedGpioBackend(settings.getString(Settings.GPIO_MEMORY, GpioRegisters.GPIOMEM),
+                                     settings.getInt(Settings.GPIO_POLL_INTERVAL, 20));
+
+      case "simulated":
+        return SimulatedGpioBackend.create();
+
+      default:
+        if (!name.equalsIgnoreCase("pi4j"))
+        {
+          Log.warn("Unknown GPIO backend %s, using Pi4J.", name);
+        }
+        return new Pi4JGpioBackend();
+    }
   }
 }
@@ -11,8 +11,8 @@
             tested without the presence of an AGC.
 
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Channel 15 is an int.
 */
-import java.util.BitSet;
 
 public class AGCTestInterface
 {
@@ -299,7 +299,6 @@ public class AGCTestInterface
   public void assertKbStr()
   {
     System.out.println("Keyboard Strobe asserted.");
-    BitSet data = keyboardInterface.getChannnel15Data();
-    System.out.println("Key Pressed = " + data.toLongArray()[0]);
+    System.out.println("Key Pressed = " + keyboardInterface.getChannnel15Data());
   }
 }
@@ -0,0 +1,205 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a utility class that raises the baud rate of an Arduino link after the Arduino
+            has been identified.  Only Arduinos speaking the framed protocol take part.  Each step up asks
+            the Arduino to change rate, switches the local port, and then verifies the link with a set of
+            echo frames before committing.  Stepping stops at the first rate that fails, leaving the link
+            at the highest rate that passed.  The rate that worked is remembered for the device so the
+            next start can go straight to it.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Negotiate over a transport.
+            10/16/26  Probe the new rate again when the commit echo is missed.
+*/
+public class BaudNegotiator
+{
+  public static final int DEFAULT_BAUD_RATE = 9600;
+
+  private static final int[] BAUD_RATES = { 19200, 38400, 57600, 115200, 230400, 250000, 500000, 1000000 };
+
+  // Values echoed during the test, chosen to exercise every bit in both states.
+  private static final int[] ECHO_PATTERNS = { 0x55AA, 0xAA55, 0x0000, 0xFFFF, 0x0FF0, 0xF00F, 0x1234, 0xA5A5 };
+
+  // How long to wait for each echo.
+  private static final int ECHO_TIMEOUT = 100;
+
+  // The Arduino returns to the old rate if not committed within this time (ms).
+  private static final int ARDUINO_TIMEOUT = 500;
+
+  private BaudNegotiator() { }
+
+  /**
+   * Method called to bring the link up to the fastest rate that works.  If a rate was
+   * remembered for the device it is tried first.
+   *
+   * @param port The open port, currently at the default baud rate.
+   * @param deviceKey The key the device is remembered by, null to not remember it.
+   * @return The baud rate the link is left at.
+   */
+  public static int negotiate(SerialTransport port, String deviceKey)
+  {
+    int rate = DEFAULT_BAUD_RATE;
+
+    int rememberedRate = deviceKey == null ? DEFAULT_BAUD_RATE :
+                         PortCache.getInstance().getBaudRate(deviceKey, DEFAULT_BAUD_RATE);
+    if (rememberedRate != DEFAULT_BAUD_RATE && changeRate(port, rate, rememberedRate))
+    {
+      rate = rememberedRate;
+    }
+    else
+    {
+      for (int nextRate : BAUD_RATES)
+      {
+        if (!changeRate(port, rate, nextRate))
+        {
+          break;
+        }
+        rate = nextRate;
+      }
+    }
+
+    if (deviceKey != null)
+    {
+      PortCache.getInstance().setBaudRate(deviceKey, rate);
+    }
+    return rate;
+  }
+
+  /**
+   * Internal method used to move the link from one rate to another.  If only the echo of the
+   * commit is missed, the new rate is probed again once the Arduino has settled on a rate.  On
+   * failure the local port is put back to the old rate and the Arduino is given time to do the same.
+   *
+   * @param port The port.
+   * @param oldRate The current rate.
+   * @param newRate The rate to try.
+   * @return Whether or not the link is now at the new rate.
+   */
+  private static boolean changeRate(SerialTransport port, int oldRate, int newRate)
+  {
+    try
+    {
+      byte[] setBaud = SerialProtocol.encode(SerialProtocol.VERSION_BINARY, SerialProtocol.SET_BAUD_COMMAND, newRate / 100, 0);
+      port.write(setBaud, setBaud.length);
+
+      // Let the frame leave at the old rate before switching.
+      Thread.sleep(20);
+      port.setBaudRate(newRate);
+      port.flush();
+      Thread.sleep(10);
+
+      boolean passed = true;
+      for (int pattern : ECHO_PATTERNS)
+      {
+        if (!echo(port, SerialProtocol.ECHO_COMMAND, pattern))
+        {
+          passed = false;
+          break;
+        }
+      }
+
+      if (passed && echo(port, SerialProtocol.COMMIT_COMMAND, newRate / 100))
+      {
+        return true;
+      }
+
+      // The Arduino has either committed or gone back to the old rate by now.
+      Thread.sleep(ARDUINO_TIMEOUT + 100);
+      if (passed && reprobe(port, newRate))
+      {
+        return true;
+      }
+
+      port.setBaudRate(oldRate);
+      port.flush();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Internal method used to find out whether the Arduino committed to the new rate when only the
+   * echo of the commit was missed.  The set baud frame is sent again at the new rate, so it is
+   * only understood, and the echo only answered, if the Arduino is at the new rate.  The change
+   * to the same rate is then committed so the Arduino leaves it straight away.
+   *
+   * @param port The port, at the new rate.
+   * @param newRate The new rate.
+   * @return Whether or not the Arduino is at the new rate.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  private static boolean reprobe(SerialTransport port, int newRate) throws InterruptedException
+  {
+    port.flush();
+    byte[] setBaud = SerialProtocol.encode(SerialProtocol.VERSION_BINARY, SerialProtocol.SET_BAUD_COMMAND, newRate / 100, 0);
+    port.write(setBaud, setBaud.length);
+    Thread.sleep(20);
+    port.flush();
+    Thread.sleep(10);
+
+    if (!echo(port, SerialProtocol.ECHO_COMMAND, ECHO_PATTERNS[0]))
+    {
+      return false;
+    }
+
+    // It stays at the new rate either way, but a missed commit leaves it echoing until it times out.
+    if (!echo(port, SerialProtocol.COMMIT_COMMAND, newRate / 100))
+    {
+      Thread.sleep(ARDUINO_TIMEOUT + 100);
+      port.flush();
+    }
+    Log.info("Commit echo missed, the Arduino is at %d baud.", newRate);
+    return true;
+  }
+
+  /**
+   * Internal method used to send a frame and check that it comes back unchanged.
+   *
+   * @param port The port.
+   * @param command The command of the frame.
+   * @param value The value of the frame.
+   * @return Whether or not the frame was echoed.
+   */
+  private static boolean echo(SerialTransport port, int command, int value)
+  {
+    byte[] frame = SerialProtocol.encode(SerialProtocol.VERSION_BINARY, command, value, 0);
+    port.write(frame, frame.length);
+
+    byte[] reply = new byte[frame.length];
+    int received = 0;
+    long deadline = System.currentTimeMillis() + ECHO_TIMEOUT;
+    while (received < reply.length && System.currentTimeMillis() < deadline)
+    {
+      int numRead = port.read(reply, reply.length - received, received, ECHO_TIMEOUT);
+      if (numRead < 0)
+      {
+        return false;
+      }
+      received += numRead;
+    }
+
+    if (received < reply.length)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < frame.length; i++)
+    {
+      if (reply[i] != frame[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class owns the channel bus while the DSKY drives it.  When the AGC asks for the keys or
+            the PRO key the bus is turned to output, the word is put on it and the bus is held for the
+            hold time, then turned back to input by this class's own thread rather than by a thread
+            that sleeps.  A hold asked for while the bus is held replaces the word and starts the hold
+            time again.  The thread parks until just before the release and spins for the rest, so the
+            release is not left to the timer tick.  A hold shorter than the time it takes to wake the
+            thread is released late by that time.  While the bus is held it carries the DSKY's word, not
+            the AGC's, so reads of it for DISP and INDC are refused.  The hold times actually reached and
+            how late each release was are measured.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Mark the bus held before driving it.
+            10/16/26  Latch the word before turning the bus to output.
+*/
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class BusHoldScheduler extends Thread
+{
+  // The thread spins rather than parks for the last part of a hold, as a park can wake this late (ns).
+  private static final long SPIN_TIME = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final GpioBackend backend;
+  private final long holdTime;
+
+  private volatile boolean held = false;
+  private volatile long releaseTime = 0;
+  private long holdStart = 0;
+
+  // Statistics.
+  private final AtomicLong holds = new AtomicLong();
+  private final AtomicLong holdsExtended = new AtomicLong();
+  private final AtomicLong readsRefused = new AtomicLong();
+  private long releases = 0;
+  private long totalHoldTime = 0;
+  private long maxHoldTime = 0;
+  private long totalLateness = 0;
+  private long maxLateness = 0;
+
+  /**
+   * Build the scheduler.
+   *
+   * @param backend The GPIO backend whose bus is held.
+   * @param holdTime How long the bus is held for the AGC to read it (us).
+   */
+  public BusHoldScheduler(GpioBackend backend, long holdTime)
+  {
+    super("Bus Hold");
+    setDaemon(true);
+    this.backend = backend;
+    this.holdTime = TimeUnit.MICROSECONDS.toNanos(holdTime);
+  }
+
+  /**
+   * Method called to drive some bits of the bus for the hold time.  Does not block.
+   *
+   * @param word The bus word.
+   * @param mask The bits of the word to drive.
+   */
+  public synchronized void hold(int word, int mask)
+  {
+    long now = System.nanoTime();
+    releaseTime = now + holdTime;
+    boolean driven = held;
+    if (driven)
+    {
+      holdsExtended.incrementAndGet();
+    }
+    else
+    {
+      // Held before the bus is driven, so a DISP or INDC edge seen meanwhile doesn't read the
+      // DSKY's word as the AGC's.
+      held = true;
+      holdStart = now;
+      holds.incrementAndGet();
+    }
+
+    // The word is latched before the pins are turned to output, so whatever was left in the
+    // latch is never driven.
+    backend.writeChannelBus(word, mask);
+    if (!driven)
+    {
+      backend.setChannelBusOutput(true);
+    }
+    LockSupport.unpark(this);
+  }
+
+  /**
+   * Method to determine if the bus is held.
+   *
+   * @return Whether or not the DSKY is driving the bus.
+   */
+  public boolean isHeld()
+  {
+    return held;
+  }
+
+  /**
+   * Method called before reading the AGC's word off the bus.  The read is refused, and counted,
+   * if the bus is held.
+   *
+   * @return Whether or not the read must be refused.
+   */
+  public boolean refusesRead()
+  {
+    if (held)
+    {
+      readsRefused.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Loop releasing the bus at the end of each hold, until interrupted.
+   */
+  public void run()
+  {
+    while (!isInterrupted())
+    {
+      if (!held)
+      {
+        LockSupport.park(this);
+        continue;
+      }
+
+      long wait = releaseTime - System.nanoTime();
+      if (wait > SPIN_TIME)
+      {
+        LockSupport.parkNanos(this, wait - SPIN_TIME);
+      }
+      else if (wait > 0)
+      {
+        // Yield rather than spin flat out, so a machine with one core can still run the AGC's side.
+        Thread.yield();
+      }
+      else
+      {
+        releaseIfDue();
+      }
+    }
+    releaseIfDue();
+  }
+
+  /**
+   * Internal method used to turn the bus back to input if the hold has ended.
+   */
+  private synchronized void releaseIfDue()
+  {
+    long now = System.nanoTime();
+    if (!held || (now - releaseTime < 0 && !isInterrupted()))
+    {
+      return;
+    }
+    backend.setChannelBusOutput(false);
+    held = false;
+
+    long time = now - holdStart;
+    long lateness = Math.max(0, now - releaseTime);
+    releases++;
+    totalHoldTime += time;
+    maxHoldTime = Math.max(maxHoldTime, time);
+    totalLateness += lateness;
+    maxLateness = Math.max(maxLateness, lateness);
+  }
+
+  /**
+   * Method to get the average time the bus was held past its release time.
+   *
+   * @return The average lateness (ns).
+   */
+  public synchronized long getAverageLateness()
+  {
+    return releases == 0 ? 0 : totalLateness / releases;
+  }
+
+  /**
+   * Method to get a one line summary of the holds.
+   *
+   * @return The statistics.
+   */
+  public synchronized String getStatistics()
+  {
+    return "Bus holds: " + holds.get() + " (" + holdsExtended.get() + " extended), reads refused = " +
+           readsRefused.get() + ", held for " + TimeUnit.NANOSECONDS.toMicros(holdTime) + " us asked, " +
+           (releases == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalHoldTime / releases)) + " us average (max " +
+           TimeUnit.NANOSECONDS.toMicros(maxHoldTime) + " us), released " +
+           TimeUnit.NANOSECONDS.toMicros(getAverageLateness()) + " us late on average (max " +
+           TimeUnit.NANOSECONDS.toMicros(maxLateness) + " us)";
+  }
+
+  /**
+   * Used to check the bus is turned around and released on time, and reads refused while held.
+   *
+   * @param args The hold times to check (us).
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    long[] holdTimes = { 50, 500, 5000, 100000 };
+    if (args.length > 0)
+    {
+      holdTimes = new long[args.length];
+      for (int i = 0; i < args.length; i++)
+      {
+        holdTimes[i] = Long.parseLong(args[i]);
+      }
+    }
+
+    boolean passed = true;
+    for (long time : holdTimes)
+    {
+      // The simulated AGC is only used for its bus; it is not opened, so it drives no strobes.
+      SimulatedGpioBackend backend = new SimulatedGpioBackend(null, 0, 0);
+      BusHoldScheduler scheduler = new BusHoldScheduler(backend, time);
+      scheduler.start();
+      for (int i = 0; i < 200; i++)
+      {
+        // A short hold may already be over by the time the bus is looked at.
+        scheduler.hold(i & 0x1F, 0x1F);
+        boolean driven = backend.readChannelBus() == (i & 0x1F) && scheduler.refusesRead();
+        while (scheduler.isHeld())
+        {
+          LockSupport.parkNanos(10000);
+        }
+        passed &= (driven || time < 1000) && backend.readChannelBus() == 0 && !scheduler.refusesRead();
+      }
+      scheduler.interrupt();
+      scheduler.join();
+
+      // Allow for a loaded machine, but a release should be nowhere near a timer tick late.
+      passed &= scheduler.getAverageLateness() < TimeUnit.MICROSECONDS.toNanos(500);
+      System.out.println(scheduler.getStatistics());
+    }
+    System.out.println("Bus hold: " + (passed ? "PASS" : "FAIL"));
+  }
+}
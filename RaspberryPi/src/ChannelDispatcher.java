@@ -0,0 +1,152 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton that routes the AGC output channels to the code that handles them.
+            Both the simulator socket and the AGC hardware hand every channel write here.  The handlers are
+            kept in a table indexed by channel number, so a write costs one array lookup and a channel is
+            added by registering a handler for it.  Writes to channels with no handler are counted and
+            dropped.  The table is replaced rather than changed when a handler is registered, so the
+            lookup needs no lock.  Every write can be logged by turning on packet tracing.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Trace the packets when packet tracing is on.
+            10/16/26  Check simulator packets reach a fake display.
+            10/16/26  Only box the traced packet when info messages are logged.
+*/
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChannelDispatcher
+{
+  // The channel number is 9 bits.
+  public static final int CHANNELS = 512;
+
+  // The channels the DSKY uses, in octal as the AGC documents them.
+  public static final int DISPLAY_CHANNEL = 010;
+  public static final int INDICATOR_CHANNEL = 011;
+  public static final int KEYBOARD_CHANNEL = 015;
+  public static final int RELAY_WORD_12_CHANNEL = 0163;
+
+  private static final ChannelDispatcher instance = new ChannelDispatcher();
+
+  private volatile Handler[] handlers = new Handler[CHANNELS];
+
+  // Statistics.
+  private final AtomicLong writesDispatched = new AtomicLong();
+  private final AtomicLong writesDropped = new AtomicLong();
+
+  /**
+   * Handles the writes to a channel.
+   */
+  public interface Handler
+  {
+    /**
+     * Method called when the AGC writes the channel.
+     *
+     * @param value The 15 bits of channel data.
+     */
+    void channelWritten(int value);
+  }
+
+  public static ChannelDispatcher getInstance()
+  {
+    return instance;
+  }
+
+  private ChannelDispatcher() { }
+
+  /**
+   * Method called to register the handlers of the channels the DSKY shows.
+   */
+  public void registerDskyChannels()
+  {
+    DisplayInterface displayInterface = DisplayInterface.getInstance();
+    IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+    register(DISPLAY_CHANNEL, displayInterface::setChannel10);
+    register(INDICATOR_CHANNEL, indicatorInterface::setChannel11);
+    register(RELAY_WORD_12_CHANNEL, indicatorInterface::setRelayWord12);
+  }
+
+  /**
+   * Method called to handle a channel.  The handler replaces any the channel had.
+   *
+   * @param channel The channel number.
+   * @param handler The handler, null to drop the channel's writes.
+   */
+  public synchronized void register(int channel, Handler handler)
+  {
+    Handler[] newHandlers = handlers.clone();
+    newHandlers[channel] = handler;
+    handlers = newHandlers;
+  }
+
+  /**
+   * Method called with a write to a channel.
+   *
+   * @param channel The channel number.
+   * @param value The 15 bits of channel data.
+   */
+  public void dispatch(int channel, int value)
+  {
+    if (Log.TRACE_PACKETS && Log.isEnabled(Log.Level.INFO))
+    {
+      Log.info("Received: Channel = %o, D = %d", channel, value);
+    }
+    Handler handler = handlers[channel & (CHANNELS - 1)];
+    if (handler == null)
+    {
+      writesDropped.incrementAndGet();
+      return;
+    }
+    writesDispatched.incrementAndGet();
+    handler.channelWritten(value);
+  }
+
+  /**
+   * Method to get a one line summary of the channel writes.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Channels: dispatched = " + writesDispatched.get() + ", dropped = " + writesDropped.get();
+  }
+
+  /**
+   * Used to send PROG 12 as simulator packets split across reads, with a write to a channel
+   * nobody handles in between, and check it reaches a fake display and the model.
+   *
+   * @param args The protocol version the fakes speak.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int version = args.length > 0 ? Integer.parseInt(args[0]) : SerialProtocol.VERSION_BINARY;
+    FakeArduino display = FakeArduino.connect(version, 2000, 115200, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY)[1];
+    SerialInterface serialInterface = SerialInterface.getInstance();
+
+    ChannelDispatcher channelDispatcher = ChannelDispatcher.getInstance();
+    channelDispatcher.registerDskyChannels();
+    PacketFramer framer = new PacketFramer(channelDispatcher::dispatch);
+    byte[] packets = new byte[8];
+    int progValue = (11 << 11) | (0x03 << 5) | 0x19;
+    PacketFramer.encode(032, 0x1234, packets, 0);
+    PacketFramer.encode(DISPLAY_CHANNEL, progValue, packets, 4);
+    framer.decode(packets, 0, 3);
+    framer.decode(packets, 3, 5);
+    TimeUnit.MILLISECONDS.sleep(500);
+
+    String program = DskyModel.getInstance().getSnapshot().getProgram();
+    boolean passed = display.getRelayWord(11) == progValue && program.equals("12") &&
+                     channelDispatcher.writesDropped.get() == 1;
+    System.out.println("Channels: PROG " + program + " from split packets, " + (passed ? "PASS" : "FAIL"));
+    System.out.println(channelDispatcher.getStatistics());
+    serialInterface.closeInterface();
+  }
+}
@@ -0,0 +1,234 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class watches the AGC's CLK1 line.  Each edge only adds one to a counter, so the line can
+            toggle at the AGC's clock rate without cost.  A thread samples the counter ten times a window
+            and works out the clock frequency over the last window.  The clock is running while each
+            sample saw at least the edges of the slowest clock allowed.  The clock stopping and starting
+            again are logged as events, with how long it was gone, and counted.  Whether the clock is
+            present decides whether the DSKY follows the AGC hardware or runs the simulator.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class ClockMonitor extends Thread
+{
+  // The samples taken each window.
+  private static final int SAMPLES = 10;
+
+  private final long window;
+  private final long sampleInterval;
+  private final long minEdges;
+
+  private final LongAdder edges = new LongAdder();
+
+  // The last SAMPLES + 1 samples, oldest first from next.
+  private final long[] sampleTimes = new long[SAMPLES + 1];
+  private final long[] sampleEdges = new long[SAMPLES + 1];
+  private int next = 0;
+  private int samplesTaken = 0;
+
+  private volatile boolean running = false;
+  private volatile double frequency = 0;
+  private long stoppedTime = 0;
+
+  // Statistics.
+  private final AtomicLong dropouts = new AtomicLong();
+  private volatile long longestDropout = 0;
+
+  /**
+   * Build the monitor.
+   *
+   * @param window The time the frequency is worked out over (ms).
+   * @param minFrequency The slowest clock counted as running (Hz).
+   */
+  public ClockMonitor(long window, int minFrequency)
+  {
+    super("Clock Monitor");
+    setDaemon(true);
+    this.window = TimeUnit.MILLISECONDS.toNanos(window);
+    this.sampleInterval = this.window / SAMPLES;
+
+    // Two edges a cycle; at least one edge a sample, so a slow clock isn't seen as stopping.
+    this.minEdges = Math.max(1, 2 * minFrequency * window / SAMPLES / 1000);
+  }
+
+  /**
+   * Method called for each CLK1 edge.
+   */
+  public void clockEdge()
+  {
+    edges.increment();
+  }
+
+  /**
+   * Method to determine if the clock is running.
+   *
+   * @return Whether or not the clock was toggling in the last sample.
+   */
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Method to get the clock frequency over the last window.
+   *
+   * @return The frequency (Hz).
+   */
+  public double getFrequency()
+  {
+    return frequency;
+  }
+
+  /**
+   * Method to wait for a window to be sampled and say whether the clock is running.
+   *
+   * @return Whether or not the clock is running.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public boolean waitForClock() throws InterruptedException
+  {
+    TimeUnit.NANOSECONDS.sleep(window + sampleInterval);
+    return running;
+  }
+
+  /**
+   * Loop sampling the edge counter until interrupted.
+   */
+  public void run()
+  {
+    long start = System.nanoTime();
+    for (long sample = 1; !isInterrupted(); sample++)
+    {
+      long wait = start + sample * sampleInterval - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos(wait);
+      }
+      takeSample(System.nanoTime(), edges.sum());
+    }
+  }
+
+  /**
+   * Internal method used to add a sample of the edge counter and look for the clock stopping or
+   * starting.
+   *
+   * @param time When the sample was taken.
+   * @param count The edges counted so far.
+   */
+  private void takeSample(long time, long count)
+  {
+    int last = (next + SAMPLES) % (SAMPLES + 1);
+    boolean toggling = samplesTaken > 0 && count - sampleEdges[last] >= minEdges;
+
+    sampleTimes[next] = time;
+    sampleEdges[next] = count;
+    next = (next + 1) % (SAMPLES + 1);
+    samplesTaken++;
+
+    // The oldest sample of the window is the one to be replaced next.
+    int oldest = samplesTaken > SAMPLES ? next : 0;
+    long span = time - sampleTimes[oldest];
+    frequency = span == 0 ? 0 : (count - sampleEdges[oldest]) / 2.0 * TimeUnit.SECONDS.toNanos(1) / span;
+
+    if (toggling && !running)
+    {
+      running = true;
+      if (stoppedTime != 0)
+      {
+        long dropout = TimeUnit.NANOSECONDS.toMillis(time - stoppedTime);
+        longestDropout = Math.max(longestDropout, dropout);
+        Log.warn("AGC clock restored after %d ms.", dropout);
+      }
+      else
+      {
+        Log.info("AGC clock running.");
+      }
+    }
+    else if (!toggling && running)
+    {
+      running = false;
+      stoppedTime = time;
+      dropouts.incrementAndGet();
+      Log.warn("AGC clock lost.");
+    }
+  }
+
+  /**
+   * Method to get a one line summary of the clock.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Clock: " + (running ? "running" : "stopped") + ", frequency = " + Math.round(frequency) +
+           " Hz, edges = " + edges.sum() + ", dropouts = " + dropouts.get() + " (longest " + longestDropout + " ms)";
+  }
+
+  /**
+   * Used to check the frequency is measured and a dropout is reported, and to time an edge.
+   *
+   * @param args The clock frequency to drive (Hz).
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int clockFrequency = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    ClockMonitor monitor = new ClockMonitor(500, 10);
+    monitor.start();
+    boolean passed = !monitor.waitForClock();
+
+    // Run the clock, stop it for a second, then run it again.
+    AtomicBoolean stopped = new AtomicBoolean();
+    Thread clock = new Thread(() ->
+    {
+      long period = TimeUnit.SECONDS.toNanos(1) / clockFrequency / 2;
+      long start = System.nanoTime();
+      for (long edge = 1; !Thread.currentThread().isInterrupted(); edge++)
+      {
+        LockSupport.parkNanos(start + edge * period - System.nanoTime());
+        if (!stopped.get())
+        {
+          monitor.clockEdge();
+        }
+      }
+    });
+    clock.setDaemon(true);
+    clock.start();
+    passed &= monitor.waitForClock();
+    double frequency = monitor.getFrequency();
+    passed &= Math.abs(frequency - clockFrequency) < clockFrequency * 0.2;
+
+    stopped.set(true);
+    TimeUnit.MILLISECONDS.sleep(1000);
+    passed &= !monitor.isRunning();
+    stopped.set(false);
+    passed &= monitor.waitForClock() && monitor.dropouts.get() == 1 && monitor.longestDropout >= 900;
+    clock.interrupt();
+    System.out.println(monitor.getStatistics());
+
+    // Time the edge counter alone.
+    int count = 10000000;
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+    {
+      monitor.clockEdge();
+    }
+    long time = System.nanoTime() - start;
+    System.out.println("Clock: " + Math.round(frequency) + " Hz measured, edge counted in " + (double)time / count +
+                       " ns, " + (passed ? "PASS" : "FAIL"));
+    Log.flush(1000);
+  }
+}
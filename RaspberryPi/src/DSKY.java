@@ -14,6 +14,19 @@
             If not then the control is obtained from the AGC simulator running on this Raspberry Pi.
 
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Print serial statistics on shutdown.
+            10/16/26  Keyboard input is event driven.
+            10/16/26  Print the display and indicator updates suppressed on shutdown.
+            10/16/26  Draw the display in frames.
+            10/16/26  Print the channel writes dispatched on shutdown.
+            10/16/26  Print the simulator connection statistics on shutdown.
+            10/16/26  Log asynchronously and print the log statistics on shutdown.
+            10/16/26  Print the control line edges handled on shutdown.
+            10/16/26  Run the hardware mode against a simulated AGC with --HWSIM.
+            10/16/26  Print the bus holds on shutdown.
+            10/16/26  Choose the AGC or simulator mode by whether the AGC clock is toggling.
+            10/16/26  Run the simulator if the simulated AGC can't be started.
+            10/16/26  Report the AGC clock through the log.
 */
 public class DSKY
 {
@@ -35,36 +48,89 @@ public class DSKY
 
     SerialInterface serialInterface = SerialInterface.getInstance();
     serialInterface.initInterface();
+    RenderScheduler.getInstance().startFrames();
 
     // Input is based on args.  By default run with the hardware simulator.
-    if (args[0].equalsIgnoreCase("--TEST"))
+    if (args.length > 0 && args[0].equalsIgnoreCase("--TEST"))
     {
       mode = Mode.TEST;
       AGCTestInterface = new AGCTestInterface();
       AGCTestInterface.init();
     }
+    else if (args.length > 0 && args[0].equalsIgnoreCase("--HWSIM"))
+    {
+      // The hardware mode against a simulated AGC on the channel bus.
+      mode = Mode.HWSIM;
+      agcInterface = new AGCInterface(SimulatedGpioBackend.create());
+      if (!agcInterface.init())
+      {
+        Log.error("The simulated AGC could not be started, running the simulator instead.");
+        agcInterface.closeInterface();
+        agcInterface = null;
+        mode = Mode.SWSIM;
+      }
+    }
     else
     {
-//      agcInterface = new AGCInterface();
-//      agcInterface.init();
-//      if (agcInterface.isHwPresent())
-//      {
-//        mode = Mode.AGC;
-//      }
-//      else
-//      {
+      // Follow the AGC hardware if its clock is toggling, otherwise run the simulator.
+      agcInterface = new AGCInterface();
+      if (agcInterface.init() && agcInterface.isHwPresent())
+      {
+        mode = Mode.AGC;
+        Log.info("AGC clock at %d Hz", Math.round(agcInterface.getClockMonitor().getFrequency()));
+      }
+      else
+      {
+        agcInterface.closeInterface();
+        agcInterface = null;
         mode = Mode.SWSIM;
-        simInterface = new SimInterface();
-        simInterface.initInterface();
-        simInterface.start();
-//      }
+      }
     }
 
+    if (mode == Mode.SWSIM)
+    {
+      simInterface = new SimInterface();
+      simInterface.initInterface();
+      simInterface.start();
+    }
+
+    // The shutdown hook can only use a final reference.
+    SimInterface simulator = simInterface;
+    AGCInterface agc = agcInterface;
+
+    // The service is normally stopped with a signal, so print the statistics from a shutdown hook.
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      Log.flush(1000);
+      serialInterface.printStatistics();
+      System.out.println(KeyboardInterface.getInstance().getStatistics());
+      System.out.println(DisplayInterface.getInstance().getShadow().getStatistics());
+      System.out.println("Indicator sends suppressed = " + IndicatorInterface.getInstance().getSuppressedCount());
+      System.out.println(RenderScheduler.getInstance().getStatistics());
+      System.out.println(ChannelDispatcher.getInstance().getStatistics());
+      System.out.println(EdgeDispatcher.getInstance().getStatistics());
+      if (simulator != null)
+      {
+        System.out.println(simulator.getStatistics());
+      }
+      if (agc != null)
+      {
+        System.out.println(agc.getBusHold().getStatistics());
+        System.out.println(agc.getClockMonitor().getStatistics());
+        if (agc.getBackend() instanceof SimulatedGpioBackend)
+        {
+          System.out.println(((SimulatedGpioBackend)agc.getBackend()).getStatistics());
+        }
+      }
+      System.out.println(Log.getStatistics());
+    }));
+
     KeyboardInterface keyboardInterface = KeyboardInterface.getInstance();
 
-    // This call hangs waiting for keyboard input.
+    // This call sleeps waiting for keyboard input.
     try
     {
+      keyboardInterface.initInterface();
       while (true)
       {
         int keyCode = keyboardInterface.readData();
@@ -72,7 +138,7 @@ public class DSKY
         {
           AGCTestInterface.assertKbStr();
         }
-        else if (mode == Mode.AGC)
+        else if (mode == Mode.AGC || mode == Mode.HWSIM)
         {
           agcInterface.assertKbStr();
         }
@@ -9,13 +9,25 @@
 
   Purpose:	This class is a singleton that provides the interface to the Display Arduino.  The Display
             Arduino displays the 7-segment LEDs along with the Computer Activity light.  The data
-            received from the AGC is persisted in the channel 10register.  This class decodes channel 10
-            data and uses this data to update the display when a DISP control pin is asserted.
+            received from the AGC is persisted in the channel 10 register, an int updated without locks.
+            This class decodes channel 10 data and uses this data to update the display when a DISP
+            control pin is asserted.  A shadow of the display holds the last value sent for each relay
+            word; a value that is already shown is not sent again, and the display is redrawn from the
+            shadow after a reconnect.  When the display is drawn in frames the render scheduler decides
+            when each relay word is sent.
 
   Mods:		  07/15/22  Initial Release.
             07/16/22  Improve performance.
+            10/16/26  Keep the last value of each relay word for refreshing the display.
+            10/16/26  Only send relay words that have changed.
+            10/16/26  Keep the channel 10 register as an atomic int.
+            10/16/26  Draw the relay words in frames.
+            10/16/26  Keep the decoded DSKY model up to date.
+            10/16/26  Handle channel 10 writes from the channel dispatcher.
+            10/16/26  Draw a value again in the next frame when it could not be sent.
+            10/16/26  Update the shadow and send under one lock.
 */
-import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DisplayInterface
 {
@@ -24,7 +36,10 @@ public class DisplayInterface
   private final SerialInterface serialInterface;
 
   // Index starts with 0.
-  private final BitSet channel10Register = new BitSet(15);
+  private final AtomicInteger channel10Register = new AtomicInteger();
+
+  // What the display is showing.
+  private final DisplayShadow shadow = new DisplayShadow();
 
   public static DisplayInterface getInstance()
   {
@@ -44,10 +59,7 @@ public class DisplayInterface
    */
   public void setChannel10Bit(int bit, boolean value)
   {
-    if (value)
-      channel10Register.set(bit);
-    else
-      channel10Register.clear(bit);
+    Utils.setBit(channel10Register, bit, value);
   }
 
   /**
@@ -58,27 +70,106 @@ public class DisplayInterface
   public void setChannel10Register(int value)
   {
     // Don't process the MSB.
-    for (int i = 14; i >= 0; i--)
-    {
-      boolean nextBit = (value & (1 << i)) != 0;
-      setChannel10Bit(i, nextBit);
-    }
+    channel10Register.set(value & 0x7FFF);
   }
 
   /**
    * Method called to reset the display back to a power on state.
    */
-  public void resetDisplay()
+  public synchronized void resetDisplay()
   {
+    RenderScheduler.getInstance().clearDisplay();
     serialInterface.sendReset();
-    channel10Register.clear();
+    channel10Register.set(0);
+    shadow.clear();
+    DskyModel.getInstance().displayReset();
+  }
+
+  /**
+   * Method called when the AGC writes channel 10.  A zero value is the AGC clearing the
+   * channel after a relay word and is ignored.
+   *
+   * @param value The channel 10 value.
+   */
+  public void setChannel10(int value)
+  {
+    if (value != 0)
+    {
+      setChannel10Register(value);
+      decodeData();
+    }
   }
 
   /**
-   * Method called to send the channel 10 register value to the Display Arduino.
+   * Method called to send the channel 10 register value to the Display Arduino, or hand it
+   * to the render scheduler if the display is drawn in frames.
    */
   public void decodeData()
   {
-    serialInterface.sendDisplayCommand(Utils.toInt(channel10Register));
+    int value = channel10Register.get();
+    if (!RenderScheduler.getInstance().displayChanged(value))
+    {
+      publish(value);
+    }
+  }
+
+  /**
+   * Method called to send a channel 10 value to the Display Arduino.  The value is not sent
+   * if the display already shows it.  The shadow is updated and the value queued under one
+   * lock, so a refresh or reset on another thread can't slip a different value in between.
+   *
+   * @param value The channel 10 value.
+   * @return Whether or not the value was sent.
+   */
+  public synchronized boolean publish(int value)
+  {
+    if (!shadow.update(value))
+    {
+      return false;
+    }
+    if (!serialInterface.sendDisplayCommand(value))
+    {
+      sendFailed(value);
+      return false;
+    }
+    DskyModel.getInstance().relayWordShown(value);
+    return true;
+  }
+
+  /**
+   * Method called to send the last value of every relay word again, e.g. after the Display
+   * Arduino has been reconnected.
+   */
+  public synchronized void refresh()
+  {
+    for (int value : shadow.getFrame())
+    {
+      if (value != DisplayShadow.NOT_SENT && !serialInterface.sendDisplayCommand(value))
+      {
+        sendFailed(value);
+      }
+    }
+  }
+
+  /**
+   * Internal method used to make sure a value that could not be sent is sent again, even if
+   * the AGC writes the same value next.
+   *
+   * @param value The channel 10 value that was not sent.
+   */
+  private void sendFailed(int value)
+  {
+    shadow.forget(value);
+    RenderScheduler.getInstance().displayFailed(value);
+  }
+
+  /**
+   * Method to get the shadow of what the display is showing.
+   *
+   * @return The display shadow.
+   */
+  public DisplayShadow getShadow()
+  {
+    return shadow;
   }
 }
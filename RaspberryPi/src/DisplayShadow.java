@@ -0,0 +1,153 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a shadow of what the Display Arduino is showing.  It holds the last channel 10
+            value sent for each relay word.  The AGC rewrites the relay words over and over while the
+            display is unchanged, so a value the same as the one already shown is suppressed rather
+            than sent.  The shadow is also the one place the full current frame is read from when the
+            display has to be redrawn.  The number of sent and suppressed updates is kept.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Forget the relay word, not only the value, when a send fails.
+*/
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DisplayShadow
+{
+  // Relay words 1 - 12 are used; the relay word is 4 bits so the array covers them all.
+  public static final int RELAY_WORDS = 16;
+
+  // The value of a relay word that has not been sent since the last reset.
+  public static final int NOT_SENT = -1;
+
+  private final AtomicIntegerArray values = new AtomicIntegerArray(RELAY_WORDS);
+
+  // Statistics.
+  private final AtomicLong updatesSent = new AtomicLong();
+  private final AtomicLong updatesSuppressed = new AtomicLong();
+
+  public DisplayShadow()
+  {
+    clear();
+  }
+
+  /**
+   * Method to get the relay word of a channel 10 value.  The format of the value is
+   * xRRR RSHH HHHL LLLL where L = DSPL, H = DSPH, S = sign bit and R = relay word.
+   *
+   * @param value The channel 10 value.
+   * @return The relay word, 0 - 15.
+   */
+  public static int relayWord(int value)
+  {
+    return (value >> 11) & 0x000F;
+  }
+
+  /**
+   * Method called with a new channel 10 value.  The value is recorded as shown.
+   *
+   * @param value The channel 10 value.
+   * @return Whether or not the value differs from the one shown and must be sent.
+   */
+  public boolean update(int value)
+  {
+    value &= 0x7FFF;
+    if (values.getAndSet(relayWord(value), value) == value)
+    {
+      updatesSuppressed.incrementAndGet();
+      return false;
+    }
+    updatesSent.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Method called when a value could not be sent, so the next value for the relay word
+   * is sent even if it is the same.  A later value recorded for the relay word is forgotten
+   * too, as it may have been coalesced into the send that failed.
+   *
+   * @param value The channel 10 value that was not sent.
+   */
+  public void forget(int value)
+  {
+    values.set(relayWord(value), NOT_SENT);
+  }
+
+  /**
+   * Method to get the value shown for a relay word.
+   *
+   * @param relayWord The relay word, 0 - 15.
+   * @return The channel 10 value, NOT_SENT if none since the last reset.
+   */
+  public int get(int relayWord)
+  {
+    return values.get(relayWord);
+  }
+
+  /**
+   * Method to get the full current frame.
+   *
+   * @return The channel 10 value of each relay word, NOT_SENT for those not sent.
+   */
+  public int[] getFrame()
+  {
+    int[] frame = new int[RELAY_WORDS];
+    for (int i = 0; i < RELAY_WORDS; i++)
+    {
+      frame[i] = values.get(i);
+    }
+    return frame;
+  }
+
+  /**
+   * Method called when the display has been blanked.
+   */
+  public void clear()
+  {
+    for (int i = 0; i < RELAY_WORDS; i++)
+    {
+      values.set(i, NOT_SENT);
+    }
+  }
+
+  /**
+   * Method to get the number of updates sent.
+   *
+   * @return The number of updates sent.
+   */
+  public long getSentCount()
+  {
+    return updatesSent.get();
+  }
+
+  /**
+   * Method to get the number of updates suppressed because the value was already shown.
+   *
+   * @return The number of updates suppressed.
+   */
+  public long getSuppressedCount()
+  {
+    return updatesSuppressed.get();
+  }
+
+  /**
+   * Method to get a one line summary of the updates.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    long sent = updatesSent.get();
+    long suppressed = updatesSuppressed.get();
+    long total = sent + suppressed;
+    return "Display shadow: updates = " + total + ", sent = " + sent + ", suppressed = " + suppressed +
+           " (" + (total == 0 ? 0 : suppressed * 100 / total) + "%)";
+  }
+}
@@ -0,0 +1,569 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton that knows what the DSKY is showing.  The channel 10 relay words sent
+            to the display are decoded with lookup tables built once from the 5-bit AGC digit codes, so
+            each digit position (MD1 - R3D5) and register sign can be read without any branching on the
+            codes.  The indicator lights, COMP ACTY and verb/noun flash are kept as well.
+
+            The state is held in an immutable snapshot that is replaced on every change, so taking a
+            snapshot costs nothing and a snapshot never changes under its reader.  Listeners are told
+            about each digit, sign and light that changes rather than being handed the whole state.
+            Listeners are called in order on the thread making the change and must return quickly.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Check the model against a fake display.
+*/
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class DskyModel
+{
+  // The character shown for each 5-bit AGC digit code.  Codes the display can't show are blank.
+  private static final char BLANK = ' ';
+  private static final char[] DIGITS = digitTable();
+
+  // The digit positions of the DSPL (low) and DSPH (high) halves of each relay word, null if unused.
+  private static final DisplayCommand[][] WORD_POSITIONS = new DisplayCommand[DisplayShadow.RELAY_WORDS][2];
+
+  // The relay word and half of each digit position, -1 for positions that are not digits.
+  private static final int[] POSITION_WORDS = new int[DisplayCommand.values().length];
+  private static final int[] POSITION_SHIFTS = new int[DisplayCommand.values().length];
+
+  // The relay words carrying the plus and minus sign bit of each register.
+  private static final DisplayCommand[] SIGNS = { DisplayCommand.R1S, DisplayCommand.R2S, DisplayCommand.R3S };
+  private static final int[] PLUS_WORDS = { 7, 5, 2 };
+  private static final int[] MINUS_WORDS = { 6, 4, 1 };
+  private static final int SIGN_BIT = 1 << 10;
+
+  // The register of each sign position, -1 for positions that are not signs.
+  private static final int[] POSITION_SIGNS = new int[DisplayCommand.values().length];
+
+  // The light of each indicator bit, in the order of the IndicatorInterface bits.
+  private static final IndicatorCommand[] DISPLAY_LIGHTS =
+      { IndicatorCommand.NO_ATT, IndicatorCommand.GIMBAL_LOCK, IndicatorCommand.PROG, IndicatorCommand.TRACKER,
+        IndicatorCommand.ALT, IndicatorCommand.VEL };
+  private static final IndicatorCommand[] OTHER_LIGHTS =
+      { IndicatorCommand.UPLINK_ACTY, IndicatorCommand.KEY_REL, IndicatorCommand.OPR_ERR, IndicatorCommand.TEMP,
+        IndicatorCommand.STBY, IndicatorCommand.RESTART };
+
+  static
+  {
+    Arrays.fill(POSITION_WORDS, -1);
+    Arrays.fill(POSITION_SIGNS, -1);
+    for (int register = 0; register < SIGNS.length; register++)
+    {
+      POSITION_SIGNS[SIGNS[register].ordinal()] = register;
+    }
+    positions(11, DisplayCommand.MD2, DisplayCommand.MD1);
+    positions(10, DisplayCommand.VD2, DisplayCommand.VD1);
+    positions(9, DisplayCommand.ND2, DisplayCommand.ND1);
+    positions(8, DisplayCommand.R1D1, null);
+    positions(7, DisplayCommand.R1D3, DisplayCommand.R1D2);
+    positions(6, DisplayCommand.R1D5, DisplayCommand.R1D4);
+    positions(5, DisplayCommand.R2D2, DisplayCommand.R2D1);
+    positions(4, DisplayCommand.R2D4, DisplayCommand.R2D3);
+    positions(3, DisplayCommand.R3D1, DisplayCommand.R2D5);
+    positions(2, DisplayCommand.R3D3, DisplayCommand.R3D2);
+    positions(1, DisplayCommand.R3D5, DisplayCommand.R3D4);
+  }
+
+  private static final DskyModel instance = new DskyModel();
+
+  private volatile Snapshot snapshot = new Snapshot(new int[DisplayShadow.RELAY_WORDS], 0, 0, false, false, 0);
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Receives the changes to what the DSKY shows.  Only the methods of interest need be
+   * implemented.
+   */
+  public interface Listener
+  {
+    /**
+     * Method called when a digit or register sign changes.
+     *
+     * @param position The digit position, MD1 - R3D5, or the sign R1S - R3S.
+     * @param value The digit, '+', '-' or blank.
+     */
+    default void digitChanged(DisplayCommand position, char value) { }
+
+    /**
+     * Method called when an indicator light changes.
+     *
+     * @param indicator The indicator.
+     * @param lit Whether or not it is lit.
+     */
+    default void indicatorChanged(IndicatorCommand indicator, boolean lit) { }
+
+    /**
+     * Method called when the COMP ACTY light changes.
+     *
+     * @param lit Whether or not it is lit.
+     */
+    default void compActyChanged(boolean lit) { }
+
+    /**
+     * Method called when the verb/noun flash starts or stops.
+     *
+     * @param flashing Whether or not the verb and noun flash.
+     */
+    default void flashChanged(boolean flashing) { }
+  }
+
+  /**
+   * What the DSKY shows at one moment.  A snapshot never changes.
+   */
+  public static final class Snapshot
+  {
+    private final int[] relayWords;
+    private final int displayIndicators;
+    private final int otherIndicators;
+    private final boolean compActy;
+    private final boolean flashing;
+    private final long sequence;
+
+    private Snapshot(int[] relayWords, int displayIndicators, int otherIndicators, boolean compActy,
+                     boolean flashing, long sequence)
+    {
+      this.relayWords = relayWords;
+      this.displayIndicators = displayIndicators;
+      this.otherIndicators = otherIndicators;
+      this.compActy = compActy;
+      this.flashing = flashing;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Method to get a digit or register sign.
+     *
+     * @param position The digit position, MD1 - R3D5, or the sign R1S - R3S.
+     * @return The digit, '+', '-' or blank.
+     */
+    public char getDigit(DisplayCommand position)
+    {
+      int relayWord = POSITION_WORDS[position.ordinal()];
+      if (relayWord < 0)
+      {
+        int register = POSITION_SIGNS[position.ordinal()];
+        return register < 0 ? BLANK : sign(relayWords, register);
+      }
+      return DIGITS[(relayWords[relayWord] >> POSITION_SHIFTS[position.ordinal()]) & 0x1F];
+    }
+
+    /**
+     * Method to get the program number.
+     *
+     * @return The two program digits.
+     */
+    public String getProgram()
+    {
+      return digits(DisplayCommand.MD1, DisplayCommand.MD2);
+    }
+
+    /**
+     * Method to get the verb.
+     *
+     * @return The two verb digits.
+     */
+    public String getVerb()
+    {
+      return digits(DisplayCommand.VD1, DisplayCommand.VD2);
+    }
+
+    /**
+     * Method to get the noun.
+     *
+     * @return The two noun digits.
+     */
+    public String getNoun()
+    {
+      return digits(DisplayCommand.ND1, DisplayCommand.ND2);
+    }
+
+    /**
+     * Method to get a register.
+     *
+     * @param register The register, 1 - 3.
+     * @return The sign followed by the five digits.
+     */
+    public String getRegister(int register)
+    {
+      int first = DisplayCommand.R1D1.ordinal() + (register - 1) * 6;
+      DisplayCommand[] positions = DisplayCommand.values();
+      return digits(SIGNS[register - 1], positions[first], positions[first + 1], positions[first + 2],
+                    positions[first + 3], positions[first + 4]);
+    }
+
+    /**
+     * Method to determine if an indicator is lit.
+     *
+     * @param indicator The indicator.
+     * @return Whether or not it is lit.
+     */
+    public boolean isLit(IndicatorCommand indicator)
+    {
+      for (int bit = 0; bit < DISPLAY_LIGHTS.length; bit++)
+      {
+        if (DISPLAY_LIGHTS[bit] == indicator)
+        {
+          return Utils.getBit(displayIndicators, bit);
+        }
+        if (OTHER_LIGHTS[bit] == indicator)
+        {
+          return Utils.getBit(otherIndicators, bit);
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Method to determine if COMP ACTY is lit.
+     *
+     * @return Whether or not COMP ACTY is lit.
+     */
+    public boolean isCompActy()
+    {
+      return compActy;
+    }
+
+    /**
+     * Method to determine if the verb and noun flash.
+     *
+     * @return Whether or not the verb and noun flash.
+     */
+    public boolean isFlashing()
+    {
+      return flashing;
+    }
+
+    /**
+     * Method to get the channel 10 value shown for a relay word.
+     *
+     * @param relayWord The relay word, 0 - 15.
+     * @return The channel 10 value, 0 if none has been shown.
+     */
+    public int getRelayWord(int relayWord)
+    {
+      return relayWords[relayWord];
+    }
+
+    /**
+     * Method to get the number of changes made before this snapshot.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence()
+    {
+      return sequence;
+    }
+
+    /**
+     * Internal method used to put digits together.
+     *
+     * @param positions The digit positions.
+     * @return The digits.
+     */
+    private String digits(DisplayCommand... positions)
+    {
+      char[] chars = new char[positions.length];
+      for (int i = 0; i < positions.length; i++)
+      {
+        chars[i] = getDigit(positions[i]);
+      }
+      return new String(chars);
+    }
+
+    public String toString()
+    {
+      StringBuilder builder = new StringBuilder();
+      builder.append("PROG ").append(getProgram()).append(" VERB ").append(getVerb()).append(" NOUN ")
+             .append(getNoun()).append(" R1 ").append(getRegister(1)).append(" R2 ").append(getRegister(2))
+             .append(" R3 ").append(getRegister(3));
+      if (compActy)
+      {
+        builder.append(" COMP_ACTY");
+      }
+      if (flashing)
+      {
+        builder.append(" FLASH");
+      }
+      for (IndicatorCommand indicator : IndicatorCommand.values())
+      {
+        if (isLit(indicator))
+        {
+          builder.append(' ').append(indicator);
+        }
+      }
+      return builder.toString();
+    }
+  }
+
+  public static DskyModel getInstance()
+  {
+    return instance;
+  }
+
+  private DskyModel() { }
+
+  /**
+   * Internal method used to build the table of digit characters.
+   *
+   * @return The character of each digit code.
+   */
+  private static char[] digitTable()
+  {
+    char[] table = new char[32];
+    Arrays.fill(table, BLANK);
+    int[] codes = { 0x15, 0x03, 0x19, 0x1B, 0x0F, 0x1E, 0x1C, 0x13, 0x1D, 0x1F };
+    for (int digit = 0; digit < codes.length; digit++)
+    {
+      table[codes[digit]] = (char)('0' + digit);
+    }
+    return table;
+  }
+
+  /**
+   * Internal method used to record the digit positions of a relay word.
+   *
+   * @param relayWord The relay word.
+   * @param low The position of the DSPL digit, null if unused.
+   * @param high The position of the DSPH digit, null if unused.
+   */
+  private static void positions(int relayWord, DisplayCommand low, DisplayCommand high)
+  {
+    WORD_POSITIONS[relayWord][0] = low;
+    WORD_POSITIONS[relayWord][1] = high;
+    if (low != null)
+    {
+      POSITION_WORDS[low.ordinal()] = relayWord;
+      POSITION_SHIFTS[low.ordinal()] = 0;
+    }
+    if (high != null)
+    {
+      POSITION_WORDS[high.ordinal()] = relayWord;
+      POSITION_SHIFTS[high.ordinal()] = 5;
+    }
+  }
+
+  /**
+   * Internal method used to decode the sign of a register.  As on the display, plus wins
+   * if both sign bits are set.
+   *
+   * @param relayWords The relay words.
+   * @param register The register, 0 - 2.
+   * @return '+', '-' or blank.
+   */
+  private static char sign(int[] relayWords, int register)
+  {
+    if ((relayWords[PLUS_WORDS[register]] & SIGN_BIT) != 0)
+    {
+      return '+';
+    }
+    return (relayWords[MINUS_WORDS[register]] & SIGN_BIT) != 0 ? '-' : BLANK;
+  }
+
+  /**
+   * Method to get what the DSKY is showing.
+   *
+   * @return The current snapshot.
+   */
+  public Snapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+  /**
+   * Method called to be told about changes.
+   *
+   * @param listener The listener.
+   */
+  public void addListener(Listener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * Method called to stop being told about changes.
+   *
+   * @param listener The listener.
+   */
+  public void removeListener(Listener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Method called when a relay word has been sent to the display.
+   *
+   * @param value The channel 10 value.
+   */
+  public synchronized void relayWordShown(int value)
+  {
+    int relayWord = DisplayShadow.relayWord(value);
+    value &= 0x7FFF;
+    Snapshot old = snapshot;
+    int oldValue = old.relayWords[relayWord];
+    if (oldValue == value)
+    {
+      return;
+    }
+
+    int[] relayWords = old.relayWords.clone();
+    relayWords[relayWord] = value;
+    snapshot = new Snapshot(relayWords, old.displayIndicators, old.otherIndicators, old.compActy, old.flashing,
+                            old.sequence + 1);
+    if (listeners.isEmpty())
+    {
+      return;
+    }
+
+    for (int half = 0; half < 2; half++)
+    {
+      DisplayCommand position = WORD_POSITIONS[relayWord][half];
+      int shift = half * 5;
+      if (position != null && ((oldValue ^ value) >> shift & 0x1F) != 0)
+      {
+        char digit = DIGITS[(value >> shift) & 0x1F];
+        for (Listener listener : listeners)
+        {
+          listener.digitChanged(position, digit);
+        }
+      }
+    }
+
+    for (int register = 0; register < SIGNS.length; register++)
+    {
+      char sign = sign(relayWords, register);
+      if (sign != sign(old.relayWords, register))
+      {
+        for (Listener listener : listeners)
+        {
+          listener.digitChanged(SIGNS[register], sign);
+        }
+      }
+    }
+  }
+
+  /**
+   * Method called when the indicators have changed.
+   *
+   * @param displayIndicators The display indicator bits.
+   * @param otherIndicators The other indicator bits.
+   * @param compActy Whether or not COMP ACTY is lit.
+   * @param flashing Whether or not the verb and noun flash.
+   */
+  public synchronized void indicatorsShown(int displayIndicators, int otherIndicators, boolean compActy,
+                                           boolean flashing)
+  {
+    Snapshot old = snapshot;
+    if (old.displayIndicators == displayIndicators && old.otherIndicators == otherIndicators &&
+        old.compActy == compActy && old.flashing == flashing)
+    {
+      return;
+    }
+
+    snapshot = new Snapshot(old.relayWords, displayIndicators, otherIndicators, compActy, flashing,
+                            old.sequence + 1);
+    for (Listener listener : listeners)
+    {
+      for (int bit = 0; bit < DISPLAY_LIGHTS.length; bit++)
+      {
+        if (Utils.getBit(old.displayIndicators ^ displayIndicators, bit))
+        {
+          listener.indicatorChanged(DISPLAY_LIGHTS[bit], Utils.getBit(displayIndicators, bit));
+        }
+        if (Utils.getBit(old.otherIndicators ^ otherIndicators, bit))
+        {
+          listener.indicatorChanged(OTHER_LIGHTS[bit], Utils.getBit(otherIndicators, bit));
+        }
+      }
+      if (old.compActy != compActy)
+      {
+        listener.compActyChanged(compActy);
+      }
+      if (old.flashing != flashing)
+      {
+        listener.flashChanged(flashing);
+      }
+    }
+  }
+
+  /**
+   * Method called when the display has been reset and all the digits are blank.
+   */
+  public void displayReset()
+  {
+    for (int relayWord = 0; relayWord < DisplayShadow.RELAY_WORDS; relayWord++)
+    {
+      relayWordShown(relayWord << 11);
+    }
+  }
+
+  /**
+   * Used to show +12345 in R1 on a fake display and check the model decodes what the display
+   * shows, with one event per change, and to time a register read.
+   *
+   * @param args The protocol version the fakes speak.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int version = args.length > 0 ? Integer.parseInt(args[0]) : SerialProtocol.VERSION_BINARY;
+    FakeArduino display = FakeArduino.connect(version, 2000, 115200, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY)[1];
+    SerialInterface serialInterface = SerialInterface.getInstance();
+
+    IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+    indicatorInterface.setVel(true);
+    indicatorInterface.setTemp(true);
+    indicatorInterface.sendDisplayIndicatorsCommand();
+    indicatorInterface.sendOtherIndidatorsCommand();
+
+    DskyModel dskyModel = DskyModel.getInstance();
+    List<String> events = new CopyOnWriteArrayList<>();
+    Listener listener = new Listener()
+    {
+      @Override
+      public void digitChanged(DisplayCommand position, char value)
+      {
+        events.add(position + "=" + value);
+      }
+    };
+    dskyModel.addListener(listener);
+    DisplayInterface displayInterface = DisplayInterface.getInstance();
+    int[] r1Words = { (8 << 11) | 0x03, (7 << 11) | (1 << 10) | (0x19 << 5) | 0x1B, (6 << 11) | (0x0F << 5) | 0x1E };
+    for (int value : r1Words)
+    {
+      displayInterface.setChannel10Register(value);
+      displayInterface.decodeData();
+    }
+    TimeUnit.MILLISECONDS.sleep(500);
+    dskyModel.removeListener(listener);
+    Snapshot snapshot = dskyModel.getSnapshot();
+    boolean passed = snapshot.getRegister(1).equals("+12345") && events.size() == 6 &&
+                     snapshot.isLit(IndicatorCommand.VEL) && snapshot.isLit(IndicatorCommand.TEMP);
+    for (int relayWord = 1; relayWord <= 11; relayWord++)
+    {
+      passed &= snapshot.getRelayWord(relayWord) == display.getRelayWord(relayWord);
+    }
+
+    long snapshotStart = System.nanoTime();
+    int snapshotChars = 0;
+    for (int i = 0; i < 100000; i++)
+    {
+      snapshotChars += dskyModel.getSnapshot().getRegister(1 + i % 3).length();
+    }
+    long snapshotTime = System.nanoTime() - snapshotStart;
+    System.out.println("Model: R1 " + snapshot.getRegister(1) + ", " + events.size() + " events, register read in " +
+                       snapshotTime / Math.max(1, snapshotChars / 6) + " ns, " + (passed ? "PASS" : "FAIL"));
+    System.out.println(snapshot);
+    serialInterface.closeInterface();
+  }
+}
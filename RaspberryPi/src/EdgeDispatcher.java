@@ -0,0 +1,314 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton thread that handles the AGC control line edges.  The GPIO listeners only
+            capture each edge, with the time and the channel bus, into a ring; everything slow, such as
+            sending to the Arduinos or holding the bus for a key, is done here.  A strobe that arrives
+            while an earlier one is being handled waits in its ring instead of being delayed or lost.
+            Each control line has its own ring, which the backend may fill from more than one thread at
+            once, and the edges are handled oldest first across the rings.  The time from the edge to its
+            capture and from the capture to it being handled are measured, along with the edges lost to
+            full rings, which are logged as they happen.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  A line's edges may be captured from more than one thread.
+            10/16/26  Stop handling edges when the interface closes.
+            10/16/26  Size the rings for a startup pause and log overflows as they happen.
+            10/16/26  Handle STBY edges.
+*/
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class EdgeDispatcher extends Thread
+{
+  public enum Edge
+  {
+    DISP,
+    INDC,
+    KBD1,
+    RPRO,
+    RST,
+    STBY,
+    PARALM
+  }
+
+  // Enough for half a second of DISP edges at 5000 strobes/s, so a class loading or JIT pause in
+  // the handler, as at startup, doesn't lose any.
+  private static final int RING_SIZE = 4096;
+
+  // The longest the thread sleeps before looking at the rings again (ms).
+  private static final long IDLE_TIMEOUT = 100;
+
+  private static final Edge[] EDGES = Edge.values();
+
+  private static final EdgeDispatcher instance = new EdgeDispatcher();
+
+  private final EdgeRing[] rings = new EdgeRing[EDGES.length];
+
+  // The overflows of each ring already logged; only used by the dispatcher thread.
+  private final long[] overflowsLogged = new long[EDGES.length];
+
+  private volatile Handler handler = null;
+  private volatile boolean waiting = false;
+
+  // Statistics.
+  private final AtomicLong edgesHandled = new AtomicLong();
+  private final AtomicLong totalCaptureLatency = new AtomicLong();
+  private final AtomicLong maxCaptureLatency = new AtomicLong();
+  private final AtomicLong totalHandleLatency = new AtomicLong();
+  private final AtomicLong maxHandleLatency = new AtomicLong();
+
+  /**
+   * Handles the edges.
+   */
+  public interface Handler
+  {
+    /**
+     * Method called on the dispatcher thread for each edge, oldest first.
+     *
+     * @param edge The control line.
+     * @param high Whether the line went high or low.
+     * @param word The channel bus at the edge.
+     */
+    void edgeCaptured(Edge edge, boolean high, int word);
+  }
+
+  public static EdgeDispatcher getInstance()
+  {
+    return instance;
+  }
+
+  private EdgeDispatcher()
+  {
+    super("Edge Dispatcher");
+    setDaemon(true);
+    for (int i = 0; i < rings.length; i++)
+    {
+      rings[i] = new EdgeRing(RING_SIZE);
+    }
+  }
+
+  /**
+   * Method called to start handling edges.
+   *
+   * @param edgeHandler The handler.
+   */
+  public synchronized void startDispatching(Handler edgeHandler)
+  {
+    handler = edgeHandler;
+    if (getState() == State.NEW)
+    {
+      start();
+    }
+  }
+
+  /**
+   * Method called to stop handling edges.  Edges captured from then on are dropped, unless
+   * another handler has been given since.
+   *
+   * @param edgeHandler The handler given to startDispatching().
+   */
+  public synchronized void stopDispatching(Handler edgeHandler)
+  {
+    if (handler == edgeHandler)
+    {
+      handler = null;
+    }
+  }
+
+  /**
+   * Method called from a GPIO listener to capture an edge.  Any number of threads may capture
+   * the edges of a control line at once; they are handled in the order they were captured.
+   * This method does not block.
+   *
+   * @param edge The control line.
+   * @param edgeTime When the edge happened, as near as is known (System.nanoTime()).
+   * @param high Whether the line went high or low.
+   * @param word The channel bus at the edge.
+   */
+  public void capture(Edge edge, long edgeTime, boolean high, int word)
+  {
+    if (rings[edge.ordinal()].offer(edgeTime, high, word) && waiting)
+    {
+      LockSupport.unpark(this);
+    }
+  }
+
+  /**
+   * Loop handling the captured edges, oldest first.
+   */
+  public void run()
+  {
+    while (true)
+    {
+      EdgeRing oldest = null;
+      int oldestEdge = 0;
+      for (int i = 0; i < rings.length; i++)
+      {
+        EdgeRing ring = rings[i];
+        long overflows = ring.getOverflows();
+        if (overflows != overflowsLogged[i])
+        {
+          Log.warn("%d %s edges lost to a full ring.", overflows - overflowsLogged[i], EDGES[i]);
+          overflowsLogged[i] = overflows;
+        }
+        if (!ring.isEmpty() && (oldest == null || ring.peekEdgeTime() - oldest.peekEdgeTime() < 0))
+        {
+          oldest = ring;
+          oldestEdge = i;
+        }
+      }
+
+      if (oldest == null)
+      {
+        // Say we are about to sleep, then look once more so an edge captured in between isn't missed.
+        waiting = true;
+        boolean empty = true;
+        for (EdgeRing ring : rings)
+        {
+          empty &= ring.isEmpty();
+        }
+        if (empty)
+        {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT));
+        }
+        waiting = false;
+        continue;
+      }
+
+      long now = System.nanoTime();
+      long captureLatency = oldest.peekCaptureTime() - oldest.peekEdgeTime();
+      long handleLatency = now - oldest.peekCaptureTime();
+      boolean high = oldest.peekLevel();
+      int word = oldest.peekWord();
+      oldest.remove();
+
+      edgesHandled.incrementAndGet();
+      totalCaptureLatency.addAndGet(captureLatency);
+      maxCaptureLatency.accumulateAndGet(captureLatency, Math::max);
+      totalHandleLatency.addAndGet(handleLatency);
+      maxHandleLatency.accumulateAndGet(handleLatency, Math::max);
+
+      Handler edgeHandler = handler;
+      if (edgeHandler != null)
+      {
+        try
+        {
+          edgeHandler.edgeCaptured(EDGES[oldestEdge], high, word);
+        }
+        catch (RuntimeException e)
+        {
+          Log.error(e, "Handling %s failed.", EDGES[oldestEdge]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Method to get the number of edges lost because their ring was full.
+   *
+   * @return The number of overflows.
+   */
+  public long getOverflows()
+  {
+    long overflows = 0;
+    for (EdgeRing ring : rings)
+    {
+      overflows += ring.getOverflows();
+    }
+    return overflows;
+  }
+
+  /**
+   * Method to get a one line summary of the edges.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    long handled = edgesHandled.get();
+    return "Edges: handled = " + handled + ", overflows = " + getOverflows() + ", edge to capture = " +
+           (handled == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalCaptureLatency.get() / handled)) + " us (max " +
+           TimeUnit.NANOSECONDS.toMicros(maxCaptureLatency.get()) + " us), capture to handled = " +
+           (handled == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalHandleLatency.get() / handled)) + " us (max " +
+           TimeUnit.NANOSECONDS.toMicros(maxHandleLatency.get()) + " us)";
+  }
+
+  /**
+   * Used to check the edges are handled in order while a slow handler falls behind, and to
+   * measure the latencies.
+   *
+   * @param args The number of edges per control line and the handler's time per DISP edge (us).
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    long dispTime = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+    // Each edge carries its sequence number; each line's edges must arrive in order, less any
+    // lost to a full ring.
+    int[] lastWord = new int[EDGES.length];
+    Arrays.fill(lastWord, -1);
+    boolean[] inOrder = { true };
+    long[] lastEdge = { 0 };
+    EdgeDispatcher dispatcher = getInstance();
+    dispatcher.startDispatching((edge, high, word) ->
+    {
+      inOrder[0] &= word > lastWord[edge.ordinal()];
+      lastWord[edge.ordinal()] = word;
+      if (edge == Edge.DISP)
+      {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(dispTime));
+      }
+      lastEdge[0] = System.nanoTime();
+    });
+
+    // A thread per control line, as GPIO listeners are, each strobing every 200 us.
+    Thread[] producers = new Thread[EDGES.length];
+    for (Edge edge : EDGES)
+    {
+      producers[edge.ordinal()] = new Thread(() ->
+      {
+        for (int i = 0; i < count; i++)
+        {
+          dispatcher.capture(edge, System.nanoTime(), (i & 1) == 0, i);
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread producer : producers)
+    {
+      producer.start();
+    }
+    for (Thread producer : producers)
+    {
+      producer.join();
+    }
+    long captureTime = System.nanoTime() - start;
+
+    // Wait for the handler to catch up.
+    long end = System.currentTimeMillis() + 10000;
+    while (dispatcher.edgesHandled.get() + dispatcher.getOverflows() < (long)count * EDGES.length &&
+           System.currentTimeMillis() < end)
+    {
+      Thread.sleep(10);
+    }
+    boolean passed = inOrder[0] &&
+                     dispatcher.edgesHandled.get() + dispatcher.getOverflows() == (long)count * EDGES.length;
+    System.out.println("Edges: " + count * EDGES.length + " captured in " +
+                       TimeUnit.NANOSECONDS.toMillis(captureTime) + " ms, handled by " +
+                       TimeUnit.NANOSECONDS.toMillis(lastEdge[0] - start) + " ms, " + dispatcher.getOverflows() +
+                       " lost, " + (passed ? "PASS" : "FAIL"));
+    System.out.println(dispatcher.getStatistics());
+  }
+}
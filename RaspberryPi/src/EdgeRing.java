@@ -0,0 +1,248 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a fixed size ring of captured GPIO edges with any number of threads putting edges
+            in and one taking them out.  Neither side takes a lock or allocates, so an edge can be captured
+            from a GPIO listener without waiting for the thread that handles it.  A producer claims a slot
+            by moving the tail on with a compare and set, fills it in and then marks it ready with the
+            slot's sequence number; the consumer takes a slot only once it is marked ready and marks it
+            free again when done.  An edge that arrives with the ring full is counted as an overflow and
+            dropped.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Allow more than one producer.
+*/
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class EdgeRing
+{
+  private final int mask;
+
+  // The edges.  Slot i % size of each array holds the i'th edge.
+  private final long[] edgeTimes;
+  private final long[] captureTimes;
+  private final int[] words;
+  private final boolean[] levels;
+
+  // The sequence number of each slot: i when slot i % size is free for the i'th edge, i + 1 once
+  // the i'th edge is in it.
+  private final AtomicLongArray sequences;
+
+  // The next edge to take, written by the consumer only, and the next slot to claim.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final AtomicLong overflows = new AtomicLong();
+
+  /**
+   * Build a ring.
+   *
+   * @param size The number of edges the ring holds, a power of two.
+   */
+  public EdgeRing(int size)
+  {
+    if (Integer.bitCount(size) != 1)
+    {
+      throw new IllegalArgumentException("Ring size " + size + " is not a power of two.");
+    }
+    mask = size - 1;
+    edgeTimes = new long[size];
+    captureTimes = new long[size];
+    words = new int[size];
+    levels = new boolean[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Method called by a producer to add an edge.  Edges added at the same time by two producers
+   * are taken in the order their slots were claimed.  This method does not block.
+   *
+   * @param edgeTime When the edge happened (System.nanoTime()).
+   * @param high Whether the pin went high or low.
+   * @param word The channel bus at the edge.
+   * @return Whether or not there was room for the edge.
+   */
+  public boolean offer(long edgeTime, boolean high, int word)
+  {
+    long slot;
+    int index;
+    while (true)
+    {
+      slot = tail.get();
+      index = (int)slot & mask;
+      long free = sequences.get(index) - slot;
+      if (free < 0)
+      {
+        // The slot still holds the edge from one lap ago.
+        overflows.incrementAndGet();
+        return false;
+      }
+      if (free == 0 && tail.compareAndSet(slot, slot + 1))
+      {
+        break;
+      }
+      // Another producer claimed the slot first.
+    }
+
+    edgeTimes[index] = edgeTime;
+    captureTimes[index] = System.nanoTime();
+    words[index] = word;
+    levels[index] = high;
+
+    // A full write, so the consumer's check of the ring can't miss the edge as it goes to sleep.
+    sequences.set(index, slot + 1);
+    return true;
+  }
+
+  /**
+   * Method called by the consumer to determine if the ring is empty.  A slot that has been
+   * claimed but not yet filled in counts as empty.
+   *
+   * @return Whether or not there are edges to take.
+   */
+  public boolean isEmpty()
+  {
+    long next = head.get();
+    return sequences.get((int)next & mask) != next + 1;
+  }
+
+  /**
+   * Method called by the consumer to get when the oldest edge happened.  The ring must not be
+   * empty.
+   *
+   * @return The time of the oldest edge.
+   */
+  public long peekEdgeTime()
+  {
+    return edgeTimes[(int)head.get() & mask];
+  }
+
+  /**
+   * Method called by the consumer to get when the oldest edge was captured.  The ring must not
+   * be empty.
+   *
+   * @return The capture time of the oldest edge.
+   */
+  public long peekCaptureTime()
+  {
+    return captureTimes[(int)head.get() & mask];
+  }
+
+  /**
+   * Method called by the consumer to get the channel bus at the oldest edge.  The ring must not
+   * be empty.
+   *
+   * @return The channel bus word.
+   */
+  public int peekWord()
+  {
+    return words[(int)head.get() & mask];
+  }
+
+  /**
+   * Method called by the consumer to get the level of the oldest edge.  The ring must not be
+   * empty.
+   *
+   * @return Whether the pin went high or low.
+   */
+  public boolean peekLevel()
+  {
+    return levels[(int)head.get() & mask];
+  }
+
+  /**
+   * Method called by the consumer once it has finished with the oldest edge.
+   */
+  public void remove()
+  {
+    long next = head.get();
+    sequences.set((int)next & mask, next + mask + 1);
+    head.lazySet(next + 1);
+  }
+
+  /**
+   * Method to get the number of edges dropped because the ring was full.
+   *
+   * @return The number of overflows.
+   */
+  public long getOverflows()
+  {
+    return overflows.get();
+  }
+
+  /**
+   * Used to check that edges offered by several threads at once are each either taken once or
+   * counted as an overflow.
+   *
+   * @param args The number of producers and the edges each offers.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int producerCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+    // Each edge's word is its producer and sequence number, so every edge can be accounted for.
+    EdgeRing ring = new EdgeRing(256);
+    Thread[] producers = new Thread[producerCount];
+    for (int p = 0; p < producerCount; p++)
+    {
+      int producer = p;
+      producers[p] = new Thread(() ->
+      {
+        for (int i = 0; i < count; i++)
+        {
+          ring.offer(System.nanoTime(), (i & 1) == 0, producer * count + i);
+
+          // Give the other producers and the consumer a turn, so the slots are fought over.
+          Thread.yield();
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread producer : producers)
+    {
+      producer.start();
+    }
+
+    boolean[] seen = new boolean[producerCount * count];
+    long taken = 0;
+    boolean passed = true;
+
+    // An edge lost without being counted would leave this waiting, so give up after a while.
+    long deadline = start + TimeUnit.SECONDS.toNanos(30);
+    while (taken + ring.getOverflows() < (long)producerCount * count && System.nanoTime() - deadline < 0)
+    {
+      if (ring.isEmpty())
+      {
+        Thread.yield();
+        continue;
+      }
+      int word = ring.peekWord();
+      passed &= !seen[word] && ring.peekLevel() == ((word % count & 1) == 0);
+      seen[word] = true;
+      ring.remove();
+      taken++;
+    }
+    for (Thread producer : producers)
+    {
+      producer.join();
+    }
+    long time = System.nanoTime() - start;
+    passed &= ring.isEmpty() && taken + ring.getOverflows() == (long)producerCount * count;
+    System.out.println("Edge ring: " + producerCount + " producers, " + taken + " taken, " + ring.getOverflows() +
+                       " overflows in " + TimeUnit.NANOSECONDS.toMillis(time) + " ms, " + (passed ? "PASS" : "FAIL"));
+  }
+}
@@ -0,0 +1,1198 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is an in-memory stand in for one of the Arduinos, so the host code can be run and
+            measured without the hardware.  It runs the same steps as the DSKYDisplay, DSKYIndicators and
+            DSKYKeyboard sketches on its own thread: it answers the identify command, parses ASCII
+            commands or binary frames, takes part in baud rate negotiation and keeps the state the
+            Arduino would be showing.  The keyboard always speaks the ASCII protocol.
+
+            The link is modelled as well.  Bytes written by the host reach the Arduino at the current
+            baud rate and wait in a 64 byte receive buffer; bytes that arrive with the buffer full are
+            lost.  Each command takes a configurable time to process, during which the buffer fills.
+            When the two ends are at different baud rates, or above the fastest rate the Arduino can
+            run, the bytes are garbled.  Key presses can be injected for the host to read.  The sketch
+            keeps its own clock: a byte is read when it arrives or when the sketch gets to it, and the
+            delays in the sketch move the clock on.  The gap that ends an ASCII command and the bytes
+            lost to overrun are judged by that clock, so a stall of the sketch thread changes nothing.
+
+            Run this class on its own to drive the whole host pipeline against three fakes and check
+            that the fakes end up showing what was sent, including after they are unplugged.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Check that unplugged Arduinos are reconnected and refreshed.
+            10/16/26  Check that relay words already shown are not sent again.
+            10/16/26  Check that unchanged indicators are not sent again.
+            10/16/26  Measure how long a register is shown half updated, with and without frames.
+            10/16/26  Flash mode and blink mask commands, and a check of the flash traffic.
+            10/16/26  Check the decoded DSKY model against the display.
+            10/16/26  Check simulator packets reach the display through the channel dispatcher.
+            10/16/26  Check the hardware mode against a simulated AGC and measure the strobe rate it sustains.
+            10/16/26  Move the model, channel and hardware mode checks to the classes they check.
+            10/16/26  One helper to create the fakes and connect them for every check.
+            10/16/26  Check a relay word written just after a RESET is shown.
+            10/16/26  Judge the ASCII command gap and overrun by the sketch clock, not the thread timing.
+*/
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class FakeArduino implements SerialTransport
+{
+  // The receive buffer of the Arduino serial port.
+  public static final int RX_BUFFER_SIZE = 64;
+
+  private static final int LINE_SIZE = 4096;
+  private static final int HOST_BUFFER_SIZE = 1024;
+  private static final int BITS_PER_BYTE = 10;
+
+  // The sketches wait this long (ms) for each byte of an ASCII command.
+  private static final int BYTE_DELAY = 2;
+
+  // The sketches return to the old rate if not committed within this time (ms).
+  private static final int BAUD_TIMEOUT = 500;
+
+  // Bytes sent at the wrong baud rate arrive garbled.
+  private static final int GARBLE = 0x5A;
+
+  private final String name;
+  private final int protocolVersion;
+  private final long commandDelayNanos;
+  private final int maxBaudRate;
+  private final Object lock = new Object();
+
+  // Bytes on the line to the Arduino and the time each one arrives.
+  private final byte[] lineBytes = new byte[LINE_SIZE];
+  private final long[] lineTimes = new long[LINE_SIZE];
+  private int lineHead = 0;
+  private int lineCount = 0;
+  private long lineFreeTime = 0;
+
+  // Bytes from the Arduino waiting for the host.
+  private final byte[] hostBytes = new byte[HOST_BUFFER_SIZE];
+  private int hostHead = 0;
+  private int hostCount = 0;
+
+  private boolean open = false;
+  private int hostBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+  private int arduinoBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+  private volatile Listener listener = null;
+  private volatile Thread sketch = null;
+
+  // Only used by the sketch thread.  The time (nanoTime) the sketch has got to.
+  private long sketchTime = 0;
+  private final byte[] frame = new byte[SerialProtocol.FRAME_SIZE];
+  private int frameIndex = 0;
+
+  // What the Arduino is showing.
+  private final AtomicIntegerArray relayWords = new AtomicIntegerArray(16);
+  private volatile boolean compActy = false;
+  private volatile boolean flashOn = true;
+  private volatile boolean flashMode = false;
+  private volatile int blinkMask = 0;
+  private volatile int displayIndicators = 0;
+  private volatile int otherIndicators = 0;
+
+  // Statistics.
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesOverrun = new AtomicLong();
+  private final AtomicLong commandsProcessed = new AtomicLong();
+  private final AtomicLong badCommands = new AtomicLong();
+  private final AtomicLong resets = new AtomicLong();
+
+  /**
+   * Create a fake Arduino.
+   *
+   * @param name The name it answers identify with: Display, Indicators or Keyboard.
+   * @param protocolVersion The protocol version it speaks.
+   * @param commandDelay How long each command takes to process in microseconds.
+   * @param maxBaudRate The fastest baud rate the link works at.
+   */
+  public FakeArduino(String name, int protocolVersion, long commandDelay, int maxBaudRate)
+  {
+    this.name = name;
+    this.protocolVersion = name.equals(PortDiscovery.KEYBOARD) ? SerialProtocol.VERSION_ASCII : protocolVersion;
+    this.commandDelayNanos = TimeUnit.MICROSECONDS.toNanos(commandDelay);
+    this.maxBaudRate = maxBaudRate;
+  }
+
+  public String getName()
+  {
+    return "fake-" + name.toLowerCase();
+  }
+
+  public String getSerialNumber()
+  {
+    return "FAKE-" + name.toUpperCase();
+  }
+
+  public boolean open(int baudRate)
+  {
+    synchronized (lock)
+    {
+      if (open)
+      {
+        return false;
+      }
+
+      // Opening the port resets the Arduino, which always starts at the default rate.
+      open = true;
+      lineHead = lineCount = 0;
+      hostHead = hostCount = 0;
+      lineFreeTime = 0;
+      hostBaudRate = baudRate;
+      arduinoBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+    }
+
+    sketch = new Thread(this::runSketch, name + " Fake");
+    sketch.setDaemon(true);
+    sketch.start();
+    return true;
+  }
+
+  public boolean close()
+  {
+    synchronized (lock)
+    {
+      if (!open)
+      {
+        return false;
+      }
+      open = false;
+      lock.notifyAll();
+    }
+    sketch.interrupt();
+    return true;
+  }
+
+  /**
+   * Method called to unplug the Arduino.  The port is closed and the listener told.
+   */
+  public void disconnect()
+  {
+    close();
+    Listener currentListener = listener;
+    if (currentListener != null)
+    {
+      currentListener.disconnected();
+    }
+  }
+
+  public boolean isOpen()
+  {
+    synchronized (lock)
+    {
+      return open;
+    }
+  }
+
+  public int write(byte[] data, int length)
+  {
+    synchronized (lock)
+    {
+      if (!open)
+      {
+        return -1;
+      }
+
+      long byteNanos = TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / hostBaudRate;
+      boolean garbled = isGarbled();
+      long now = System.nanoTime();
+      int written = 0;
+      while (written < length && lineCount < LINE_SIZE)
+      {
+        lineFreeTime = Math.max(now, lineFreeTime) + byteNanos;
+        int index = (lineHead + lineCount) % LINE_SIZE;
+        lineBytes[index] = garbled ? (byte)(data[written] ^ GARBLE) : data[written];
+        lineTimes[index] = lineFreeTime;
+        lineCount++;
+        written++;
+      }
+      lock.notifyAll();
+      return written;
+    }
+  }
+
+  public int read(byte[] buffer, int length, int offset, int timeout)
+  {
+    synchronized (lock)
+    {
+      long deadline = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      while (open && hostCount == 0 && remaining > 0)
+      {
+        try
+        {
+          lock.wait(remaining);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return -1;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      if (!open)
+      {
+        return -1;
+      }
+
+      int numRead = Math.min(length, hostCount);
+      for (int i = 0; i < numRead; i++)
+      {
+        buffer[offset + i] = hostBytes[hostHead];
+        hostHead = (hostHead + 1) % HOST_BUFFER_SIZE;
+      }
+      hostCount -= numRead;
+      return numRead;
+    }
+  }
+
+  public int bytesAvailable()
+  {
+    synchronized (lock)
+    {
+      return open ? hostCount : -1;
+    }
+  }
+
+  public boolean setBaudRate(int baudRate)
+  {
+    synchronized (lock)
+    {
+      hostBaudRate = baudRate;
+      return true;
+    }
+  }
+
+  public int getBaudRate()
+  {
+    synchronized (lock)
+    {
+      return hostBaudRate;
+    }
+  }
+
+  public void flush()
+  {
+    synchronized (lock)
+    {
+      lineCount = 0;
+      hostCount = 0;
+    }
+  }
+
+  public boolean setListener(Listener listener)
+  {
+    this.listener = listener;
+    return true;
+  }
+
+  /**
+   * Method called to press a key on a fake keyboard.  The key code is sent to the host as
+   * the keyboard sketch would send it.
+   *
+   * @param keyCode The key code.
+   */
+  public void injectKey(int keyCode)
+  {
+    reply(new byte[] { (byte)keyCode }, 1);
+  }
+
+  /**
+   * Method to get the last channel 10 value shown for a relay word.
+   *
+   * @param relayWord The relay word, 0 - 15.
+   * @return The value, 0 if none since the last reset.
+   */
+  public int getRelayWord(int relayWord)
+  {
+    return relayWords.get(relayWord);
+  }
+
+  /**
+   * Method to determine if the COMP ACTY light is on.
+   *
+   * @return Whether or not COMP ACTY is on.
+   */
+  public boolean isCompActy()
+  {
+    return compActy;
+  }
+
+  /**
+   * Method to determine if the verb and noun are showing, as opposed to being blanked by
+   * the flash command.
+   *
+   * @return Whether or not the verb and noun are showing.
+   */
+  public boolean isFlashOn()
+  {
+    return flashOn;
+  }
+
+  /**
+   * Method to determine if the display has been told to flash the verb and noun itself.
+   *
+   * @return Whether or not flash mode is on.
+   */
+  public boolean isFlashMode()
+  {
+    return flashMode;
+  }
+
+  /**
+   * Method to get the other indicators that blink while lit.
+   *
+   * @return The blink mask.
+   */
+  public int getBlinkMask()
+  {
+    return blinkMask;
+  }
+
+  /**
+   * Method to get the display indicators value.
+   *
+   * @return The display indicators.
+   */
+  public int getDisplayIndicators()
+  {
+    return displayIndicators;
+  }
+
+  /**
+   * Method to get the other indicators value.
+   *
+   * @return The other indicators.
+   */
+  public int getOtherIndicators()
+  {
+    return otherIndicators;
+  }
+
+  /**
+   * Method to get the number of commands processed.
+   *
+   * @return The number of commands.
+   */
+  public long getCommandsProcessed()
+  {
+    return commandsProcessed.get();
+  }
+
+  /**
+   * Method to get the number of times the Arduino has been reset, by opening the port or the
+   * reset command.
+   *
+   * @return The number of resets.
+   */
+  public long getResets()
+  {
+    return resets.get();
+  }
+
+  /**
+   * Method to get the number of bytes lost because the receive buffer was full.
+   *
+   * @return The number of bytes lost.
+   */
+  public long getBytesOverrun()
+  {
+    return bytesOverrun.get();
+  }
+
+  /**
+   * Method to get a one line summary of the fake's statistics.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Fake " + name + " (v" + protocolVersion + "): received = " + bytesReceived.get() +
+           ", overrun = " + bytesOverrun.get() + ", commands = " + commandsProcessed.get() +
+           ", bad = " + badCommands.get() + ", resets = " + resets.get() + ", baud = " + arduinoBaudRate;
+  }
+
+  /**
+   * Internal method used to run the sketch.  This is the setup() and loop() of the Arduino.
+   */
+  private void runSketch()
+  {
+    sketchTime = System.nanoTime();
+    resetDisplay();
+    if (!identify())
+    {
+      return;
+    }
+
+    if (name.equals(PortDiscovery.KEYBOARD))
+    {
+      // The keyboard only sends.
+      return;
+    }
+
+    while (isRunning())
+    {
+      if (protocolVersion == SerialProtocol.VERSION_BINARY)
+      {
+        if (readFrame(-1))
+        {
+          executeCommand(frame[1], ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+        }
+      }
+      else
+      {
+        String commandString = readCommandString();
+        if (commandString != null && commandString.length() > 0)
+        {
+          executeCommandString(commandString);
+        }
+      }
+    }
+  }
+
+  /**
+   * Internal method used to wait for the identify command and answer it.
+   *
+   * @return Whether or not the identify command arrived before the port closed.
+   */
+  private boolean identify()
+  {
+    while (true)
+    {
+      String commandString = readCommandString();
+      if (commandString == null)
+      {
+        return false;
+      }
+
+      if (commandString.equals("2"))
+      {
+        String reply = name + (protocolVersion == SerialProtocol.VERSION_BINARY ? " V2" : "") + "\r\n";
+        reply(reply.getBytes(), reply.length());
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Internal method used to read an ASCII command.  Like the sketches, the command ends when
+   * no byte has arrived after waiting for the next one.
+   *
+   * @return The command, or null if the port closed.
+   */
+  private String readCommandString()
+  {
+    int c = nextByte(-1);
+    if (c < 0)
+    {
+      return null;
+    }
+
+    StringBuilder commandString = new StringBuilder();
+    while (c >= 0)
+    {
+      if (!sleep(TimeUnit.MILLISECONDS.toNanos(BYTE_DELAY)))
+      {
+        return null;
+      }
+      if (c != '\n' && c != '\r')
+      {
+        commandString.append((char)c);
+      }
+      c = nextByte(0);
+    }
+    return commandString.toString();
+  }
+
+  /**
+   * Internal method used to parse and execute an ASCII command, "C VVVV".
+   *
+   * @param commandString The command.
+   */
+  private void executeCommandString(String commandString)
+  {
+    String command = commandString;
+    int value = 0;
+    if (!commandString.equals("0") && !commandString.equals("1") && !commandString.equals("2"))
+    {
+      int delimIndex = commandString.indexOf(' ');
+      if (delimIndex >= 0)
+      {
+        command = commandString.substring(0, delimIndex);
+        value = toInt(commandString.substring(delimIndex + 1));
+      }
+
+      // The display sketch echoes the value it parsed.
+      if (name.equals(PortDiscovery.DISPLAY))
+      {
+        String echo = value + "\r\n";
+        reply(echo.getBytes(), echo.length());
+      }
+    }
+
+    if (command.length() != 1 || !Character.isDigit(command.charAt(0)))
+    {
+      badCommands.incrementAndGet();
+      return;
+    }
+    executeCommand(command.charAt(0) - '0', value);
+  }
+
+  /**
+   * Internal method used to execute one command.
+   *
+   * @param command The command number.
+   * @param value The value sent with the command.
+   */
+  private void executeCommand(int command, int value)
+  {
+    if (command == SerialProtocol.SET_BAUD_COMMAND && protocolVersion == SerialProtocol.VERSION_BINARY)
+    {
+      changeBaudRate(value * 100);
+      return;
+    }
+
+    if (command == 1)
+    {
+      resetDisplay();
+    }
+    else if (name.equals(PortDiscovery.DISPLAY) && command == 3)
+    {
+      relayWords.set((value >> 11) & 0x000F, value & 0x7FFF);
+    }
+    else if (name.equals(PortDiscovery.DISPLAY) && command == 4)
+    {
+      compActy = value != 0;
+    }
+    else if (name.equals(PortDiscovery.DISPLAY) && command == 5)
+    {
+      flashOn = value != 0;
+    }
+    else if (name.equals(PortDiscovery.DISPLAY) && command == 9 && protocolVersion == SerialProtocol.VERSION_BINARY)
+    {
+      flashMode = value != 0;
+    }
+    else if (name.equals(PortDiscovery.INDICATORS) && command == 9 &&
+             protocolVersion == SerialProtocol.VERSION_BINARY)
+    {
+      blinkMask = value;
+    }
+    else if (name.equals(PortDiscovery.INDICATORS) && command == 3)
+    {
+      displayIndicators = value;
+    }
+    else if (name.equals(PortDiscovery.INDICATORS) && command == 4)
+    {
+      otherIndicators = value;
+    }
+    else
+    {
+      badCommands.incrementAndGet();
+      return;
+    }
+
+    commandsProcessed.incrementAndGet();
+    sleep(commandDelayNanos);
+  }
+
+  /**
+   * Internal method used to clear what the Arduino is showing.
+   */
+  private void resetDisplay()
+  {
+    for (int i = 0; i < relayWords.length(); i++)
+    {
+      relayWords.set(i, 0);
+    }
+    compActy = false;
+    flashOn = true;
+    flashMode = false;
+    blinkMask = 0;
+    displayIndicators = 0;
+    otherIndicators = 0;
+    resets.incrementAndGet();
+  }
+
+  /**
+   * Internal method used to collect a binary frame, as readFrame() in the sketches does.
+   * A frame with a bad checksum is dropped and the hunt for the next sync byte starts again.
+   *
+   * @param timeout How long to wait in nanoseconds, -1 to wait until the port closes.
+   * @return Whether or not a good frame is in the frame buffer.
+   */
+  private boolean readFrame(long timeout)
+  {
+    long deadline = sketchTime + timeout;
+    while (true)
+    {
+      int b = nextByte(timeout < 0 ? -1 : Math.max(0, deadline - sketchTime));
+      if (b < 0)
+      {
+        return false;
+      }
+
+      // Hunt for the start of a frame.
+      if (frameIndex == 0 && (byte)b != SerialProtocol.FRAME_SYNC)
+      {
+        continue;
+      }
+
+      frame[frameIndex++] = (byte)b;
+      if (frameIndex == SerialProtocol.FRAME_SIZE)
+      {
+        frameIndex = 0;
+        if (SerialProtocol.checksum(frame[1], frame[2], frame[3]) == frame[4])
+        {
+          return true;
+        }
+        badCommands.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Internal method used to switch to a new baud rate and echo the test frames, as
+   * changeBaudRate() in the sketches does.
+   *
+   * @param newRate The new baud rate.
+   */
+  private void changeBaudRate(int newRate)
+  {
+    int oldRate;
+    synchronized (lock)
+    {
+      oldRate = arduinoBaudRate;
+      arduinoBaudRate = newRate;
+    }
+    frameIndex = 0;
+
+    long deadline = sketchTime + TimeUnit.MILLISECONDS.toNanos(BAUD_TIMEOUT);
+    long remaining;
+    while ((remaining = deadline - sketchTime) > 0)
+    {
+      if (readFrame(remaining) &&
+          (frame[1] == SerialProtocol.ECHO_COMMAND || frame[1] == SerialProtocol.COMMIT_COMMAND))
+      {
+        reply(frame, frame.length);
+        if (frame[1] == SerialProtocol.COMMIT_COMMAND)
+        {
+          return;
+        }
+      }
+    }
+
+    synchronized (lock)
+    {
+      arduinoBaudRate = oldRate;
+    }
+    frameIndex = 0;
+  }
+
+  /**
+   * Internal method used to take the next byte out of the receive buffer.  The timeout runs on
+   * the sketch clock, so a byte that arrived after it is not read even if the thread was late.
+   * The host stamps each byte after the time it is written, so once the deadline has passed no
+   * byte still to be written can arrive before it.
+   *
+   * @param timeout How long to wait in nanoseconds, 0 to not wait, -1 to wait until the port closes.
+   * @return The byte, or -1 if none arrived or the port closed.
+   */
+  private int nextByte(long timeout)
+  {
+    synchronized (lock)
+    {
+      long deadline = timeout < 0 ? Long.MAX_VALUE : sketchTime + timeout;
+      while (isRunning())
+      {
+        long now = System.nanoTime();
+        if (lineCount > 0 && lineTimes[lineHead] <= Math.min(now, deadline))
+        {
+          // The byte is read when it arrives or when the sketch gets to it, whichever is later.
+          sketchTime = Math.max(sketchTime, lineTimes[lineHead]);
+          dropOverrun(sketchTime);
+          int b = lineBytes[lineHead] & 0xFF;
+          lineHead = (lineHead + 1) % LINE_SIZE;
+          lineCount--;
+          bytesReceived.incrementAndGet();
+          return b;
+        }
+
+        if (now >= deadline)
+        {
+          sketchTime = deadline;
+          return -1;
+        }
+
+        long wakeTime = Math.min(deadline, lineCount > 0 ? lineTimes[lineHead] : Long.MAX_VALUE);
+        try
+        {
+          long waitTime = Math.min(wakeTime - now, TimeUnit.SECONDS.toNanos(1));
+          TimeUnit.NANOSECONDS.timedWait(lock, Math.max(1, waitTime));
+        }
+        catch (InterruptedException e)
+        {
+          return -1;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Internal method used to drop the bytes that arrived while the receive buffer was full.
+   * Must hold the lock.
+   *
+   * @param now The current time.
+   */
+  private void dropOverrun(long now)
+  {
+    int arrived = 0;
+    while (arrived < lineCount && lineTimes[(lineHead + arrived) % LINE_SIZE] <= now)
+    {
+      arrived++;
+    }
+    if (arrived <= RX_BUFFER_SIZE)
+    {
+      return;
+    }
+
+    // Keep the first bytes that fit and close up the gap left by the ones lost.
+    int lost = arrived - RX_BUFFER_SIZE;
+    for (int i = arrived; i < lineCount; i++)
+    {
+      int from = (lineHead + i) % LINE_SIZE;
+      int to = (lineHead + i - lost) % LINE_SIZE;
+      lineBytes[to] = lineBytes[from];
+      lineTimes[to] = lineTimes[from];
+    }
+    lineCount -= lost;
+    bytesOverrun.addAndGet(lost);
+  }
+
+  /**
+   * Internal method used to send bytes to the host.
+   *
+   * @param data The bytes to send.
+   * @param length The number of bytes.
+   */
+  private void reply(byte[] data, int length)
+  {
+    synchronized (lock)
+    {
+      if (!open)
+      {
+        return;
+      }
+
+      boolean garbled = isGarbled();
+      for (int i = 0; i < length && hostCount < HOST_BUFFER_SIZE; i++)
+      {
+        hostBytes[(hostHead + hostCount) % HOST_BUFFER_SIZE] = garbled ? (byte)(data[i] ^ GARBLE) : data[i];
+        hostCount++;
+      }
+      lock.notifyAll();
+    }
+
+    Listener currentListener = listener;
+    if (currentListener != null)
+    {
+      currentListener.dataAvailable();
+    }
+  }
+
+  /**
+   * Internal method used to determine if the link garbles bytes.  Must hold the lock.
+   *
+   * @return Whether or not the bytes are garbled.
+   */
+  private boolean isGarbled()
+  {
+    return hostBaudRate != arduinoBaudRate || arduinoBaudRate > maxBaudRate;
+  }
+
+  /**
+   * Internal method used to move the sketch clock on and sleep the sketch thread until it
+   * catches up.  A thread that wakes late has the time taken off its next sleep.
+   *
+   * @param nanos The time to sleep.
+   * @return Whether or not the port is still open.
+   */
+  private boolean sleep(long nanos)
+  {
+    sketchTime += nanos;
+    try
+    {
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, sketchTime - System.nanoTime()));
+    }
+    catch (InterruptedException e)
+    {
+      return false;
+    }
+    return isRunning();
+  }
+
+  /**
+   * Internal method used by the sketch thread to check that it should keep running.  A sketch
+   * left over from before the port was closed and opened again must stop.
+   *
+   * @return Whether or not the sketch should keep running.
+   */
+  private boolean isRunning()
+  {
+    return sketch == Thread.currentThread() && isOpen();
+  }
+
+  /**
+   * Internal method used to convert a string to an integer the way the Arduino String.toInt()
+   * does: leading blanks are skipped and parsing stops at the first non digit.
+   *
+   * @param data The string.
+   * @return The value, 0 if there are no digits.
+   */
+  private static int toInt(String data)
+  {
+    int index = 0;
+    while (index < data.length() && data.charAt(index) == ' ')
+    {
+      index++;
+    }
+
+    boolean negative = index < data.length() && data.charAt(index) == '-';
+    if (negative)
+    {
+      index++;
+    }
+
+    int value = 0;
+    while (index < data.length() && Character.isDigit(data.charAt(index)))
+    {
+      value = value * 10 + (data.charAt(index++) - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Method to create fake Arduinos and have the serial interface find them, as the checks of the
+   * host pipeline do.
+   *
+   * @param protocolVersion The protocol version the fakes speak.
+   * @param commandDelay How long each command takes to process in microseconds.
+   * @param maxBaudRate The fastest baud rate the links work at.
+   * @param names The Arduinos to fake: Display, Indicators or Keyboard.
+   * @return The fakes, in the order named.
+   */
+  public static FakeArduino[] connect(int protocolVersion, long commandDelay, int maxBaudRate, String... names)
+  {
+    FakeArduino[] fakes = new FakeArduino[names.length];
+    for (int i = 0; i < names.length; i++)
+    {
+      fakes[i] = new FakeArduino(names[i], protocolVersion, commandDelay, maxBaudRate);
+    }
+    SerialInterface.getInstance().initInterface(new ArrayList<>(Arrays.asList(fakes)));
+    return fakes;
+  }
+
+  /**
+   * Drive the host pipeline against three fake Arduinos.  Key presses are injected and timed
+   * through the keyboard interface, then a stream of display and indicator updates is sent
+   * and the fakes are checked to be showing the last value sent for each.  Finally the
+   * display and indicators are unplugged and checked to be showing the same again once the
+   * supervisor has reconnected them.
+   *
+   * @param args [protocol version] [command delay us] [max baud rate] [updates] [update interval us]
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int version = args.length > 0 ? Integer.parseInt(args[0]) : SerialProtocol.VERSION_BINARY;
+    long commandDelay = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+    int maxBaudRate = args.length > 2 ? Integer.parseInt(args[2]) : 115200;
+    int updates = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+    long updateInterval = args.length > 4 ? Long.parseLong(args[4]) : 1000;
+
+    FakeArduino[] fakes = connect(version, commandDelay, maxBaudRate, PortDiscovery.KEYBOARD, PortDiscovery.INDICATORS,
+                                  PortDiscovery.DISPLAY);
+    FakeArduino keyboard = fakes[0];
+    FakeArduino indicators = fakes[1];
+    FakeArduino display = fakes[2];
+    SerialInterface serialInterface = SerialInterface.getInstance();
+
+    // Keys.
+    KeyboardInterface keyboardInterface = KeyboardInterface.getInstance();
+    keyboardInterface.initInterface();
+    int[] keys = { 17, 31, 16, 1, 2, 3, 30, 18, 28, 25, 0 };
+    boolean keysPassed = true;
+    long keyStart = System.nanoTime();
+    for (int key : keys)
+    {
+      keyboard.injectKey(key);
+      keysPassed &= keyboardInterface.readData() == key;
+    }
+    long keyTime = System.nanoTime() - keyStart;
+    System.out.println("Keys: " + keys.length + " in " + TimeUnit.NANOSECONDS.toMicros(keyTime) + " us, " +
+                       (keysPassed ? "PASS" : "FAIL"));
+    System.out.println(keyboardInterface.getStatistics());
+
+    // Display and indicators.
+    DisplayInterface displayInterface = DisplayInterface.getInstance();
+    Random random = new Random(1);
+    int[] expected = new int[16];
+    int displayIndicatorsValue = 0;
+    int otherIndicatorsValue = 0;
+    long updateStart = System.nanoTime();
+    for (int i = 0; i < updates; i++)
+    {
+      int relayWord = 1 + random.nextInt(11);
+      int value = (relayWord << 11) | random.nextInt(1 << 11);
+      expected[relayWord] = value;
+      displayInterface.setChannel10Register(value);
+      displayInterface.decodeData();
+
+      if (i % 100 == 0)
+      {
+        displayIndicatorsValue = random.nextInt(64);
+        otherIndicatorsValue = random.nextInt(64);
+        serialInterface.sendDisplayIndicatorsCommand(displayIndicatorsValue);
+        serialInterface.sendOtherIndicatorsCommand(otherIndicatorsValue);
+      }
+      TimeUnit.MICROSECONDS.sleep(updateInterval);
+    }
+    long queueTime = System.nanoTime() - updateStart;
+
+    boolean updatesPassed = waitForState(display, expected, indicators, displayIndicatorsValue, otherIndicatorsValue);
+    long updateTime = System.nanoTime() - updateStart;
+    System.out.println("Updates: " + updates + " sent over " + TimeUnit.NANOSECONDS.toMillis(queueTime) +
+                       " ms, shown after " + TimeUnit.NANOSECONDS.toMillis(updateTime) + " ms, " +
+                       (updatesPassed ? "PASS" : "FAIL"));
+
+    // Write the same frame again, as the AGC does; none of it should reach the display.
+    DisplayShadow shadow = displayInterface.getShadow();
+    long commandsBefore = display.getCommandsProcessed();
+    long suppressedBefore = shadow.getSuppressedCount();
+    int repeats = 0;
+    for (int value : expected)
+    {
+      if (value != 0)
+      {
+        displayInterface.setChannel10Register(value);
+        displayInterface.decodeData();
+        repeats++;
+      }
+    }
+    TimeUnit.MILLISECONDS.sleep(100);
+    boolean repeatsPassed = shadow.getSuppressedCount() - suppressedBefore == repeats &&
+                            display.getCommandsProcessed() == commandsBefore;
+    System.out.println("Repeats: " + repeats + " written, " + (shadow.getSuppressedCount() - suppressedBefore) +
+                       " suppressed, " + (repeatsPassed ? "PASS" : "FAIL"));
+    System.out.println(shadow.getStatistics());
+
+    // Unplug the display and indicators and wait for them to come back showing the same.
+    IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+    indicatorInterface.setVel(true);
+    indicatorInterface.setTemp(true);
+    indicatorInterface.sendDisplayIndicatorsCommand();
+    indicatorInterface.sendOtherIndidatorsCommand();
+    boolean hotPlugPassed = waitForState(display, expected, indicators, 32, 8);
+
+    // Send the same indicators again for every packet, as the simulator does.
+    long indicatorCommandsBefore = indicators.getCommandsProcessed();
+    long indicatorsSuppressedBefore = indicatorInterface.getSuppressedCount();
+    for (int i = 0; i < 100; i++)
+    {
+      indicatorInterface.setTemp(true);
+      indicatorInterface.sendDisplayIndicatorsCommand();
+      indicatorInterface.sendOtherIndidatorsCommand();
+    }
+    TimeUnit.MILLISECONDS.sleep(100);
+    long indicatorsSuppressed = indicatorInterface.getSuppressedCount() - indicatorsSuppressedBefore;
+    boolean indicatorRepeatsPassed = indicatorsSuppressed == 200 &&
+                                     indicators.getCommandsProcessed() == indicatorCommandsBefore;
+    System.out.println("Indicator repeats: 200 written, " + indicatorsSuppressed + " suppressed, " +
+                       (indicatorRepeatsPassed ? "PASS" : "FAIL"));
+
+    // Flash the verb/noun and KEY REL for a second as the simulator does: channel 11 asks for the
+    // flashing every packet, and 0163 has the flash phase bits set while the lights are dark.
+    long flashCommandsBefore = display.getCommandsProcessed() + indicators.getCommandsProcessed();
+    for (int i = 0; i < 50; i++)
+    {
+      indicatorInterface.setChannel11(0x0038);
+      indicatorInterface.setRelayWord12((i / 12) % 2 == 0 ? 0x0008 : 0x0078);
+      TimeUnit.MILLISECONDS.sleep(20);
+    }
+    boolean flashModeShown = display.isFlashMode() && (indicators.getBlinkMask() & 2) != 0;
+    long flashCommands = display.getCommandsProcessed() + indicators.getCommandsProcessed() - flashCommandsBefore;
+    indicatorInterface.setChannel11(0x0008);
+    indicatorInterface.setRelayWord12(0x0008);
+    TimeUnit.MILLISECONDS.sleep(500);
+    boolean flashPassed;
+    if (version == SerialProtocol.VERSION_BINARY)
+    {
+      // Only the mode changes are sent; the Arduinos do the blinking.
+      flashPassed = flashModeShown && flashCommands <= 3 && !display.isFlashMode();
+    }
+    else
+    {
+      // The host blinks both, about three times a second each, and leaves them showing.
+      flashPassed = flashCommands >= 4 && display.isFlashOn() && (indicators.getOtherIndicators() & 2) == 0;
+    }
+    System.out.println("Flash: " + flashCommands + " commands in 1 s, " + (flashPassed ? "PASS" : "FAIL"));
+
+    long unplugTime = System.nanoTime();
+    display.disconnect();
+    indicators.disconnect();
+    hotPlugPassed &= waitForState(display, expected, indicators, 32, 8) && display.getResets() > 1;
+    System.out.println("Hot plug: shown again after " +
+                       TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - unplugTime) + " ms, " +
+                       (hotPlugPassed ? "PASS" : "FAIL"));
+
+    // Fill the display queue, reset the display and write a relay word straight after, then again
+    // once it has gone out.  The value must not be coalesced into a send queued before the RESET,
+    // or the RESET blanks it and the shadow suppresses the second write.
+    for (int relayWord = 1; relayWord <= 11; relayWord++)
+    {
+      displayInterface.setChannel10Register((relayWord << 11) | 0x155);
+      displayInterface.decodeData();
+    }
+    long resetsBefore = display.getResets();
+    displayInterface.resetDisplay();
+    int afterReset = (11 << 11) | 0x2AA;
+    boolean resetPassed = false;
+    long resetDeadline = System.currentTimeMillis() + 10000;
+    for (int write = 0; write < 2; write++)
+    {
+      displayInterface.setChannel10Register(afterReset);
+      displayInterface.decodeData();
+      resetPassed = false;
+      while (!resetPassed && System.currentTimeMillis() < resetDeadline)
+      {
+        Thread.sleep(10);
+        resetPassed = display.getResets() > resetsBefore && display.getRelayWord(11) == afterReset;
+      }
+    }
+    System.out.println("Reset: relay word 11 " + (resetPassed ? "shown" : "blank") + " after the RESET, " +
+                       (resetPassed ? "PASS" : "FAIL"));
+
+    // Write R1 a word at a time, first sending each word as it arrives and then in frames.
+    long tornTime = measureTear(displayInterface, display, 0x155, 20);
+    RenderScheduler renderScheduler = RenderScheduler.getInstance();
+    renderScheduler.startFrames(20, 50, 200);
+    long framedTornTime = measureTear(displayInterface, display, 0x2AA, 20);
+    // The ASCII protocol needs a gap after every command, so only framed commands can go out together.
+    boolean framesPassed = tornTime >= 0 && framedTornTime >= 0 &&
+                           (version != SerialProtocol.VERSION_BINARY || framedTornTime < tornTime / 2);
+    System.out.println("Frames: R1 torn for " + tornTime + " ms unframed, " + framedTornTime + " ms framed, " +
+                       (framesPassed ? "PASS" : "FAIL"));
+    System.out.println(renderScheduler.getStatistics());
+
+    serialInterface.printStatistics();
+    System.out.println(display.getStatistics());
+    System.out.println(indicators.getStatistics());
+    System.out.println(keyboard.getStatistics());
+    serialInterface.closeInterface();
+  }
+
+  /**
+   * Internal method used to write the three relay words of R1 some time apart, as the AGC
+   * does, and measure how long the display shows a mix of old and new words.
+   *
+   * @param displayInterface The display interface.
+   * @param display The fake display.
+   * @param digits The digit bits written to each relay word.
+   * @param spacing The time between the words (ms).
+   * @return The time R1 was torn (ms), -1 if it wasn't shown within 5 seconds.
+   */
+  private static long measureTear(DisplayInterface displayInterface, FakeArduino display, int digits, int spacing)
+      throws InterruptedException
+  {
+    int[] values = { (8 << 11) | digits, (7 << 11) | digits, (6 << 11) | digits };
+    Thread writer = new Thread(() ->
+    {
+      try
+      {
+        for (int value : values)
+        {
+          displayInterface.setChannel10Register(value);
+          displayInterface.decodeData();
+          TimeUnit.MILLISECONDS.sleep(spacing);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    });
+    writer.start();
+
+    long firstShown = 0;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (System.nanoTime() < deadline)
+    {
+      int shown = 0;
+      for (int value : values)
+      {
+        if (display.getRelayWord(DisplayShadow.relayWord(value)) == value)
+        {
+          shown++;
+        }
+      }
+
+      long now = System.nanoTime();
+      if (shown > 0 && firstShown == 0)
+      {
+        firstShown = now;
+      }
+      if (shown == values.length)
+      {
+        writer.join();
+        return TimeUnit.NANOSECONDS.toMillis(now - firstShown);
+      }
+      LockSupport.parkNanos(100000);
+    }
+    writer.join();
+    return -1;
+  }
+
+  /**
+   * Internal method used to wait for the fakes to show the expected state.
+   *
+   * @param display The fake display.
+   * @param expected The expected value of each relay word, 0 if not checked.
+   * @param indicators The fake indicators.
+   * @param displayIndicatorsValue The expected display indicators.
+   * @param otherIndicatorsValue The expected other indicators.
+   * @return Whether or not the state was shown within 30 seconds.
+   */
+  private static boolean waitForState(FakeArduino display, int[] expected, FakeArduino indicators,
+                                      int displayIndicatorsValue, int otherIndicatorsValue) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (System.currentTimeMillis() < deadline)
+    {
+      boolean shown = display.isOpen() && indicators.isOpen() &&
+                      indicators.getDisplayIndicators() == displayIndicatorsValue &&
+                      indicators.getOtherIndicators() == otherIndicatorsValue;
+      for (int relayWord = 1; relayWord < expected.length && shown; relayWord++)
+      {
+        shown = expected[relayWord] == 0 || display.getRelayWord(relayWord) == expected[relayWord];
+      }
+      if (shown)
+      {
+        return true;
+      }
+      Thread.sleep(10);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton thread that keeps the flash time for Arduinos that speak the ASCII
+            protocol.  Those Arduinos can't blink on their own, so while the verb/noun or a blinking
+            indicator is meant to flash the host turns it on and off.  The timer only runs while there
+            is something to blink; otherwise it waits and the lights stay on.  Framed protocol Arduinos
+            blink locally and never need it.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import java.util.concurrent.TimeUnit;
+
+public class FlashTimer extends Thread
+{
+  private static final int DEFAULT_FLASH_INTERVAL = 320;
+
+  private static final FlashTimer instance = new FlashTimer();
+
+  private final long flashInterval;
+  private volatile boolean phaseOn = true;
+
+  public static FlashTimer getInstance()
+  {
+    return instance;
+  }
+
+  private FlashTimer()
+  {
+    super("Flash Timer");
+    setDaemon(true);
+    flashInterval = Settings.getInstance().getInt(Settings.FLASH_INTERVAL, DEFAULT_FLASH_INTERVAL);
+  }
+
+  /**
+   * Method to determine if flashing lights are in their on phase.
+   *
+   * @return Whether or not flashing lights are on.
+   */
+  public boolean isPhaseOn()
+  {
+    return phaseOn;
+  }
+
+  /**
+   * Method called when something may have started flashing.
+   */
+  public synchronized void wake()
+  {
+    if (getState() == State.NEW)
+    {
+      start();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Loop toggling the flash phase while the host has something to blink.
+   */
+  public void run()
+  {
+    IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+    try
+    {
+      while (true)
+      {
+        synchronized (this)
+        {
+          while (!indicatorInterface.needsHostBlink())
+          {
+            // Leave the lights on while nothing is flashing.
+            if (!phaseOn)
+            {
+              phaseOn = true;
+              indicatorInterface.flashPhaseChanged();
+            }
+            wait();
+          }
+        }
+
+        TimeUnit.MILLISECONDS.sleep(flashInterval);
+        phaseOn = !phaseOn;
+        indicatorInterface.flashPhaseChanged();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // Shutting down.
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This interface is the GPIO connection to the AGC: the channel bus, the control lines and the
+            KB_STR output.  AGCInterface talks to a backend rather than to Pi4J, so the hardware mode can be
+            run through Pi4J, through the memory mapped GPIO registers, or against a simulated AGC on any
+            machine.  Pins are numbered the wiringPi way, as Pi4J numbers them.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  A listener may be called for the same line from two threads at once.
+            10/16/26  The bus word may be written before the bus is turned to output.
+*/
+import java.io.IOException;
+
+public interface GpioBackend
+{
+  // The wiringPi pins of the channel bus, least significant bit first, and of KB_STR.
+  int[] CHANNEL_BUS_PINS = { 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18 };
+  int KB_STR_PIN = 26;
+
+  /**
+   * The AGC control lines the DSKY reads.
+   */
+  enum Line
+  {
+    HW_PRESENT(2),
+    CLK1(19),
+    RST(20),
+    STBY(21),
+    KBD1(22),
+    DISP(23),
+    INDC(24),
+    RPRO(25),
+    PARALM(27);
+
+    private final int pin;
+
+    Line(int pin)
+    {
+      this.pin = pin;
+    }
+
+    /**
+     * Method to get the wiringPi pin of the line.
+     *
+     * @return The pin number.
+     */
+    public int getPin()
+    {
+      return pin;
+    }
+  }
+
+  /**
+   * Receives the control line edges.  Called on threads owned by the backend, which may call
+   * it for the same line from two threads at once, e.g. from a pool of event threads.
+   */
+  interface Listener
+  {
+    /**
+     * Method called when a control line changes.
+     *
+     * @param line The line.
+     * @param edgeTime When the line changed, as near as the backend knows (System.nanoTime()).
+     * @param high Whether the line went high or low.
+     */
+    void lineChanged(Line line, long edgeTime, boolean high);
+  }
+
+  /**
+   * Method to get the name of the backend.
+   *
+   * @return The name.
+   */
+  String getName();
+
+  /**
+   * Method called to have the control line edges delivered to a listener.  Any previous
+   * listener is replaced.  Set the listener before opening the backend so no edge is missed.
+   *
+   * @param listener The listener, null to remove the listener.
+   */
+  void setListener(Listener listener);
+
+  /**
+   * Method called to claim the pins.  The channel bus starts as input.
+   *
+   * @throws IOException The pins could not be claimed.
+   */
+  void open() throws IOException;
+
+  /**
+   * Method called to release the pins.
+   */
+  void close();
+
+  /**
+   * Method to get the level of a control line.
+   *
+   * @param line The line.
+   * @return Whether or not the line is high.
+   */
+  boolean isHigh(Line line);
+
+  /**
+   * Method to read the channel bus as one word.
+   *
+   * @return The value on the bus.  The AGC numbers bits starting at one, the word at zero.
+   */
+  int readChannelBus();
+
+  /**
+   * Method to drive some bits of the channel bus.  If the bus is input the word is latched and
+   * driven once the bus is turned to output.
+   *
+   * @param word The bus word.
+   * @param mask The bits of the word to drive.
+   */
+  void writeChannelBus(int word, int mask);
+
+  /**
+   * Method to turn the channel bus around.
+   *
+   * @param output Whether the bus pins are outputs or inputs.
+   */
+  void setChannelBusOutput(boolean output);
+
+  /**
+   * Method to pulse KB_STR high, telling the AGC a key is waiting.  Returns once the pulse ends.
+   *
+   * @param duration The length of the pulse in milliseconds.
+   */
+  void pulseKbStr(int duration);
+}
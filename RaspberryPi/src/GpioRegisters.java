@@ -0,0 +1,152 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class gives direct access to the Raspberry Pi GPIO registers by memory mapping /dev/gpiomem.
+            One read of the level register returns the state of GPIO 0 - 31 at the same instant, and one
+            write of the set or clear register changes any number of outputs at once.  The registers are
+            numbered by BCM GPIO number, while Pi4J numbers pins the wiringPi way, so a table maps one to the
+            other.  Any file at least a page long can be mapped instead of the device, which lets the code
+            be run against a fake register file on any Linux machine.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class GpioRegisters
+{
+  public static final String GPIOMEM = "/dev/gpiomem";
+
+  // Register offsets.  There are six function select registers of ten pins each, three bits a pin.
+  public static final int GPFSEL0 = 0x00;
+  public static final int GPSET0 = 0x1C;
+  public static final int GPCLR0 = 0x28;
+  public static final int GPLEV0 = 0x34;
+  public static final int MAP_SIZE = 4096;
+
+  public static final int FSEL_REGISTERS = 6;
+  public static final int FSEL_INPUT = 0;
+  public static final int FSEL_OUTPUT = 1;
+
+  // The BCM GPIO number of each wiringPi pin.  wiringPi 17 - 20 are the P5 header of the early
+  // boards, BCM 28 - 31.
+  private static final int[] WIRING_PI_TO_BCM =
+      { 17, 18, 27, 22, 23, 24, 25, 4, 2, 3, 8, 7, 10, 9, 11, 14, 15, 28, 29, 30, 31, 5, 6, 13, 19, 26, 12, 16,
+        20, 21, 0, 1 };
+
+  private final MappedByteBuffer registers;
+
+  /**
+   * Map the GPIO registers.
+   *
+   * @param path The GPIO memory device, or a file standing in for it.
+   * @throws IOException The registers could not be mapped.
+   */
+  public GpioRegisters(String path) throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(path, "rw");
+         FileChannel channel = file.getChannel())
+    {
+      // The mapping stays valid after the file is closed.
+      registers = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+      registers.order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /**
+   * Method to get the BCM GPIO number of a wiringPi pin, as Pi4J numbers them.
+   *
+   * @param wiringPiPin The wiringPi pin number.
+   * @return The BCM GPIO number.
+   */
+  public static int bcmPin(int wiringPiPin)
+  {
+    return WIRING_PI_TO_BCM[wiringPiPin];
+  }
+
+  /**
+   * Method to read the level of GPIO 0 - 31 in one access.
+   *
+   * @return The levels, bit n is BCM GPIO n.
+   */
+  public int readLevels()
+  {
+    return registers.getInt(GPLEV0);
+  }
+
+  /**
+   * Method to drive outputs high in one access.  Pins not in the mask are unchanged.
+   *
+   * @param mask The pins to set, bit n is BCM GPIO n.
+   */
+  public void set(int mask)
+  {
+    registers.putInt(GPSET0, mask);
+  }
+
+  /**
+   * Method to drive outputs low in one access.  Pins not in the mask are unchanged.
+   *
+   * @param mask The pins to clear, bit n is BCM GPIO n.
+   */
+  public void clear(int mask)
+  {
+    registers.putInt(GPCLR0, mask);
+  }
+
+  /**
+   * Method to read a function select register.
+   *
+   * @param register The register, 0 - 5.
+   * @return The register value.
+   */
+  public int readFunction(int register)
+  {
+    return registers.getInt(GPFSEL0 + 4 * register);
+  }
+
+  /**
+   * Method to change the function of some of the pins of a function select register in one
+   * write.  The caller must not change the same register from another thread.
+   *
+   * @param register The register, 0 - 5.
+   * @param mask The function bits to change.
+   * @param value The new function bits.
+   */
+  public void writeFunction(int register, int mask, int value)
+  {
+    int offset = GPFSEL0 + 4 * register;
+    registers.putInt(offset, (registers.getInt(offset) & ~mask) | (value & mask));
+  }
+
+  /**
+   * Method to get a raw register, e.g. to check what was written to a fake register file.
+   *
+   * @param offset The register offset.
+   * @return The register value.
+   */
+  public int readRegister(int offset)
+  {
+    return registers.getInt(offset);
+  }
+
+  /**
+   * Method to set a raw register, e.g. to give a fake register file its levels.
+   *
+   * @param offset The register offset.
+   * @param value The register value.
+   */
+  public void writeRegister(int offset, int value)
+  {
+    registers.putInt(offset, value);
+  }
+}
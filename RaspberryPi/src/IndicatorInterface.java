@@ -10,12 +10,29 @@
   Purpose:	This class is a singleton that provides the interface to the Indicators Arduino.  The Indicators
             Arduino displays the various indicator lights to the operator.  The data received from the AGC is
             persisted in the Channel 11 register.  The indicator light on the LCD panel is only updated if the
-            state of the given indicator changes.
+            state of the given indicator changes: the last state sent for each group of indicators, the
+            COMP ACTY and the verb/noun flash is kept and a send of the same state is suppressed.  When the
+            display is drawn in frames the changes are sent with the next frame.  The state of every
+            indicator, including the COMP ACTY and verb/noun flash on the Display Arduino, can be sent
+            again after a reconnect.  Flashing is a mode.  The verb/noun flash, and the KEY REL and OPR
+            ERR lights while lit, are turned on once and blink on a local timer: in the Arduino for the
+            framed protocol, or in the FlashTimer for the ASCII protocol.
 
   Mods:		  07/15/22  Initial Release.
             07/16/22  Performance improvements.
+            10/16/26  Refresh the indicators after a reconnect.
+            10/16/26  Only send indicator states that have changed.
+            10/16/26  Keep the indicator bits in atomic ints.
+            10/16/26  Send changes with the next display frame.
+            10/16/26  Flashing is a mode with local blink timing.
+            10/16/26  Keep the decoded DSKY model up to date.
+            10/16/26  Handle channel 11 and relay word 12 writes from the channel dispatcher.
+            10/16/26  Take the verb/noun flash from channel 11, not the flash phase in 0163.
+            10/16/26  Send the indicator states under one lock.
 */
-import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IndicatorInterface
 {
@@ -23,8 +40,20 @@ public class IndicatorInterface
 
   private final SerialInterface serialInterface;
 
-  private final BitSet displayIndicatorBits = new BitSet(6);
-  private final BitSet otherIndicatorBits = new BitSet(6);
+  private final AtomicInteger displayIndicatorBits = new AtomicInteger();
+  private final AtomicInteger otherIndicatorBits = new AtomicInteger();
+  private volatile boolean flashVerbNoun = false;
+  private volatile boolean compActy = false;
+
+  // The last state sent for each group, NOT_SENT if it isn't known what the Arduino shows.
+  private static final int DISPLAY_INDICATORS = 0;
+  private static final int OTHER_INDICATORS = 1;
+  private static final int COMP_ACTY = 2;
+  private static final int FLASH = 3;
+  private static final int BLINK_MASK = 4;
+  private static final int NOT_SENT = -1;
+  private final AtomicIntegerArray sentStates = new AtomicIntegerArray(5);
+  private final AtomicLong sendsSuppressed = new AtomicLong();
 
   private enum displayIndicators
   {
@@ -46,6 +75,10 @@ public class IndicatorInterface
     RESTART
   }
 
+  // The other indicators that blink while they are lit.
+  private static final int BLINKING_INDICATORS =
+      (1 << otherIndicators.KEY_REL.ordinal()) | (1 << otherIndicators.OPR_ERR.ordinal());
+
   public static IndicatorInterface getInstance()
   {
     return instance;
@@ -54,27 +87,130 @@ public class IndicatorInterface
   private IndicatorInterface()
   {
     serialInterface = SerialInterface.getInstance();
+    for (int i = 0; i < sentStates.length(); i++)
+    {
+      sentStates.set(i, NOT_SENT);
+    }
   }
 
   /**
    * Method used to reset the display back to power on conditions.
    */
-  public void resetDisplay()
+  public synchronized void resetDisplay()
+  {
+    displayIndicatorBits.set(0);
+    otherIndicatorBits.set(0);
+    sentStates.set(DISPLAY_INDICATORS, NOT_SENT);
+    sentStates.set(OTHER_INDICATORS, NOT_SENT);
+    sendState(DISPLAY_INDICATORS);
+    sendState(OTHER_INDICATORS);
+    updateModel();
+
+    // The Display Arduino reset redraws the panel and stops the flashing, so what it shows is
+    // no longer known.
+    sentStates.set(COMP_ACTY, NOT_SENT);
+    sentStates.set(FLASH, NOT_SENT);
+  }
+
+  /**
+   * Method called to send the state of the indicators again, e.g. after the Indicators
+   * Arduino has been reconnected.
+   */
+  public void refreshIndicators()
   {
-    serialInterface.sendDisplayIndicatorsCommand(0);
-    serialInterface.sendOtherIndicatorsCommand(0);
-    displayIndicatorBits.clear();
-    otherIndicatorBits.clear();
+    sentStates.set(DISPLAY_INDICATORS, NOT_SENT);
+    sentStates.set(OTHER_INDICATORS, NOT_SENT);
+    sentStates.set(BLINK_MASK, NOT_SENT);
+    sendState(DISPLAY_INDICATORS);
+    sendState(OTHER_INDICATORS);
+    wakeFlashTimer();
   }
 
   /**
-   * Method called to flash the verb/noun by turning the values on/off.
+   * Method called to send the state of the COMP ACTY light and the verb/noun flash again,
+   * e.g. after the Display Arduino has been reconnected.
+   */
+  public void refreshDisplay()
+  {
+    sentStates.set(COMP_ACTY, NOT_SENT);
+    sentStates.set(FLASH, NOT_SENT);
+    sendState(COMP_ACTY);
+    sendState(FLASH);
+    wakeFlashTimer();
+  }
+
+  /**
+   * Method called by the render scheduler to send the indicators that have changed.
    *
-   * @param value Whether to turn them on or off.
+   * @return The number of commands sent.
+   */
+  public int commit()
+  {
+    int sent = 0;
+    for (int group = 0; group < sentStates.length(); group++)
+    {
+      if (sendState(group))
+      {
+        sent++;
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Method called to start or stop the verb/noun flashing.  Only a change of mode is sent;
+   * the blinking is timed locally.
+   *
+   * @param value Whether or not to flash the verb and noun.
    */
   public void setFlashVerbNoun(boolean value)
   {
-    serialInterface.flashVerbNoun(value);
+    flashVerbNoun = value;
+    requestSend(FLASH);
+    wakeFlashTimer();
+  }
+
+  /**
+   * Method to determine if the host has to time the blinking because an Arduino that
+   * speaks the ASCII protocol has something flashing.
+   *
+   * @return Whether or not the flash timer is needed.
+   */
+  public boolean needsHostBlink()
+  {
+    return (flashVerbNoun && !blinksLocally(PortDiscovery.DISPLAY)) ||
+           ((otherIndicatorBits.get() & BLINKING_INDICATORS) != 0 && !blinksLocally(PortDiscovery.INDICATORS));
+  }
+
+  /**
+   * Method called by the flash timer each time the flashing lights turn on or off.
+   */
+  public void flashPhaseChanged()
+  {
+    requestSend(FLASH);
+    requestSend(OTHER_INDICATORS);
+  }
+
+  /**
+   * Internal method used to start the flash timer if it is needed.
+   */
+  private void wakeFlashTimer()
+  {
+    if (needsHostBlink())
+    {
+      FlashTimer.getInstance().wake();
+    }
+  }
+
+  /**
+   * Internal method used to determine if an Arduino does its own blinking.
+   *
+   * @param name The name of the Arduino.
+   * @return Whether or not the Arduino speaks the framed protocol.
+   */
+  private boolean blinksLocally(String name)
+  {
+    return serialInterface.getProtocolVersion(name) == SerialProtocol.VERSION_BINARY;
   }
 
   /**
@@ -84,54 +220,208 @@ public class IndicatorInterface
    */
   public void setCompActy(boolean value)
   {
-    serialInterface.sendCompActy(value);
+    compActy = value;
+    requestSend(COMP_ACTY);
   }
 
   /**
-   * Method called to set the parity alarm which lights the RESTART indicator.
+   * Internal method used to send a group now, or with the next frame if the display is
+   * drawn in frames.
    *
-   * @param value Whether the parity alarm is set or cleared.
+   * @param group The group of indicators.
    */
-  public void setParalm(boolean value)
+  private void requestSend(int group)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.RESTART.ordinal());
-    }
-    else
+    updateModel();
+    if (!RenderScheduler.getInstance().indicatorsChanged())
     {
-      otherIndicatorBits.clear(otherIndicators.RESTART.ordinal());
+      sendState(group);
     }
   }
 
   /**
-   * Method called to light the RESTART indicator.
+   * Internal method used to tell the DSKY model which lights are on.  Flashing lights count as
+   * lit whatever their phase.
    */
-  public void setRestart(boolean value)
+  private void updateModel()
+  {
+    DskyModel.getInstance().indicatorsShown(displayIndicatorBits.get(), otherIndicatorBits.get(), compActy,
+                                            flashVerbNoun);
+  }
+
+  /**
+   * Internal method used to send the state of a group if it differs from the last one sent.
+   * The channel threads and the flash timer both send, so the state is worked out, recorded
+   * and queued under one lock; otherwise one phase could be recorded while the other is sent.
+   *
+   * @param group The group of indicators.
+   * @return Whether or not the state was sent.
+   */
+  private synchronized boolean sendState(int group)
   {
-    if (value)
+    // A framed protocol Arduino is told which lit indicators blink before it is sent any.
+    if (group == OTHER_INDICATORS && sentStates.get(BLINK_MASK) == NOT_SENT)
+    {
+      sendState(BLINK_MASK);
+    }
+
+    // An ASCII Arduino is sent what to show in the current flash phase, a framed one the mode.
+    boolean phaseOff = !FlashTimer.getInstance().isPhaseOn();
+    int state;
+    switch (group)
+    {
+      case DISPLAY_INDICATORS:
+        state = displayIndicatorBits.get();
+        break;
+      case OTHER_INDICATORS:
+        state = otherIndicatorBits.get();
+        if (phaseOff && !blinksLocally(PortDiscovery.INDICATORS))
+        {
+          state &= ~BLINKING_INDICATORS;
+        }
+        break;
+      case COMP_ACTY:
+        state = compActy ? 1 : 0;
+        break;
+      case FLASH:
+        if (blinksLocally(PortDiscovery.DISPLAY))
+        {
+          state = flashVerbNoun ? 1 : 0;
+        }
+        else
+        {
+          state = flashVerbNoun && phaseOff ? 0 : 1;
+        }
+        break;
+      default:
+        if (!blinksLocally(PortDiscovery.INDICATORS))
+        {
+          return false;
+        }
+        state = BLINKING_INDICATORS;
+        break;
+    }
+    if (!changed(group, state))
+    {
+      return false;
+    }
+
+    boolean queued;
+    switch (group)
     {
-      otherIndicatorBits.set(otherIndicators.RESTART.ordinal());
+      case DISPLAY_INDICATORS:
+        queued = serialInterface.sendDisplayIndicatorsCommand(state);
+        break;
+      case OTHER_INDICATORS:
+        queued = serialInterface.sendOtherIndicatorsCommand(state);
+        break;
+      case COMP_ACTY:
+        queued = serialInterface.sendCompActy(state != 0);
+        break;
+      case FLASH:
+        if (blinksLocally(PortDiscovery.DISPLAY))
+        {
+          queued = serialInterface.sendFlashMode(state != 0);
+        }
+        else
+        {
+          queued = serialInterface.flashVerbNoun(state != 0);
+        }
+        break;
+      default:
+        queued = serialInterface.sendBlinkMask(state);
+        break;
     }
-    else
+    if (!queued)
     {
-      otherIndicatorBits.clear(otherIndicators.RESTART.ordinal());
+      sentStates.set(group, NOT_SENT);
     }
+    return queued;
   }
 
   /**
-   * Method called to light the STBY indicator.
+   * Internal method used to record the state about to be sent for a group.
+   *
+   * @param group The group of indicators.
+   * @param state The state to send.
+   * @return Whether or not the state differs from the last one sent.
    */
-  public void setStandby(boolean value)
+  private boolean changed(int group, int state)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.STBY.ordinal());
-    }
-    else
+    if (sentStates.getAndSet(group, state) == state)
     {
-      otherIndicatorBits.clear(otherIndicators.STBY.ordinal());
+      sendsSuppressed.incrementAndGet();
+      return false;
     }
+    return true;
+  }
+
+  /**
+   * Method to get the number of sends suppressed because the state had not changed.
+   *
+   * @return The number of suppressed sends.
+   */
+  public long getSuppressedCount()
+  {
+    return sendsSuppressed.get();
+  }
+
+  /**
+   * Method called when the AGC writes channel 11, the indicator status.
+   *
+   * @param value The channel 11 value.
+   */
+  public void setChannel11(int value)
+  {
+    setCompActy((value & 0x0002) != 0);
+    setUplinkActy((value & 0x0004) != 0);
+    setTemp((value & 0x0008) != 0);
+    setKeyRel((value & 0x0010) != 0);
+    setFlashVerbNoun((value & 0x0020) != 0);
+    setOprErr((value & 0x0040) != 0);
+    sendOtherIndidatorsCommand();
+  }
+
+  /**
+   * Method called when the simulator writes pseudo channel 163, what in the real system is
+   * channel 10 relay word 12.  The KEY REL, verb/noun flash and OPR ERR bits of 0163 are only
+   * set while those lights are dark in the simulator's flash cycle.  They are ignored, as
+   * channel 11 gives whether the lights flash and the blinking is timed locally.
+   *
+   * @param value The channel 163 value.
+   */
+  public void setRelayWord12(int value)
+  {
+    setTemp((value & 0x0008) != 0);
+    setRestart((value & 0x0080) != 0);
+    setStandby((value & 0x0100) != 0);
+    sendOtherIndidatorsCommand();
+  }
+
+  /**
+   * Method called to set the parity alarm which lights the RESTART indicator.
+   *
+   * @param value Whether the parity alarm is set or cleared.
+   */
+  public void setParalm(boolean value)
+  {
+    Utils.setBit(otherIndicatorBits, otherIndicators.RESTART.ordinal(), value);
+  }
+
+  /**
+   * Method called to light the RESTART indicator.
+   */
+  public void setRestart(boolean value)
+  {
+    Utils.setBit(otherIndicatorBits, otherIndicators.RESTART.ordinal(), value);
+  }
+
+  /**
+   * Method called to light the STBY indicator.
+   */
+  public void setStandby(boolean value)
+  {
+    Utils.setBit(otherIndicatorBits, otherIndicators.STBY.ordinal(), value);
   }
 
   /**
@@ -139,14 +429,7 @@ public class IndicatorInterface
    */
   public void setUplinkActy(boolean value)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.UPLINK_ACTY.ordinal());
-    }
-    else
-    {
-      otherIndicatorBits.clear(otherIndicators.UPLINK_ACTY.ordinal());
-    }
+    Utils.setBit(otherIndicatorBits, otherIndicators.UPLINK_ACTY.ordinal(), value);
   }
 
   /**
@@ -154,14 +437,7 @@ public class IndicatorInterface
    */
   public void setKeyRel(boolean value)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.KEY_REL.ordinal());
-    }
-    else
-    {
-      otherIndicatorBits.clear(otherIndicators.KEY_REL.ordinal());
-    }
+    Utils.setBit(otherIndicatorBits, otherIndicators.KEY_REL.ordinal(), value);
   }
 
   /**
@@ -169,14 +445,7 @@ public class IndicatorInterface
    */
   public void setOprErr(boolean value)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.OPR_ERR.ordinal());
-    }
-    else
-    {
-      otherIndicatorBits.clear(otherIndicators.OPR_ERR.ordinal());
-    }
+    Utils.setBit(otherIndicatorBits, otherIndicators.OPR_ERR.ordinal(), value);
   }
 
   /**
@@ -184,14 +453,7 @@ public class IndicatorInterface
    */
   public void setTemp(boolean value)
   {
-    if (value)
-    {
-      otherIndicatorBits.set(otherIndicators.TEMP.ordinal());
-    }
-    else
-    {
-      otherIndicatorBits.clear(otherIndicators.TEMP.ordinal());
-    }
+    Utils.setBit(otherIndicatorBits, otherIndicators.TEMP.ordinal(), value);
   }
 
   /**
@@ -199,7 +461,8 @@ public class IndicatorInterface
    */
   public void sendOtherIndidatorsCommand()
   {
-    serialInterface.sendOtherIndicatorsCommand(Utils.toInt(otherIndicatorBits));
+    requestSend(OTHER_INDICATORS);
+    wakeFlashTimer();
   }
 
   /**
@@ -207,14 +470,7 @@ public class IndicatorInterface
    */
   public void setVel(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.VEL.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.VEL.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.VEL.ordinal(), value);
   }
 
   /**
@@ -222,14 +478,7 @@ public class IndicatorInterface
    */
   public void setAlt(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.ALT.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.ALT.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.ALT.ordinal(), value);
   }
 
   /**
@@ -237,14 +486,7 @@ public class IndicatorInterface
    */
   public void setNoAtt(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.NO_ATT.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.NO_ATT.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.NO_ATT.ordinal(), value);
   }
 
   /**
@@ -252,14 +494,7 @@ public class IndicatorInterface
    */
   public void setGimbalLock(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.GIMBAL_LOCK.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.GIMBAL_LOCK.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.GIMBAL_LOCK.ordinal(), value);
   }
 
   /**
@@ -267,14 +502,7 @@ public class IndicatorInterface
    */
   public void setTracker(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.TRACKER.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.TRACKER.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.TRACKER.ordinal(), value);
   }
 
   /**
@@ -282,14 +510,7 @@ public class IndicatorInterface
    */
   public void setProg(boolean value)
   {
-    if (value)
-    {
-      displayIndicatorBits.set(displayIndicators.PROG.ordinal());
-    }
-    else
-    {
-      displayIndicatorBits.clear(displayIndicators.PROG.ordinal());
-    }
+    Utils.setBit(displayIndicatorBits, displayIndicators.PROG.ordinal(), value);
   }
 
   /**
@@ -297,6 +518,6 @@ public class IndicatorInterface
    */
   public void sendDisplayIndicatorsCommand()
   {
-    serialInterface.sendDisplayIndicatorsCommand(Utils.toInt(displayIndicatorBits));
+    requestSend(DISPLAY_INDICATORS);
   }
 }
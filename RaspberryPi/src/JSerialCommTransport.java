@@ -0,0 +1,162 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is the transport to a real Arduino through a jSerialComm serial port.  It is the
+            only class that uses jSerialComm directly.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import com.fazecast.jSerialComm.SerialPortInvalidPortException;
+
+public class JSerialCommTransport implements SerialTransport
+{
+  private final String path;
+  private final SerialPort port;
+
+  // The read timeout last given to the port, so it is only changed when needed.
+  private int readTimeout = -1;
+
+  private JSerialCommTransport(String path, SerialPort port)
+  {
+    this.path = path;
+    this.port = port;
+  }
+
+  /**
+   * Method to get the transport for a port path.
+   *
+   * @param path The port path.
+   * @return The transport, or null if there is no such port.
+   */
+  public static JSerialCommTransport create(String path)
+  {
+    try
+    {
+      return new JSerialCommTransport(path, SerialPort.getCommPort(path));
+    }
+    catch (SerialPortInvalidPortException e)
+    {
+      return null;
+    }
+  }
+
+  public String getName()
+  {
+    return path;
+  }
+
+  public String getSerialNumber()
+  {
+    return port.getSerialNumber();
+  }
+
+  public boolean open(int baudRate)
+  {
+    port.setComPortParameters(baudRate, 8, 1, 0);
+    setReadTimeout(0);
+    return port.openPort();
+  }
+
+  public boolean close()
+  {
+    return port.closePort();
+  }
+
+  public boolean isOpen()
+  {
+    return port.isOpen();
+  }
+
+  public int write(byte[] data, int length)
+  {
+    return port.writeBytes(data, length);
+  }
+
+  public int read(byte[] buffer, int length, int offset, int timeout)
+  {
+    setReadTimeout(timeout);
+    return port.readBytes(buffer, length, offset);
+  }
+
+  public int bytesAvailable()
+  {
+    return port.bytesAvailable();
+  }
+
+  public boolean setBaudRate(int baudRate)
+  {
+    return port.setBaudRate(baudRate);
+  }
+
+  public int getBaudRate()
+  {
+    return port.getBaudRate();
+  }
+
+  public void flush()
+  {
+    port.flushIOBuffers();
+  }
+
+  public boolean setListener(Listener listener)
+  {
+    // A port only has one listener, and it stays with the port when the port is closed.
+    port.removeDataListener();
+    if (listener == null)
+    {
+      return true;
+    }
+    return port.addDataListener(new SerialPortDataListener()
+    {
+      @Override
+      public int getListeningEvents()
+      {
+        return SerialPort.LISTENING_EVENT_DATA_AVAILABLE | SerialPort.LISTENING_EVENT_PORT_DISCONNECTED;
+      }
+
+      @Override
+      public void serialEvent(SerialPortEvent event)
+      {
+        if (event.getEventType() == SerialPort.LISTENING_EVENT_PORT_DISCONNECTED)
+        {
+          listener.disconnected();
+        }
+        else
+        {
+          listener.dataAvailable();
+        }
+      }
+    });
+  }
+
+  /**
+   * Internal method used to set the read timeout.  A timeout of 0 makes reads non-blocking,
+   * otherwise a read returns once any bytes arrive or the timeout passes.
+   *
+   * @param timeout The timeout in milliseconds.
+   */
+  private void setReadTimeout(int timeout)
+  {
+    if (timeout != readTimeout)
+    {
+      if (timeout == 0)
+      {
+        port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+      }
+      else
+      {
+        port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, timeout, 0);
+      }
+      readTimeout = timeout;
+    }
+  }
+}
@@ -17,81 +17,295 @@
             There is a second DSKY on the Command Module that uses a KEY2 control line.  This code is
             simulating DSKY1.
 
+            Key codes are delivered by a serial data listener as soon as they arrive and are queued for
+            the reader, so an idle keyboard uses no CPU.  The time each key waits between arriving and
+            being handled is measured.  Run this class on its own to measure idle CPU use and the key
+            latency.
+
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Event driven key input with latency statistics.
+            10/16/26  Keep waiting for keys while the keyboard is reconnected.
+            10/16/26  Keep the channel 15 register as an int.
+            10/16/26  Log through the asynchronous log.
+            10/16/26  Report a PRO key press once, rather than from then on.
 */
 import java.io.IOException;
-import java.math.BigInteger;
-import java.util.BitSet;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class KeyboardInterface
 {
   private static final KeyboardInterface instance = new KeyboardInterface();
 
+  private static final int QUEUE_SIZE = 32;
+
   private final SerialInterface serialInterface;
+  private final BlockingQueue<KeyPress> keyQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private final byte[] readBuffer = new byte[16];
+  private boolean listening = false;
+
+  // Statistics.
+  private final AtomicLong dataEvents = new AtomicLong();
+  private final AtomicLong keysReceived = new AtomicLong();
+  private final AtomicLong keysDropped = new AtomicLong();
+  private final AtomicLong keysHandled = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
 
   // Channel 15 contains the Keyboard #1 value of the last key pressed.
-  private BitSet channel15Register = new BitSet(5);
-  private boolean proKeyPressed = false;
+  private volatile int channel15Register = 0;
+  private final AtomicBoolean proKeyPressed = new AtomicBoolean();
 
   public static KeyboardInterface getInstance()
   {
     return instance;
   }
 
+  /**
+   * A key code along with the time it arrived.
+   */
+  private static final class KeyPress
+  {
+    private final int keyCode;
+    private final long arrivalTime;
+
+    private KeyPress(int keyCode, long arrivalTime)
+    {
+      this.keyCode = keyCode;
+      this.arrivalTime = arrivalTime;
+    }
+  }
+
   private KeyboardInterface()
   {
     serialInterface = SerialInterface.getInstance();
   }
 
+  /**
+   * Method called to start listening to the keyboard Arduino.  Must be called after the
+   * serial interface has been initialized.
+   *
+   * @throws IOException No keyboard was found.
+   */
+  public synchronized void initInterface() throws IOException
+  {
+    if (listening)
+    {
+      return;
+    }
+
+    serialInterface.addKeyboardListener(new SerialTransport.Listener()
+    {
+      @Override
+      public void dataAvailable()
+      {
+        readKeys();
+      }
+
+      @Override
+      public void disconnected()
+      {
+        // The supervisor reconnects the keyboard; keep waiting for keys.
+      }
+    });
+    listening = true;
+  }
+
+  /**
+   * Internal method used by the listener to read the waiting key codes and queue them.
+   * Each byte the Arduino sends is one key code.
+   */
+  private void readKeys()
+  {
+    long arrivalTime = System.nanoTime();
+    dataEvents.incrementAndGet();
+    try
+    {
+      int numRead;
+      while ((numRead = serialInterface.readKeyboardData(readBuffer)) > 0)
+      {
+        for (int i = 0; i < numRead; i++)
+        {
+          keysReceived.incrementAndGet();
+          if (!keyQueue.offer(new KeyPress(readBuffer[i], arrivalTime)))
+          {
+            keysDropped.incrementAndGet();
+          }
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      Log.error("Keyboard read failed: %s", e.getMessage());
+    }
+  }
+
   /**
    * Method to get the value in the Channel 15 register.
    *
    * @return The bits of channel 15.
    */
-  public BitSet getChannnel15Data()
+  public int getChannnel15Data()
   {
     return channel15Register;
   }
 
   /**
-   * Method to determine if the Proceed key has been pressed.
+   * Method to determine if the Proceed key has been pressed since this was last called.  A
+   * press is only reported once, so the key is not seen as held down from then on.
    *
    * @return Whether or not the PRO key has been pressed.
    */
-  public boolean isProKeyPressed()
+  public boolean consumeProKey()
   {
-    return proKeyPressed;
+    return proKeyPressed.getAndSet(false);
   }
 
   /**
-   * Method to read data from the serial interface and if a key has been pressed, then
-   * place the keycode value into the Channel 15 register.  The keycode values are
-   * cryptic NASA defined values.
+   * Method to wait for a key press from the keyboard and place the keycode value into the
+   * Channel 15 register.  The keycode values are cryptic NASA defined values.  The calling
+   * thread sleeps until a key arrives.
    *
-   * @return The keycode of the last key pressed.
-   * @throws IOException A serial interface error occurred.
+   * @return The keycode of the key pressed.
+   * @throws IOException No keyboard was found.
    */
   public int readData() throws IOException
   {
-    int keyCode = -1;
-    boolean dataFound = false;
-    while (!dataFound)
+    initInterface();
+
+    KeyPress keyPress;
+    try
+    {
+      keyPress = keyQueue.take();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for the Keyboard.");
+    }
+
+    long latency = System.nanoTime() - keyPress.arrivalTime;
+    keysHandled.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    maxLatency.accumulateAndGet(latency, Math::max);
+
+    if (keyPress.keyCode == 0)
+    {
+      proKeyPressed.set(true);
+    }
+    else
+    {
+      channel15Register = keyPress.keyCode & 0x001F;
+    }
+    return keyPress.keyCode;
+  }
+
+  /**
+   * Method to get the average time from a key arriving to it being handled.
+   *
+   * @return The average latency in microseconds.
+   */
+  public long getAverageLatency()
+  {
+    long handled = keysHandled.get();
+    return handled == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / handled);
+  }
+
+  /**
+   * Method to get the longest time from a key arriving to it being handled.
+   *
+   * @return The maximum latency in microseconds.
+   */
+  public long getMaxLatency()
+  {
+    return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+  }
+
+  /**
+   * Method to get a one line summary of the keyboard statistics.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Keyboard: events = " + dataEvents.get() + ", keys = " + keysReceived.get() +
+           ", handled = " + keysHandled.get() + ", dropped = " + keysDropped.get() +
+           ", latency = " + getAverageLatency() + " us (max " + getMaxLatency() + " us)";
+  }
+
+  /**
+   * Measure the idle CPU use of the keyboard input and the key to handler latency.
+   * The DSKY is left idle for the first part of the run, then keys are pressed.
+   *
+   * @param args [idle seconds] [key seconds]
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int idleSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int keySeconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+    SerialInterface serialInterface = SerialInterface.getInstance();
+    serialInterface.initInterface();
+    KeyboardInterface keyboardInterface = KeyboardInterface.getInstance();
+
+    Thread reader = new Thread(() ->
     {
-      byte[] bytesRead = serialInterface.readData();
-      if (bytesRead.length > 0)
+      try
       {
-        keyCode = new BigInteger(bytesRead).intValue();
-        if (keyCode == 0)
-        {
-          proKeyPressed = true;
-        }
-        else
+        while (true)
         {
-          channel15Register = BitSet.valueOf(new long[]{keyCode});
+          System.out.println("Key: " + keyboardInterface.readData());
         }
-        dataFound = true;
       }
+      catch (IOException e)
+      {
+        System.out.println(e.getMessage());
+      }
+    }, "Keyboard Reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    System.out.println("Leave the keyboard idle for " + idleSeconds + " seconds...");
+    long cpuStart = getProcessCpuTime();
+    long wallStart = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(idleSeconds));
+    long cpuTime = getProcessCpuTime() - cpuStart;
+    long wallTime = System.nanoTime() - wallStart;
+    if (cpuStart < 0)
+    {
+      System.out.println("Process CPU time is not available on this JVM.");
+    }
+    else
+    {
+      System.out.printf("Idle CPU: %d ms in %d ms (%.2f%% of one core)%n",
+                        TimeUnit.NANOSECONDS.toMillis(cpuTime), TimeUnit.NANOSECONDS.toMillis(wallTime),
+                        100.0 * cpuTime / wallTime);
+    }
+
+    System.out.println("Press keys for " + keySeconds + " seconds...");
+    Thread.sleep(TimeUnit.SECONDS.toMillis(keySeconds));
+    System.out.println(keyboardInterface.getStatistics());
+
+    serialInterface.closeInterface();
+  }
+
+  /**
+   * Internal method used to get the CPU time used by this process.
+   *
+   * @return The CPU time in nanoseconds, -1 if not available.
+   */
+  private static long getProcessCpuTime()
+  {
+    OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+    if (bean instanceof com.sun.management.OperatingSystemMXBean)
+    {
+      return ((com.sun.management.OperatingSystemMXBean)bean).getProcessCpuTime();
     }
-    return keyCode;
+    return -1;
   }
 }
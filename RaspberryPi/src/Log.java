@@ -0,0 +1,400 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton thread that writes the log.  Printing to the console under journald
+            can block, so the threads handling packets, keys and the serial ports only put the message
+            format and its arguments in a fixed size ring; this thread formats and prints them.  When the
+            ring is full the message is dropped and counted rather than waiting.  Messages below the log
+            level are dropped before anything is done with them.  Each message format is a log site, and
+            a site that logs more than its limit in a second is held quiet until the next second, when the
+            number of messages held back is logged.  The arguments of a message are boxed into an array
+            before the level is checked, so a call on a hot path is guarded with isEnabled().
+
+            Packet tracing is a static final switch.  When it is off the JIT removes the tracing code, so
+            it costs nothing.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Report the problems found reading the settings.
+            10/16/26  Flush waits for the messages to be printed, and the cost per call is measured warm.
+*/
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Log extends Thread
+{
+  public enum Level
+  {
+    ERROR,
+    WARN,
+    INFO,
+    DEBUG
+  }
+
+  private static final int RING_SIZE = 1024;
+  private static final int DEFAULT_SITE_LIMIT = 10;
+  private static final long SITE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+  // Whether every simulator packet is logged.  Read once so the tracing code compiles away when off.
+  public static final boolean TRACE_PACKETS =
+      Boolean.parseBoolean(Settings.getInstance().getString(Settings.TRACE_PACKETS, "false"));
+
+  private static final Log instance = new Log();
+
+  private final BlockingQueue<Entry> ring = new ArrayBlockingQueue<>(RING_SIZE);
+  private final ConcurrentHashMap<String, Site> sites = new ConcurrentHashMap<>();
+  private final Level level;
+  private final int siteLimit;
+
+  // Statistics.
+  private final AtomicLong messagesQueued = new AtomicLong();
+  private final AtomicLong messagesLogged = new AtomicLong();
+  private final AtomicLong messagesDropped = new AtomicLong();
+  private final AtomicLong messagesLimited = new AtomicLong();
+
+  /**
+   * A message waiting to be printed.
+   */
+  private static class Entry
+  {
+    private final long time = System.currentTimeMillis();
+    private final Level level;
+    private final String format;
+    private final Object[] args;
+    private final Throwable throwable;
+
+    private Entry(Level level, String format, Object[] args, Throwable throwable)
+    {
+      this.level = level;
+      this.format = format;
+      this.args = args;
+      this.throwable = throwable;
+    }
+  }
+
+  /**
+   * The messages a log site has logged in the current second.
+   */
+  private static class Site
+  {
+    private volatile long windowStart = System.nanoTime();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger held = new AtomicInteger();
+  }
+
+  public static Log getInstance()
+  {
+    return instance;
+  }
+
+  private Log()
+  {
+    super("Log");
+    setDaemon(true);
+    Settings settings = Settings.getInstance();
+    Level logLevel;
+    try
+    {
+      logLevel = Level.valueOf(settings.getString(Settings.LOG_LEVEL, Level.INFO.name()).toUpperCase());
+    }
+    catch (IllegalArgumentException e)
+    {
+      logLevel = Level.INFO;
+    }
+    level = logLevel;
+
+    // Not getInt(), which logs a bad value through the log this is building.
+    String limit = settings.getString(Settings.LOG_SITE_LIMIT, String.valueOf(DEFAULT_SITE_LIMIT));
+    int logSiteLimit = DEFAULT_SITE_LIMIT;
+    boolean badLimit = false;
+    try
+    {
+      logSiteLimit = Integer.parseInt(limit);
+    }
+    catch (NumberFormatException e)
+    {
+      badLimit = true;
+    }
+    siteLimit = logSiteLimit;
+    start();
+
+    // The settings can't log their own problems, as they are read before the log exists.
+    if (settings.getReadError() != null)
+    {
+      log(Level.WARN, "%s", new Object[] { settings.getReadError() }, null);
+    }
+    if (badLimit)
+    {
+      log(Level.WARN, "Setting %s = %s is not a number, using %d",
+          new Object[] { Settings.LOG_SITE_LIMIT, limit, DEFAULT_SITE_LIMIT }, null);
+    }
+  }
+
+  /**
+   * Method to log an error.
+   *
+   * @param format The message, formatted as String.format() does.
+   * @param args The values in the message.
+   */
+  public static void error(String format, Object... args)
+  {
+    instance.log(Level.ERROR, format, args, null);
+  }
+
+  /**
+   * Method to log an error along with the exception that caused it.
+   *
+   * @param throwable The exception.
+   * @param format The message, formatted as String.format() does.
+   * @param args The values in the message.
+   */
+  public static void error(Throwable throwable, String format, Object... args)
+  {
+    instance.log(Level.ERROR, format, args, throwable);
+  }
+
+  /**
+   * Method to log a warning.
+   *
+   * @param format The message, formatted as String.format() does.
+   * @param args The values in the message.
+   */
+  public static void warn(String format, Object... args)
+  {
+    instance.log(Level.WARN, format, args, null);
+  }
+
+  /**
+   * Method to log information.
+   *
+   * @param format The message, formatted as String.format() does.
+   * @param args The values in the message.
+   */
+  public static void info(String format, Object... args)
+  {
+    instance.log(Level.INFO, format, args, null);
+  }
+
+  /**
+   * Method to log detail only wanted when debugging.
+   *
+   * @param format The message, formatted as String.format() does.
+   * @param args The values in the message.
+   */
+  public static void debug(String format, Object... args)
+  {
+    instance.log(Level.DEBUG, format, args, null);
+  }
+
+  /**
+   * Method to determine if messages of a level are logged, so a caller can skip building
+   * costly arguments.
+   *
+   * @param messageLevel The level.
+   * @return Whether or not the level is logged.
+   */
+  public static boolean isEnabled(Level messageLevel)
+  {
+    return messageLevel.compareTo(instance.level) <= 0;
+  }
+
+  /**
+   * Internal method used to put a message in the ring.  This method does not block.
+   *
+   * @param messageLevel The level.
+   * @param format The message format, which is also the log site.
+   * @param args The values in the message.
+   * @param throwable The exception, null if none.
+   */
+  private void log(Level messageLevel, String format, Object[] args, Throwable throwable)
+  {
+    if (messageLevel.compareTo(level) > 0 || !allowed(format))
+    {
+      return;
+    }
+    if (ring.offer(new Entry(messageLevel, format, args, throwable)))
+    {
+      messagesQueued.incrementAndGet();
+    }
+    else
+    {
+      messagesDropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Internal method used to count a message against its site's limit.  The first message of a
+   * new second also logs how many were held back in the last one.
+   *
+   * @param format The message format.
+   * @return Whether or not the message may be logged.
+   */
+  private boolean allowed(String format)
+  {
+    Site site = sites.computeIfAbsent(format, key -> new Site());
+    long now = System.nanoTime();
+    long windowStart = site.windowStart;
+    if (now - windowStart >= SITE_WINDOW)
+    {
+      site.windowStart = now;
+      site.count.set(0);
+      int held = site.held.getAndSet(0);
+      if (held > 0 &&
+          ring.offer(new Entry(Level.INFO, "%d more like \"%s\" were not logged", new Object[] { held, format }, null)))
+      {
+        messagesQueued.incrementAndGet();
+      }
+    }
+
+    if (site.count.incrementAndGet() > siteLimit)
+    {
+      site.held.incrementAndGet();
+      messagesLimited.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Method called to wait until the messages logged so far have been printed, e.g. before the
+   * program exits.
+   *
+   * @param timeout The longest to wait (ms).
+   */
+  public static void flush(long timeout)
+  {
+    // The ring empties before the last message taken from it is printed, so wait for the count.
+    long queued = instance.messagesQueued.get();
+    long end = System.currentTimeMillis() + timeout;
+    while (instance.messagesLogged.get() < queued && System.currentTimeMillis() < end)
+    {
+      try
+      {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Loop printing the messages in the ring.
+   */
+  public void run()
+  {
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    Date date = new Date();
+    try
+    {
+      while (true)
+      {
+        Entry entry = ring.take();
+        date.setTime(entry.time);
+        String message;
+        try
+        {
+          message = entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args);
+        }
+        catch (RuntimeException e)
+        {
+          message = entry.format + " (bad format: " + e.getMessage() + ")";
+        }
+        System.out.println(timeFormat.format(date) + " " + entry.level + " " + message);
+        if (entry.throwable != null)
+        {
+          StringWriter trace = new StringWriter();
+          entry.throwable.printStackTrace(new PrintWriter(trace));
+          System.out.print(trace);
+        }
+        messagesLogged.incrementAndGet();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // Shutting down.
+    }
+  }
+
+  /**
+   * Method to get a one line summary of the log.
+   *
+   * @return The statistics.
+   */
+  public static String getStatistics()
+  {
+    return "Log: level = " + instance.level + ", logged = " + instance.messagesLogged.get() + ", dropped = " +
+           instance.messagesDropped.get() + ", rate limited = " + instance.messagesLimited.get();
+  }
+
+  /**
+   * Used to measure what logging costs the calling thread, with and without a ring full of
+   * messages still to print, once the calls have been compiled.
+   *
+   * @param args The number of messages to log.
+   */
+  public static void main(String[] args)
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+    // Run once to warm up, then again to measure.
+    long[] times = new long[4];
+    for (int pass = 0; pass < 2; pass++)
+    {
+      // One site, so all but the first few are held back by the rate limit.
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++)
+      {
+        info("Limited message %d", i);
+      }
+      times[0] = System.nanoTime() - start;
+
+      // A different site per message, so the ring fills and the rest are dropped.
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++)
+      {
+        warn("Message from site " + (i % 1000) + ": %d", i);
+      }
+      times[1] = System.nanoTime() - start;
+
+      // Off by level: the arguments are still boxed into an array before the level is checked.
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++)
+      {
+        debug("Debug message %d", i);
+      }
+      times[2] = System.nanoTime() - start;
+
+      // Off by level and guarded, as a hot path does.
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++)
+      {
+        if (isEnabled(Level.DEBUG))
+        {
+          debug("Debug message %d", i);
+        }
+      }
+      times[3] = System.nanoTime() - start;
+      flush(5000);
+    }
+
+    System.out.println("Per call: rate limited " + times[0] / count + " ns, ring " + times[1] / count +
+                       " ns, level off " + times[2] / count + " ns, guarded " + times[3] / count +
+                       " ns, packet tracing " + (TRACE_PACKETS ? "on" : "off"));
+    System.out.println(getStatistics());
+  }
+}
@@ -0,0 +1,224 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is the GPIO backend through the memory mapped GPIO registers alone, with no Pi4J or
+            native library.  The registers give no interrupts, so a thread polls the level register and
+            reports each control line that has changed since the last poll, timed to the poll.  One read
+            sees every line and the channel bus at the same instant.  Polling costs a core while it spins;
+            the poll interval trades that against how late an edge is seen.  The pull resistors are left as
+            they are, so H/W Present needs its pull down fitted on the board.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class MappedGpioBackend implements GpioBackend
+{
+  private static final Line[] LINES = Line.values();
+
+  private final String path;
+  private final long pollInterval;
+
+  // The BCM pin mask of each control line, by ordinal, and of all of them.
+  private final int[] lineMasks = new int[LINES.length];
+  private int edgeMask = 0;
+
+  private GpioRegisters registers = null;
+  private MappedGpioBus bus = null;
+  private int kbStrMask = 0;
+  private volatile Listener listener = null;
+  private volatile Thread poller = null;
+
+  /**
+   * Build the backend.
+   *
+   * @param path The GPIO memory device, or a file standing in for it.
+   * @param pollInterval How long to wait between polls of the control lines in microseconds, 0 to
+   *                     spin.
+   */
+  public MappedGpioBackend(String path, long pollInterval)
+  {
+    this.path = path;
+    this.pollInterval = pollInterval;
+  }
+
+  public String getName()
+  {
+    return "Mapped " + path + ", polled every " + pollInterval + " us";
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  public void open() throws IOException
+  {
+    registers = new GpioRegisters(path);
+    bus = new MappedGpioBus(registers, CHANNEL_BUS_PINS);
+    bus.setOutput(false);
+
+    for (Line line : LINES)
+    {
+      int pin = GpioRegisters.bcmPin(line.getPin());
+      lineMasks[line.ordinal()] = 1 << pin;
+      registers.writeFunction(pin / 10, 7 << (3 * (pin % 10)), GpioRegisters.FSEL_INPUT);
+      if (line != Line.HW_PRESENT)
+      {
+        edgeMask |= 1 << pin;
+      }
+    }
+
+    int kbStrPin = GpioRegisters.bcmPin(KB_STR_PIN);
+    kbStrMask = 1 << kbStrPin;
+    registers.clear(kbStrMask);
+    registers.writeFunction(kbStrPin / 10, 7 << (3 * (kbStrPin % 10)),
+                            GpioRegisters.FSEL_OUTPUT << (3 * (kbStrPin % 10)));
+
+    Thread thread = new Thread(this::poll, "GPIO Poller");
+    thread.setDaemon(true);
+    poller = thread;
+    thread.start();
+  }
+
+  public void close()
+  {
+    Thread thread = poller;
+    poller = null;
+    if (thread != null)
+    {
+      thread.interrupt();
+    }
+  }
+
+  public boolean isHigh(Line line)
+  {
+    return (registers.readLevels() & lineMasks[line.ordinal()]) != 0;
+  }
+
+  public int readChannelBus()
+  {
+    return bus.read();
+  }
+
+  public void writeChannelBus(int word, int mask)
+  {
+    bus.write(word, mask);
+  }
+
+  public void setChannelBusOutput(boolean output)
+  {
+    bus.setOutput(output);
+  }
+
+  public void pulseKbStr(int duration)
+  {
+    registers.set(kbStrMask);
+    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(duration));
+    registers.clear(kbStrMask);
+  }
+
+  /**
+   * Internal method used to poll the control lines until the backend is closed.
+   */
+  private void poll()
+  {
+    long pollNanos = TimeUnit.MICROSECONDS.toNanos(pollInterval);
+    int levels = registers.readLevels();
+    while (poller == Thread.currentThread())
+    {
+      long now = System.nanoTime();
+      int newLevels = registers.readLevels();
+      int changed = (newLevels ^ levels) & edgeMask;
+      levels = newLevels;
+
+      Listener lineListener = listener;
+      if (changed != 0 && lineListener != null)
+      {
+        for (Line line : LINES)
+        {
+          int lineMask = lineMasks[line.ordinal()];
+          if ((changed & lineMask) != 0)
+          {
+            lineListener.lineChanged(line, now, (newLevels & lineMask) != 0);
+          }
+        }
+      }
+
+      if (pollNanos > 0)
+      {
+        LockSupport.parkNanos(pollNanos);
+      }
+      else
+      {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * Used to check the polled edges against a fake register file.
+   *
+   * @param args The register file, a temporary file if not given.
+   * @throws Exception The register file could not be used.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    File file;
+    if (args.length > 0)
+    {
+      file = new File(args[0]);
+    }
+    else
+    {
+      file = File.createTempFile("gpiomem", ".bin");
+      file.deleteOnExit();
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      raf.setLength(GpioRegisters.MAP_SIZE);
+    }
+
+    List<String> edges = new CopyOnWriteArrayList<>();
+    MappedGpioBackend backend = new MappedGpioBackend(file.getPath(), 0);
+    backend.setListener((line, edgeTime, high) -> edges.add(line + (high ? "+" : "-") + "@" +
+                                                           Integer.toOctalString(backend.readChannelBus())));
+    backend.open();
+
+    // Strobe DISP low and high again with a word on the bus, as the AGC does.
+    GpioRegisters registers = new GpioRegisters(file.getPath());
+    int dispPin = 1 << GpioRegisters.bcmPin(Line.DISP.getPin());
+    int word = 054321;
+    int levels = dispPin;
+    for (int bit = 0; bit < CHANNEL_BUS_PINS.length; bit++)
+    {
+      if (Utils.getBit(word, bit))
+      {
+        levels |= 1 << GpioRegisters.bcmPin(CHANNEL_BUS_PINS[bit]);
+      }
+    }
+    registers.writeRegister(GpioRegisters.GPLEV0, dispPin);
+    TimeUnit.MILLISECONDS.sleep(50);
+    edges.clear();
+    registers.writeRegister(GpioRegisters.GPLEV0, levels & ~dispPin);
+    TimeUnit.MILLISECONDS.sleep(50);
+    registers.writeRegister(GpioRegisters.GPLEV0, levels);
+    TimeUnit.MILLISECONDS.sleep(50);
+    backend.close();
+
+    boolean passed = edges.equals(List.of("DISP-@54321", "DISP+@54321"));
+    System.out.println("Edges: " + edges + ", " + (passed ? "PASS" : "FAIL"));
+  }
+}
@@ -0,0 +1,235 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class reads and writes the AGC channel bus through the memory mapped GPIO registers.  The
+            whole bus is read with one read of the level register, so the word can't be torn by the AGC
+            changing the bus part way through.  Tables built once turn each byte of the level register
+            into the bus bits of its pins, and each byte of a bus word into the pins to set, so no pin is
+            tested one at a time.  Changing the bus direction writes each function select register the
+            bus uses once, rather than each pin separately.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+public class MappedGpioBus
+{
+  private final GpioRegisters registers;
+  private final int width;
+  private final int busMask;
+
+  // The bus bits of each byte of the level register, and the pins of each byte of a bus word.
+  private final int[][] levelToBus = new int[4][256];
+  private final int[][] busToLevel = new int[4][256];
+
+  // The function select bits of the bus pins in each register, and those bits set for output.
+  private final int[] functionMask = new int[GpioRegisters.FSEL_REGISTERS];
+  private final int[] functionOutput = new int[GpioRegisters.FSEL_REGISTERS];
+
+  /**
+   * Build the bus.
+   *
+   * @param registers The GPIO registers.
+   * @param wiringPiPins The wiringPi pin of each bus bit, least significant first.
+   */
+  public MappedGpioBus(GpioRegisters registers, int[] wiringPiPins)
+  {
+    this.registers = registers;
+    this.width = wiringPiPins.length;
+    this.busMask = (1 << width) - 1;
+
+    int[] pinOfBit = new int[width];
+    for (int bit = 0; bit < width; bit++)
+    {
+      int pin = GpioRegisters.bcmPin(wiringPiPins[bit]);
+      pinOfBit[bit] = pin;
+      functionMask[pin / 10] |= 7 << (3 * (pin % 10));
+      functionOutput[pin / 10] |= GpioRegisters.FSEL_OUTPUT << (3 * (pin % 10));
+    }
+
+    for (int part = 0; part < 4; part++)
+    {
+      for (int value = 0; value < 256; value++)
+      {
+        for (int bit = 0; bit < width; bit++)
+        {
+          if (pinOfBit[bit] / 8 == part && (value & (1 << (pinOfBit[bit] % 8))) != 0)
+          {
+            levelToBus[part][value] |= 1 << bit;
+          }
+          if (bit / 8 == part && (value & (1 << (bit % 8))) != 0)
+          {
+            busToLevel[part][value] |= 1 << pinOfBit[bit];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Method to read the bus in one access.
+   *
+   * @return The bus word.
+   */
+  public int read()
+  {
+    int levels = registers.readLevels();
+    return levelToBus[0][levels & 0xFF] | levelToBus[1][(levels >>> 8) & 0xFF] |
+           levelToBus[2][(levels >>> 16) & 0xFF] | levelToBus[3][levels >>> 24];
+  }
+
+  /**
+   * Method to drive some bits of the bus.  The pins are set with one write and cleared with
+   * another.
+   *
+   * @param word The bus word.
+   * @param mask The bits of the word to drive.
+   */
+  public void write(int word, int mask)
+  {
+    mask &= busMask;
+    int high = pins(word & mask);
+    int low = pins(~word & mask);
+    if (high != 0)
+    {
+      registers.set(high);
+    }
+    if (low != 0)
+    {
+      registers.clear(low);
+    }
+  }
+
+  /**
+   * Internal method used to get the pins of some bus bits.
+   *
+   * @param word The bus bits.
+   * @return The pins, bit n is BCM GPIO n.
+   */
+  private int pins(int word)
+  {
+    return busToLevel[0][word & 0xFF] | busToLevel[1][(word >>> 8) & 0xFF] |
+           busToLevel[2][(word >>> 16) & 0xFF] | busToLevel[3][word >>> 24];
+  }
+
+  /**
+   * Method to turn the bus around.
+   *
+   * @param output Whether the bus pins are outputs or inputs.
+   */
+  public void setOutput(boolean output)
+  {
+    for (int register = 0; register < GpioRegisters.FSEL_REGISTERS; register++)
+    {
+      if (functionMask[register] != 0)
+      {
+        registers.writeFunction(register, functionMask[register], output ? functionOutput[register] : 0);
+      }
+    }
+  }
+
+  /**
+   * Method to get the pins of the bus.
+   *
+   * @return The pins, bit n is BCM GPIO n.
+   */
+  public int getPinMask()
+  {
+    return pins(busMask);
+  }
+
+  /**
+   * Used to check the bus against a fake register file and time a read.
+   *
+   * @param args The register file, a temporary file if not given.
+   * @throws IOException The register file could not be used.
+   */
+  public static void main(String[] args) throws IOException
+  {
+    File file;
+    if (args.length > 0)
+    {
+      file = new File(args[0]);
+    }
+    else
+    {
+      file = File.createTempFile("gpiomem", ".bin");
+      file.deleteOnExit();
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      raf.setLength(GpioRegisters.MAP_SIZE);
+    }
+
+    GpioRegisters registers = new GpioRegisters(file.getPath());
+    int[] busPins = { 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18 };
+    MappedGpioBus bus = new MappedGpioBus(registers, busPins);
+
+    // Put a word on the pins the slow way and read it back the fast way.
+    boolean readPassed = true;
+    for (int word : new int[] { 0, 0x7FFF, 0x5BBD, 0x2AAA, 0x5555, 0x0001, 0x4000 })
+    {
+      int levels = 0x80000000;
+      for (int bit = 0; bit < busPins.length; bit++)
+      {
+        if ((word & (1 << bit)) != 0)
+        {
+          levels |= 1 << GpioRegisters.bcmPin(busPins[bit]);
+        }
+      }
+      registers.writeRegister(GpioRegisters.GPLEV0, levels);
+      readPassed &= bus.read() == word;
+    }
+    System.out.println("Read: " + (readPassed ? "PASS" : "FAIL"));
+
+    // Drive the five key bits and check what went to the set and clear registers.
+    registers.writeRegister(GpioRegisters.GPSET0, 0);
+    registers.writeRegister(GpioRegisters.GPCLR0, 0);
+    bus.write(0x15, 0x1F);
+    int set = registers.readRegister(GpioRegisters.GPSET0);
+    int clear = registers.readRegister(GpioRegisters.GPCLR0);
+    int keyPins = bus.pins(0x1F);
+    boolean writePassed = set == bus.pins(0x15) && clear == bus.pins(0x0A) && (set | clear) == keyPins &&
+                          (set & clear) == 0;
+    System.out.println("Write: set " + Integer.toHexString(set) + ", clear " + Integer.toHexString(clear) + ", " +
+                       (writePassed ? "PASS" : "FAIL"));
+
+    // Turn the bus around, leaving a pin that isn't on the bus alone.
+    registers.writeRegister(GpioRegisters.GPFSEL0 + 4, 7 << 18);
+    bus.setOutput(true);
+    boolean directionPassed = true;
+    for (int bit = 0; bit < busPins.length; bit++)
+    {
+      int pin = GpioRegisters.bcmPin(busPins[bit]);
+      directionPassed &= ((registers.readFunction(pin / 10) >> (3 * (pin % 10))) & 7) == GpioRegisters.FSEL_OUTPUT;
+    }
+    bus.setOutput(false);
+    for (int register = 0; register < GpioRegisters.FSEL_REGISTERS; register++)
+    {
+      directionPassed &= (registers.readFunction(register) & bus.functionMask[register]) == 0;
+    }
+    directionPassed &= (registers.readFunction(1) & (7 << 18)) == 7 << 18;
+    System.out.println("Direction: " + (directionPassed ? "PASS" : "FAIL"));
+
+    // Time a read of the whole bus.
+    int count = 10000000;
+    int sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+    {
+      sum += bus.read();
+    }
+    long time = System.nanoTime() - start;
+    System.out.println("Bus read: " + TimeUnit.NANOSECONDS.toMillis(time) + " ms for " + count + " reads, " +
+                       (double)time / count + " ns each (checksum " + sum + ")");
+  }
+}
@@ -0,0 +1,302 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class splits the byte stream from the simulator into packets.  Each packet is four bytes,
+            00pppppp 01pppddd 10dddddd 11dddddd, where p = the channel number and d = the 15 bits of
+            channel data.  The top two bits of each byte say where it belongs in the packet.  A read from
+            the socket can end part way through a packet, so the partial packet is kept until the rest
+            arrives.  A byte out of place drops the partial packet and the framer waits for the next first
+            byte.  Packets are handed to the handler as they are decoded, without allocating anything.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Decode from and encode into byte buffers.
+*/
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class PacketFramer
+{
+  private static final int PACKET_SIZE = 4;
+
+  // yaAGC writes at most one channel per memory cycle of 11.72 us.
+  private static final int MAX_PACKET_RATE = 85334;
+
+  private final Handler handler;
+
+  // The position of the next byte in the packet, and what has been decoded of the packet so far.
+  private int position = 0;
+  private int partial = 0;
+
+  // Statistics.
+  private long packetsDecoded = 0;
+  private long bytesDiscarded = 0;
+  private long resyncs = 0;
+
+  /**
+   * Receives each packet decoded.
+   */
+  public interface Handler
+  {
+    /**
+     * Method called with a packet.
+     *
+     * @param channel The channel number.
+     * @param value The 15 bits of channel data.
+     */
+    void packetReceived(int channel, int value);
+  }
+
+  public PacketFramer(Handler handler)
+  {
+    this.handler = handler;
+  }
+
+  /**
+   * Method called with the bytes read from the simulator.  Every complete packet is handed to
+   * the handler; a packet that is not complete is kept for the next call.
+   *
+   * @param data The buffer.
+   * @param offset The position of the first byte.
+   * @param length The number of bytes.
+   * @return The number of packets decoded.
+   */
+  public int decode(byte[] data, int offset, int length)
+  {
+    int packets = 0;
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      if (decodeByte(data[i]))
+      {
+        packets++;
+      }
+    }
+    return packets;
+  }
+
+  /**
+   * Method called with the bytes read from the simulator into a buffer.  The bytes from the
+   * buffer's position to its limit are decoded and the position is moved to the limit.
+   *
+   * @param data The buffer.
+   * @return The number of packets decoded.
+   */
+  public int decode(ByteBuffer data)
+  {
+    int packets = 0;
+    int end = data.limit();
+    for (int i = data.position(); i < end; i++)
+    {
+      if (decodeByte(data.get(i)))
+      {
+        packets++;
+      }
+    }
+    data.position(end);
+    return packets;
+  }
+
+  /**
+   * Internal method used to add a byte to the packet.
+   *
+   * @param data The byte.
+   * @return Whether or not the byte completed a packet.
+   */
+  private boolean decodeByte(byte data)
+  {
+    int signature = (data & 0xC0) >> 6;
+    if (signature != position)
+    {
+      // Out of place: drop what there is, and start again if this is a first byte.
+      bytesDiscarded += position;
+      if (position != 0)
+      {
+        resyncs++;
+      }
+      position = 0;
+      if (signature != 0)
+      {
+        bytesDiscarded++;
+        return false;
+      }
+    }
+
+    int bits = data & 0x3F;
+    if (position == 0)
+    {
+      partial = bits;
+    }
+    else
+    {
+      partial = (partial << 6) | bits;
+    }
+
+    if (++position < PACKET_SIZE)
+    {
+      return false;
+    }
+
+    // 24 bits: 6 + 3 channel bits, then 15 data bits.
+    position = 0;
+    packetsDecoded++;
+    handler.packetReceived(partial >> 15, partial & 0x7FFF);
+    return true;
+  }
+
+  /**
+   * Method called when the connection is lost, so a partial packet isn't joined to the
+   * bytes of the next connection.
+   */
+  public void reset()
+  {
+    bytesDiscarded += position;
+    position = 0;
+    partial = 0;
+  }
+
+  /**
+   * Method to build a packet.
+   *
+   * @param channel The channel number.
+   * @param value The 15 bits of channel data.
+   * @param packet The buffer to build the packet in.
+   * @param offset The position of the packet in the buffer.
+   */
+  public static void encode(int channel, int value, byte[] packet, int offset)
+  {
+    packet[offset] = (byte)((channel >> 3) & 0x3F);
+    packet[offset + 1] = (byte)(0x40 | ((channel & 0x07) << 3) | ((value >> 12) & 0x07));
+    packet[offset + 2] = (byte)(0x80 | ((value >> 6) & 0x3F));
+    packet[offset + 3] = (byte)(0xC0 | (value & 0x3F));
+  }
+
+  /**
+   * Method to build a packet in a buffer at its position.
+   *
+   * @param channel The channel number.
+   * @param value The 15 bits of channel data.
+   * @param packet The buffer to build the packet in.
+   */
+  public static void encode(int channel, int value, ByteBuffer packet)
+  {
+    packet.put((byte)((channel >> 3) & 0x3F));
+    packet.put((byte)(0x40 | ((channel & 0x07) << 3) | ((value >> 12) & 0x07)));
+    packet.put((byte)(0x80 | ((value >> 6) & 0x3F)));
+    packet.put((byte)(0xC0 | (value & 0x3F)));
+  }
+
+  /**
+   * Method to get a one line summary of the packets.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Packets: decoded = " + packetsDecoded + ", discarded bytes = " + bytesDiscarded + ", resyncs = " +
+           resyncs;
+  }
+
+  /**
+   * Used to check the framer and measure its throughput against the fastest yaAGC can send.
+   *
+   * @param args The number of packets and the number of seconds to run for.
+   */
+  public static void main(String[] args)
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+    Random random = new Random(1);
+    byte[] stream = new byte[count * PACKET_SIZE];
+    long expectedSum = 0;
+    for (int i = 0; i < count; i++)
+    {
+      int channel = random.nextInt(0x200);
+      int value = random.nextInt(0x8000);
+      encode(channel, value, stream, i * PACKET_SIZE);
+      expectedSum += channel * 0x8000L + value;
+    }
+
+    // Split the stream into reads of random sizes.
+    long[] sum = new long[1];
+    PacketFramer framer = new PacketFramer((channel, value) -> sum[0] += channel * 0x8000L + value);
+    int packets = 0;
+    for (int offset = 0; offset < stream.length; )
+    {
+      int length = Math.min(1 + random.nextInt(1024), stream.length - offset);
+      packets += framer.decode(stream, offset, length);
+      offset += length;
+    }
+    boolean splitPassed = packets == count && sum[0] == expectedSum;
+    System.out.println("Split reads: " + packets + " of " + count + " packets, " + (splitPassed ? "PASS" : "FAIL"));
+
+    // Drop a byte out of some packets; only those packets may be lost.
+    byte[] damaged = new byte[stream.length];
+    int damagedLength = 0;
+    int dropped = 0;
+    for (int i = 0; i < count; i++)
+    {
+      int skip = i % 100 == 50 ? random.nextInt(PACKET_SIZE) : -1;
+      if (skip >= 0)
+      {
+        dropped++;
+      }
+      for (int j = 0; j < PACKET_SIZE; j++)
+      {
+        if (j != skip)
+        {
+          damaged[damagedLength++] = stream[i * PACKET_SIZE + j];
+        }
+      }
+    }
+    framer = new PacketFramer((channel, value) -> { });
+    packets = framer.decode(damaged, 0, damagedLength);
+    boolean resyncPassed = packets == count - dropped;
+    System.out.println("Resync: " + packets + " of " + (count - dropped) + " packets, " + framer.getStatistics() +
+                       ", " + (resyncPassed ? "PASS" : "FAIL"));
+
+    // Throughput, in 1 KB reads as the socket client does.
+    framer = new PacketFramer((channel, value) -> sum[0] += value);
+    long decoded = 0;
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    while (System.nanoTime() < end)
+    {
+      for (int offset = 0; offset < stream.length; offset += 1024)
+      {
+        decoded += framer.decode(stream, offset, Math.min(1024, stream.length - offset));
+      }
+    }
+    long time = System.nanoTime() - start;
+    long rate = decoded * TimeUnit.SECONDS.toNanos(1) / time;
+    System.out.println("Throughput: " + rate + " packets/s, " + rate / MAX_PACKET_RATE +
+                       " times the yaAGC maximum of " + MAX_PACKET_RATE + " packets/s, " +
+                       (rate > MAX_PACKET_RATE ? "PASS" : "FAIL"));
+
+    // The same from a direct buffer, as the socket client reads into.
+    ByteBuffer direct = ByteBuffer.allocateDirect(stream.length);
+    direct.put(stream);
+    decoded = 0;
+    start = System.nanoTime();
+    end = start + TimeUnit.SECONDS.toNanos(seconds);
+    while (System.nanoTime() < end)
+    {
+      for (int offset = 0; offset < stream.length; offset += 1024)
+      {
+        direct.limit(Math.min(offset + 1024, stream.length)).position(offset);
+        decoded += framer.decode(direct);
+      }
+    }
+    time = System.nanoTime() - start;
+    rate = decoded * TimeUnit.SECONDS.toNanos(1) / time;
+    System.out.println("Direct buffer throughput: " + rate + " packets/s, " +
+                       (rate > MAX_PACKET_RATE ? "PASS" : "FAIL"));
+  }
+}
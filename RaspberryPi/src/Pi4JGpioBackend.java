@@ -0,0 +1,222 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is the GPIO backend through Pi4J.  It is the only class that uses Pi4J directly.  Each
+            control line has a Pi4J listener; Pi4J gives no time for an edge, so the time is taken as the
+            listener is entered.  Where /dev/gpiomem can be mapped the channel bus is read in one access of
+            the GPIO level register, so the word is not torn, and written and turned around with a write per
+            register rather than a call per pin.  Otherwise the bus goes through Pi4J pin by pin.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Latch the bus word while the bus is input.
+*/
+import com.pi4j.io.gpio.*;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ *   The AGC interface uses the following pins:
+ *
+ *   Assignment		  GPIO Pin
+ *   H/W Present        2
+ *   Channel Bus 1			4
+ *   Channel Bus 2			5
+ *   Channel Bus 3			6
+ *   Channel Bus 4			7
+ *   Channel Bus 5			8
+ *   Channel Bus 6			9
+ *   Channel Bus 7			10
+ *   Channel Bus 8			11
+ *   Channel Bus 9			12
+ *   Channel Bus 10	  	13
+ *   Channel Bus 11	  	14
+ *   Channel Bus 12	  	15
+ *   Channel Bus 13	  	16
+ *   Channel Bus 14		  17
+ *   Channel Bus 15		  18
+ *   CLK1			      	  19
+ *   RST				        20
+ *   STBY				        21
+ *   KBD1				        22
+ *   DISP 			      	23
+ *   INDC				        24
+ *   RPRO				        25
+ *   KB_STR			        26
+ *   PARALM			        27
+ */
+public class Pi4JGpioBackend implements GpioBackend
+{
+  private final Map<Line, GpioPinDigitalInput> lines = new EnumMap<>(Line.class);
+  private final GpioPinDigitalMultipurpose[] channelBits = new GpioPinDigitalMultipurpose[CHANNEL_BUS_PINS.length];
+  private GpioPinDigitalOutput kbStr;
+
+  // The word latched for the bus when it goes through Pi4J, which only sets the level of an output.
+  private int busWord = 0;
+  private boolean busOutput = false;
+
+  // The channel bus through the mapped GPIO registers, null if they can't be mapped.
+  private MappedGpioBus mappedBus = null;
+
+  private GpioController gpio = null;
+  private volatile Listener listener = null;
+
+  public String getName()
+  {
+    return "Pi4J" + (mappedBus != null ? " with mapped channel bus" : "");
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  public void open() throws IOException
+  {
+    try
+    {
+      gpio = GpioFactory.getInstance();
+    }
+    catch (RuntimeException | LinkageError e)
+    {
+      // Not a Raspberry Pi, or the native library is missing.
+      throw new IOException("Pi4J is not available: " + e.getMessage(), e);
+    }
+    mappedBus = mapChannelBus();
+
+    // Provision the Channel Bus pins.
+    for (int bit = 0; bit < channelBits.length; bit++)
+    {
+      channelBits[bit] = gpio.provisionDigitalMultipurposePin(RaspiPin.getPinByAddress(CHANNEL_BUS_PINS[bit]),
+                                                              PinMode.DIGITAL_INPUT);
+    }
+
+    // Provision the various control pins as input or output.
+    kbStr = gpio.provisionDigitalOutputPin(RaspiPin.getPinByAddress(KB_STR_PIN), PinState.LOW);
+    for (Line line : Line.values())
+    {
+      Pin pin = RaspiPin.getPinByAddress(line.getPin());
+      if (line == Line.HW_PRESENT)
+      {
+        lines.put(line, gpio.provisionDigitalInputPin(pin, PinPullResistance.PULL_DOWN));
+        continue;
+      }
+
+      GpioPinDigitalInput input = gpio.provisionDigitalInputPin(pin);
+      input.addListener((GpioPinListenerDigital) event ->
+      {
+        long edgeTime = System.nanoTime();
+        Listener lineListener = listener;
+        if (lineListener != null)
+        {
+          lineListener.lineChanged(line, edgeTime, event.getState().isHigh());
+        }
+      });
+      lines.put(line, input);
+    }
+  }
+
+  public void close()
+  {
+    if (gpio != null)
+    {
+      gpio.shutdown();
+      gpio = null;
+    }
+  }
+
+  public boolean isHigh(Line line)
+  {
+    return lines.get(line).isHigh();
+  }
+
+  public int readChannelBus()
+  {
+    if (mappedBus != null)
+    {
+      return mappedBus.read();
+    }
+    int word = 0;
+    for (int bit = 0; bit < channelBits.length; bit++)
+    {
+      if (channelBits[bit].getState().isHigh())
+      {
+        word |= 1 << bit;
+      }
+    }
+    return word;
+  }
+
+  public void writeChannelBus(int word, int mask)
+  {
+    if (mappedBus != null)
+    {
+      mappedBus.write(word, mask);
+      return;
+    }
+    busWord = (busWord & ~mask) | (word & mask);
+    if (!busOutput)
+    {
+      return;
+    }
+    for (int bit = 0; bit < channelBits.length; bit++)
+    {
+      if (Utils.getBit(mask, bit))
+      {
+        channelBits[bit].setState(Utils.getBit(word, bit));
+      }
+    }
+  }
+
+  public void setChannelBusOutput(boolean output)
+  {
+    if (mappedBus != null)
+    {
+      mappedBus.setOutput(output);
+      return;
+    }
+    busOutput = output;
+    PinMode mode = output ? PinMode.DIGITAL_OUTPUT : PinMode.DIGITAL_INPUT;
+    for (int bit = 0; bit < channelBits.length; bit++)
+    {
+      channelBits[bit].setMode(mode);
+      if (output)
+      {
+        // Straight after the pin turns, so it drives the old level for as short a time as can be.
+        channelBits[bit].setState(Utils.getBit(busWord, bit));
+      }
+    }
+  }
+
+  public void pulseKbStr(int duration)
+  {
+    kbStr.pulse(duration, true);
+  }
+
+  /**
+   * Internal method used to map the GPIO registers for the channel bus.
+   *
+   * @return The mapped bus, null if the registers can't be mapped.
+   */
+  private static MappedGpioBus mapChannelBus()
+  {
+    String path = Settings.getInstance().getString(Settings.GPIO_MEMORY, GpioRegisters.GPIOMEM);
+    try
+    {
+      return new MappedGpioBus(new GpioRegisters(path), CHANNEL_BUS_PINS);
+    }
+    catch (IOException | RuntimeException e)
+    {
+      Log.warn("Unable to map %s, reading the channel bus pin by pin: %s", path, e.getMessage());
+      return null;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton that remembers what was learned about each Arduino from one run
+            to the next.  The values are kept in a properties file in the user's home directory.  Each
+            device is keyed by its name and USB serial number so a replaced Arduino starts fresh.  The
+            port each Arduino was last found on is also kept so a warm start can skip the port scan.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Remember the port of each Arduino.
+            10/16/26  Report failures through the log.
+*/
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+public class PortCache
+{
+  // Must come before the instance, which reads it.
+  private static final File CACHE_FILE = new File(System.getProperty("user.home"), ".dsky/ports.properties");
+
+  private static final PortCache instance = new PortCache();
+
+  private final Properties properties = new Properties();
+
+  public static PortCache getInstance()
+  {
+    return instance;
+  }
+
+  private PortCache()
+  {
+    if (CACHE_FILE.exists())
+    {
+      try (InputStream in = new FileInputStream(CACHE_FILE))
+      {
+        properties.load(in);
+      }
+      catch (IOException e)
+      {
+        Log.warn("Unable to read %s: %s", CACHE_FILE, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Method to build the key of a device.
+   *
+   * @param name The name the Arduino identified itself with.
+   * @param serialNumber The USB serial number of the port, may be null.
+   * @return The device key.
+   */
+  public static String deviceKey(String name, String serialNumber)
+  {
+    if (serialNumber == null || serialNumber.isEmpty() || serialNumber.equalsIgnoreCase("Unknown"))
+    {
+      return name;
+    }
+    return name + "." + serialNumber;
+  }
+
+  /**
+   * Method to get the last baud rate that worked for a device.
+   *
+   * @param deviceKey The device key.
+   * @param defaultRate The rate to use if none has been saved.
+   * @return The baud rate.
+   */
+  public synchronized int getBaudRate(String deviceKey, int defaultRate)
+  {
+    try
+    {
+      return Integer.parseInt(properties.getProperty("baud." + deviceKey, String.valueOf(defaultRate)));
+    }
+    catch (NumberFormatException e)
+    {
+      return defaultRate;
+    }
+  }
+
+  /**
+   * Method to save the baud rate that worked for a device.
+   *
+   * @param deviceKey The device key.
+   * @param rate The baud rate.
+   */
+  public synchronized void setBaudRate(String deviceKey, int rate)
+  {
+    if (!String.valueOf(rate).equals(properties.getProperty("baud." + deviceKey)))
+    {
+      properties.setProperty("baud." + deviceKey, String.valueOf(rate));
+      save();
+    }
+  }
+
+  /**
+   * Method to get the port an Arduino was last found on.
+   *
+   * @param name The name of the Arduino.
+   * @return The port path, or null if not known.
+   */
+  public synchronized String getPortPath(String name)
+  {
+    return properties.getProperty("port." + name);
+  }
+
+  /**
+   * Method to get the USB serial number of the port an Arduino was last found on.
+   *
+   * @param name The name of the Arduino.
+   * @return The serial number, or null if not known.
+   */
+  public synchronized String getPortSerialNumber(String name)
+  {
+    return properties.getProperty("serial." + name);
+  }
+
+  /**
+   * Method to save the port an Arduino was found on.
+   *
+   * @param name The name of the Arduino.
+   * @param path The port path.
+   * @param serialNumber The USB serial number of the port, may be null.
+   */
+  public synchronized void setPort(String name, String path, String serialNumber)
+  {
+    String serial = serialNumber == null ? "" : serialNumber;
+    if (!path.equals(properties.getProperty("port." + name)) || !serial.equals(properties.getProperty("serial." + name)))
+    {
+      properties.setProperty("port." + name, path);
+      properties.setProperty("serial." + name, serial);
+      save();
+    }
+  }
+
+  /**
+   * Internal method used to write the cache file.
+   */
+  private void save()
+  {
+    File directory = CACHE_FILE.getParentFile();
+    if (!directory.exists() && !directory.mkdirs())
+    {
+      Log.warn("Unable to create %s", directory);
+      return;
+    }
+
+    try (OutputStream out = new FileOutputStream(CACHE_FILE))
+    {
+      properties.store(out, "DSKY serial port cache");
+    }
+    catch (IOException e)
+    {
+      Log.warn("Unable to write %s: %s", CACHE_FILE, e.getMessage());
+    }
+  }
+}
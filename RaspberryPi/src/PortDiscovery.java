@@ -0,0 +1,502 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a utility class that finds the Arduinos.  Every /dev/serial/by-id entry and
+            /dev/ttyACM device is a candidate.  All candidates are probed at the same time: each one is
+            opened, sent the identify command until it answers, and if it speaks the framed protocol its
+            baud rate is negotiated.  The port each Arduino is found on is remembered.  On a warm start,
+            when the remembered ports are still present with the same USB serial numbers, only those
+            ports are probed and the scan is skipped.  A list of transports, such as fake Arduinos, can
+            be probed in place of the serial ports.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Probe transports rather than serial ports.
+            10/16/26  Keep looking at the other ports when the probe of one fails.
+            10/16/26  Report failures through the log.
+            10/16/26  Report the ports found and the discovery times through the log.
+*/
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PortDiscovery
+{
+  public static final String KEYBOARD = "Keyboard";
+  public static final String INDICATORS = "Indicators";
+  public static final String DISPLAY = "Display";
+
+  private static final String BY_ID_DIRECTORY = "/dev/serial/by-id";
+  private static final String DEV_DIRECTORY = "/dev";
+  private static final String TTY_PATTERN = "ttyACM*";
+
+  // Used when the device directories can't be read.
+  private static final String[] DEFAULT_PORTS = { "/dev/ttyACM0", "/dev/ttyACM1", "/dev/ttyACM2" };
+
+  // The identify command is repeated until the Arduino has finished its reset and answers.
+  private static final int IDENTIFY_RETRY = 500;
+  private static final int IDENTIFY_TIMEOUT = 10000;
+
+  /**
+   * An Arduino that was found, along with how long each step of finding it took.
+   */
+  public static final class Result
+  {
+    public final String name;
+    public final String path;
+    public final SerialTransport transport;
+    public final int protocolVersion;
+    private final long openTime;
+    private final long identifyTime;
+    private final long negotiateTime;
+
+    private Result(String name, String path, SerialTransport transport, int protocolVersion,
+                   long openTime, long identifyTime, long negotiateTime)
+    {
+      this.name = name;
+      this.path = path;
+      this.transport = transport;
+      this.protocolVersion = protocolVersion;
+      this.openTime = openTime;
+      this.identifyTime = identifyTime;
+      this.negotiateTime = negotiateTime;
+    }
+  }
+
+  private PortDiscovery() { }
+
+  /**
+   * Method called to find the named Arduinos.  Ports in use are not touched since opening a port
+   * resets the Arduino on it.  Ports that don't answer with a wanted name are closed again.
+   *
+   * @param names The names of the Arduinos to look for.
+   * @param portsInUse The real paths of ports that are already open.
+   * @return The Arduinos that were found.
+   */
+  public static List<Result> discover(Collection<String> names, Set<String> portsInUse)
+  {
+    long startTime = System.currentTimeMillis();
+    PortCache portCache = PortCache.getInstance();
+    Set<String> wanted = new LinkedHashSet<>(names);
+    Set<String> probed = new LinkedHashSet<>(portsInUse);
+    List<Result> found = new ArrayList<>();
+
+    // Warm start: go straight to the ports the Arduinos were on last time.
+    List<String> cachedPorts = new ArrayList<>();
+    for (String name : wanted)
+    {
+      String path = portCache.getPortPath(name);
+      if (path != null && Files.exists(Paths.get(path)) && !probed.contains(realPath(path)) &&
+          sameSerialNumber(path, portCache.getPortSerialNumber(name)))
+      {
+        cachedPorts.add(path);
+      }
+    }
+    long probeStart = System.currentTimeMillis();
+    probeAll(cachedPorts, wanted, probed, found);
+    long warmTime = System.currentTimeMillis() - probeStart;
+
+    // Scan for whatever is still missing.
+    long scanTime = 0;
+    long scanProbeTime = 0;
+    if (!wanted.isEmpty())
+    {
+      long scanStart = System.currentTimeMillis();
+      List<String> candidates = findCandidatePorts();
+      candidates.removeIf(path -> probed.contains(realPath(path)));
+      scanTime = System.currentTimeMillis() - scanStart;
+
+      probeStart = System.currentTimeMillis();
+      probeAll(candidates, wanted, probed, found);
+      scanProbeTime = System.currentTimeMillis() - probeStart;
+    }
+
+    for (Result result : found)
+    {
+      portCache.setPort(result.name, result.path, result.transport.getSerialNumber());
+    }
+    report(found, wanted);
+    Log.info("Serial discovery: cached ports %d ms, scan %d ms, scanned ports %d ms, total %d ms", warmTime, scanTime,
+             scanProbeTime, System.currentTimeMillis() - startTime);
+    return found;
+  }
+
+  /**
+   * Method called to find the named Arduinos on the given transports.  The port cache is
+   * not used.
+   *
+   * @param names The names of the Arduinos to look for.
+   * @param transports The transports to probe.
+   * @param remember Whether or not to use and update the remembered baud rates.
+   * @return The Arduinos that were found.
+   */
+  public static List<Result> discover(Collection<String> names, List<SerialTransport> transports, boolean remember)
+  {
+    long startTime = System.currentTimeMillis();
+    Set<String> wanted = new LinkedHashSet<>(names);
+    List<Result> found = new ArrayList<>();
+    probeTransports(transports, remember, wanted, found);
+    report(found, wanted);
+    Log.info("Serial discovery: total %d ms", System.currentTimeMillis() - startTime);
+    return found;
+  }
+
+  /**
+   * Internal method used to log what was found.
+   *
+   * @param found The Arduinos found.
+   * @param missing The names not found.
+   */
+  private static void report(List<Result> found, Set<String> missing)
+  {
+    for (Result result : found)
+    {
+      Log.info("%s found on %s: open %d ms, identify %d ms, baud %d ms", result.name, result.path, result.openTime,
+               result.identifyTime, result.negotiateTime);
+    }
+    for (String name : missing)
+    {
+      Log.warn("%s not found.", name);
+    }
+  }
+
+  /**
+   * Internal method used to probe a set of ports at the same time.  Found Arduinos are
+   * added to the list and removed from the wanted names.
+   *
+   * @param paths The ports to probe.
+   * @param wanted The names still being looked for.
+   * @param probed The real paths of ports already probed, updated.
+   * @param found The Arduinos found, updated.
+   */
+  private static void probeAll(List<String> paths, Set<String> wanted, Set<String> probed, List<Result> found)
+  {
+    List<SerialTransport> transports = new ArrayList<>();
+    for (String path : paths)
+    {
+      probed.add(realPath(path));
+      SerialTransport transport = JSerialCommTransport.create(path);
+      if (transport == null)
+      {
+        Log.info("Port %s has no device connected.", path);
+      }
+      else
+      {
+        transports.add(transport);
+      }
+    }
+    probeTransports(transports, true, wanted, found);
+  }
+
+  /**
+   * Internal method used to probe a set of transports at the same time.  Found Arduinos are
+   * added to the list and removed from the wanted names.
+   *
+   * @param transports The transports to probe.
+   * @param remember Whether or not to use the remembered baud rates.
+   * @param wanted The names still being looked for.
+   * @param found The Arduinos found, updated.
+   */
+  private static void probeTransports(List<SerialTransport> transports, boolean remember, Set<String> wanted,
+                                      List<Result> found)
+  {
+    if (transports.isEmpty())
+    {
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(transports.size());
+    List<Future<Result>> futures = new ArrayList<>();
+    for (SerialTransport transport : transports)
+    {
+      Callable<Result> probe = () -> probePort(transport, remember);
+      futures.add(executor.submit(probe));
+    }
+    executor.shutdown();
+
+    int next = 0;
+    try
+    {
+      for (; next < futures.size(); next++)
+      {
+        Result result = null;
+        try
+        {
+          result = futures.get(next).get();
+        }
+        catch (ExecutionException e)
+        {
+          // One port failing doesn't stop the others being looked at.
+          Log.error(e.getCause(), "Probe of %s failed.", transports.get(next).getName());
+          transports.get(next).close();
+        }
+        if (result == null)
+        {
+          continue;
+        }
+
+        if (wanted.remove(result.name))
+        {
+          found.add(result);
+        }
+        else
+        {
+          Log.info("Ignoring %s on %s", result.name, result.path);
+          result.transport.close();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      closeWhenProbed(futures.subList(next, futures.size()), transports.subList(next, transports.size()));
+    }
+  }
+
+  /**
+   * Internal method used to close the ports of probes given up on once they have finished, so
+   * no port is left open.
+   *
+   * @param futures The probes given up on.
+   * @param transports The transports being probed, in the same order.
+   */
+  private static void closeWhenProbed(List<Future<Result>> futures, List<SerialTransport> transports)
+  {
+    Thread closer = new Thread(() ->
+    {
+      for (int i = 0; i < futures.size(); i++)
+      {
+        try
+        {
+          futures.get(i).get();
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+          // The port is closed either way.
+        }
+        transports.get(i).close();
+      }
+    }, "Probe Closer");
+    closer.setDaemon(true);
+    closer.start();
+  }
+
+  /**
+   * Internal method used to open a port, identify the Arduino on it and negotiate its baud rate.
+   *
+   * @param port The port.
+   * @param remember Whether or not to use the remembered baud rate.
+   * @return The Arduino found, or null if the port has no Arduino on it.
+   */
+  private static Result probePort(SerialTransport port, boolean remember)
+  {
+    long startTime = System.currentTimeMillis();
+    String path = port.getName();
+    if (!port.open(BaudNegotiator.DEFAULT_BAUD_RATE))
+    {
+      Log.warn("Failed to open %s", path);
+      return null;
+    }
+    long openTime = System.currentTimeMillis() - startTime;
+
+    startTime = System.currentTimeMillis();
+    String reply = identify(port);
+    long identifyTime = System.currentTimeMillis() - startTime;
+
+    // Split the name from the protocol version.
+    String name = reply;
+    int protocolVersion = SerialProtocol.VERSION_ASCII;
+    int delimIndex = reply.indexOf(' ');
+    if (delimIndex > 0)
+    {
+      name = reply.substring(0, delimIndex);
+      protocolVersion = SerialProtocol.parseVersion(reply.substring(delimIndex + 1));
+    }
+
+    if (name.equalsIgnoreCase(KEYBOARD))
+    {
+      name = KEYBOARD;
+    }
+    else if (name.equalsIgnoreCase(INDICATORS))
+    {
+      name = INDICATORS;
+    }
+    else if (name.equalsIgnoreCase(DISPLAY))
+    {
+      name = DISPLAY;
+    }
+    else
+    {
+      Log.info("No Arduino answered on %s", path);
+      port.close();
+      return null;
+    }
+
+    startTime = System.currentTimeMillis();
+    if (protocolVersion == SerialProtocol.VERSION_BINARY)
+    {
+      BaudNegotiator.negotiate(port, remember ? PortCache.deviceKey(name, port.getSerialNumber()) : null);
+    }
+    long negotiateTime = System.currentTimeMillis() - startTime;
+
+    return new Result(name, path, port, protocolVersion, openTime, identifyTime, negotiateTime);
+  }
+
+  /**
+   * Internal method used to ask the Arduino for its name.  Each Arduino responds to a "2"
+   * command with its name as a string, optionally followed by a space and the protocol
+   * version it speaks.  Opening the port resets the Arduino, so the command is repeated
+   * until the Arduino is ready and answers.
+   *
+   * @param port The open port.
+   * @return The reply, empty if there was none.
+   */
+  private static String identify(SerialTransport port)
+  {
+    byte[] identifyCommand = new byte[] { 50 }; //send identify command "2"
+    byte[] readBuffer = new byte[20];
+    StringBuilder reply = new StringBuilder();
+
+    long deadline = System.currentTimeMillis() + IDENTIFY_TIMEOUT;
+    long nextSend = 0;
+    while (System.currentTimeMillis() < deadline)
+    {
+      // Stop repeating the command once the reply has started.
+      if (reply.length() == 0 && System.currentTimeMillis() >= nextSend)
+      {
+        port.write(identifyCommand, identifyCommand.length);
+        nextSend = System.currentTimeMillis() + IDENTIFY_RETRY;
+      }
+
+      int numRead = port.read(readBuffer, readBuffer.length, 0, IDENTIFY_RETRY);
+      if (numRead < 0)
+      {
+        break;
+      }
+
+      // Assemble string until you get a CR or LF.
+      for (int i = 0; i < numRead; i++)
+      {
+        if (readBuffer[i] == '\n' || readBuffer[i] == '\r')
+        {
+          if (reply.length() > 0)
+          {
+            return reply.toString().trim();
+          }
+        }
+        else
+        {
+          reply.append((char)readBuffer[i]);
+        }
+      }
+    }
+    return reply.toString().trim();
+  }
+
+  /**
+   * Internal method used to list the candidate ports.  A by-id name is preferred over the tty
+   * name of the same device since it stays the same when the devices are enumerated in a
+   * different order.
+   *
+   * @return The candidate port paths.
+   */
+  private static List<String> findCandidatePorts()
+  {
+    Map<String, String> candidates = new LinkedHashMap<>();
+    addCandidates(Paths.get(BY_ID_DIRECTORY), "*", candidates);
+    addCandidates(Paths.get(DEV_DIRECTORY), TTY_PATTERN, candidates);
+
+    if (candidates.isEmpty())
+    {
+      for (String path : DEFAULT_PORTS)
+      {
+        candidates.put(path, path);
+      }
+    }
+    return new ArrayList<>(candidates.values());
+  }
+
+  /**
+   * Internal method used to add the entries of a directory to the candidates, keyed by the
+   * real device so each device is only listed once.
+   *
+   * @param directory The directory to list.
+   * @param pattern The glob the entries must match.
+   * @param candidates The candidates, updated.
+   */
+  private static void addCandidates(Path directory, String pattern, Map<String, String> candidates)
+  {
+    if (!Files.isDirectory(directory))
+    {
+      return;
+    }
+
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, pattern))
+    {
+      for (Path entry : entries)
+      {
+        candidates.putIfAbsent(realPath(entry.toString()), entry.toString());
+      }
+    }
+    catch (IOException e)
+    {
+      Log.warn("Unable to list %s: %s", directory, e.getMessage());
+    }
+  }
+
+  /**
+   * Method to get the real device behind a port path.
+   *
+   * @param path The port path, possibly a symbolic link.
+   * @return The real path, or the path itself if it can't be resolved.
+   */
+  public static String realPath(String path)
+  {
+    try
+    {
+      return Paths.get(path).toRealPath().toString();
+    }
+    catch (IOException e)
+    {
+      return path;
+    }
+  }
+
+  /**
+   * Internal method used to check that the device on a port is the one remembered.
+   *
+   * @param path The port path.
+   * @param serialNumber The remembered USB serial number, empty or null if unknown.
+   * @return Whether or not the serial numbers match.
+   */
+  private static boolean sameSerialNumber(String path, String serialNumber)
+  {
+    if (serialNumber == null || serialNumber.isEmpty())
+    {
+      // Nothing to compare against; a by-id path already names the device.
+      return path.startsWith(BY_ID_DIRECTORY);
+    }
+
+    SerialTransport transport = JSerialCommTransport.create(path);
+    return transport != null && serialNumber.equals(transport.getSerialNumber());
+  }
+}
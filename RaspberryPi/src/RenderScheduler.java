@@ -0,0 +1,339 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton thread that draws the display and indicators in frames.  A register
+            such as R1 spans three relay words that the AGC writes one at a time, so sending each word
+            as it arrives shows a half updated register.  Instead, changes are gathered here and sent
+            once per frame.  A register is only drawn once its relay words have stopped changing for
+            the settle time, and then all of its words go out together; a register that keeps changing
+            is drawn anyway after the maximum hold time.  Only what differs from what is shown is sent.
+            The time each frame takes, the number of commands in it and the frames that started late
+            are measured.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Draw a register again when a value of it could not be sent.
+            10/16/26  Compare the frame deadline by difference, so nanoTime() may wrap.
+            10/16/26  Report the frame settings through the log.
+*/
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class RenderScheduler extends Thread
+{
+  private static final int DEFAULT_FRAME_RATE = 20;
+  private static final int NOT_PENDING = -1;
+  private static final long CLEAN = Long.MIN_VALUE;
+
+  // The relay words of each register, in the order they are drawn.  R2 and R3 share relay
+  // word 3 so they are drawn together.  Relay word 12 and the unused words go last.
+  private static final int[][] REGISTER_WORDS =
+      { { 11 }, { 10 }, { 9 }, { 8, 7, 6 }, { 5, 4, 3, 2, 1 }, { 12, 0, 13, 14, 15 } };
+  private static final int[] WORD_REGISTERS = wordRegisters();
+
+  private static final RenderScheduler instance = new RenderScheduler();
+
+  // The latest value written to each relay word.
+  private final AtomicIntegerArray pendingWords = new AtomicIntegerArray(DisplayShadow.RELAY_WORDS);
+
+  // When each register was first and last changed since it was drawn, CLEAN if it hasn't been.
+  private final AtomicLongArray firstChange = new AtomicLongArray(REGISTER_WORDS.length);
+  private final AtomicLongArray lastChange = new AtomicLongArray(REGISTER_WORDS.length);
+
+  private final AtomicBoolean indicatorsChanged = new AtomicBoolean();
+
+  private volatile boolean running = false;
+  private long framePeriod;
+  private long settleTime;
+  private long maxHoldTime;
+
+  // Statistics.
+  private final AtomicLong frames = new AtomicLong();
+  private final AtomicLong framesSent = new AtomicLong();
+  private final AtomicLong commandsSent = new AtomicLong();
+  private final AtomicLong maxFrameSize = new AtomicLong();
+  private final AtomicLong totalFrameTime = new AtomicLong();
+  private final AtomicLong maxFrameTime = new AtomicLong();
+  private final AtomicLong missedDeadlines = new AtomicLong();
+  private final AtomicLong writesCoalesced = new AtomicLong();
+  private final AtomicLong registersForced = new AtomicLong();
+
+  public static RenderScheduler getInstance()
+  {
+    return instance;
+  }
+
+  private RenderScheduler()
+  {
+    super("Render Scheduler");
+    setDaemon(true);
+    for (int i = 0; i < DisplayShadow.RELAY_WORDS; i++)
+    {
+      pendingWords.set(i, NOT_PENDING);
+    }
+    for (int i = 0; i < REGISTER_WORDS.length; i++)
+    {
+      firstChange.set(i, CLEAN);
+    }
+  }
+
+  /**
+   * Internal method used to map each relay word to its register.
+   *
+   * @return The register of each relay word.
+   */
+  private static int[] wordRegisters()
+  {
+    int[] registers = new int[DisplayShadow.RELAY_WORDS];
+    for (int register = 0; register < REGISTER_WORDS.length; register++)
+    {
+      for (int relayWord : REGISTER_WORDS[register])
+      {
+        registers[relayWord] = register;
+      }
+    }
+    return registers;
+  }
+
+  /**
+   * Method called to start drawing in frames at the rates in the settings.  A frame rate of
+   * zero leaves every change to be sent as it arrives.
+   */
+  public void startFrames()
+  {
+    Settings settings = Settings.getInstance();
+    int frameRate = settings.getInt(Settings.FRAME_RATE, DEFAULT_FRAME_RATE);
+    if (frameRate <= 0)
+    {
+      Log.info("Display changes are sent as they arrive.");
+      return;
+    }
+
+    int frameTime = Math.max(1, 1000 / frameRate);
+    startFrames(frameRate, settings.getInt(Settings.SETTLE_TIME, frameTime),
+                settings.getInt(Settings.MAX_HOLD_TIME, 4 * frameTime));
+  }
+
+  /**
+   * Method called to start drawing in frames.
+   *
+   * @param frameRate The number of frames per second.
+   * @param settleMs How long a register must be unchanged before it is drawn (ms).
+   * @param maxHoldMs The longest a changed register is held back (ms).
+   */
+  public synchronized void startFrames(int frameRate, int settleMs, int maxHoldMs)
+  {
+    if (running)
+    {
+      return;
+    }
+
+    framePeriod = TimeUnit.SECONDS.toNanos(1) / frameRate;
+    settleTime = TimeUnit.MILLISECONDS.toNanos(settleMs);
+    maxHoldTime = TimeUnit.MILLISECONDS.toNanos(maxHoldMs);
+    running = true;
+    Log.info("Display frames at %d Hz, settle %d ms, hold %d ms", frameRate, settleMs, maxHoldMs);
+    start();
+  }
+
+  /**
+   * Method to determine if changes are being drawn in frames.
+   *
+   * @return Whether or not the scheduler is running.
+   */
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Method called with a channel 10 value written by the AGC.  If frames are being drawn the
+   * value is held for the next frame its register is ready in.
+   *
+   * @param value The channel 10 value.
+   * @return Whether or not the value was taken; if not it must be sent now.
+   */
+  public boolean displayChanged(int value)
+  {
+    if (!running)
+    {
+      return false;
+    }
+
+    int relayWord = DisplayShadow.relayWord(value);
+    value &= 0x7FFF;
+    if (pendingWords.getAndSet(relayWord, value) == value)
+    {
+      // A rewrite of the same value doesn't hold the register back.
+      writesCoalesced.incrementAndGet();
+      return true;
+    }
+
+    int register = WORD_REGISTERS[relayWord];
+    long now = System.nanoTime();
+    lastChange.set(register, now);
+    firstChange.compareAndSet(register, CLEAN, now);
+    return true;
+  }
+
+  /**
+   * Method called when a value could not be sent to the display.  Its register is drawn again
+   * with the next frame, rather than waiting for the AGC to write a different value.
+   *
+   * @param value The channel 10 value that was not sent.
+   */
+  public void displayFailed(int value)
+  {
+    if (!running)
+    {
+      return;
+    }
+
+    int relayWord = DisplayShadow.relayWord(value);
+    pendingWords.compareAndSet(relayWord, NOT_PENDING, value & 0x7FFF);
+    firstChange.compareAndSet(WORD_REGISTERS[relayWord], CLEAN, System.nanoTime());
+  }
+
+  /**
+   * Method called when an indicator has changed.  If frames are being drawn the indicators
+   * are sent with the next frame.
+   *
+   * @return Whether or not the change was taken; if not it must be sent now.
+   */
+  public boolean indicatorsChanged()
+  {
+    if (!running)
+    {
+      return false;
+    }
+    indicatorsChanged.set(true);
+    return true;
+  }
+
+  /**
+   * Method called when the display has been reset, so nothing held is drawn over it.
+   */
+  public void clearDisplay()
+  {
+    for (int i = 0; i < REGISTER_WORDS.length; i++)
+    {
+      firstChange.set(i, CLEAN);
+    }
+    for (int i = 0; i < DisplayShadow.RELAY_WORDS; i++)
+    {
+      pendingWords.set(i, NOT_PENDING);
+    }
+  }
+
+  /**
+   * Loop drawing a frame each frame period.  A frame that starts more than half a period
+   * late counts as a missed deadline and the following frames are timed from it.
+   */
+  public void run()
+  {
+    DisplayInterface displayInterface = DisplayInterface.getInstance();
+    IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+
+    long deadline = System.nanoTime() + framePeriod;
+    while (running)
+    {
+      long now = System.nanoTime();
+      if (now - deadline < 0)
+      {
+        LockSupport.parkNanos(deadline - now);
+        continue;
+      }
+
+      if (now - deadline > framePeriod / 2)
+      {
+        missedDeadlines.incrementAndGet();
+        deadline = now;
+      }
+
+      int frameSize = drawFrame(now, displayInterface, indicatorInterface);
+      long frameTime = System.nanoTime() - now;
+      frames.incrementAndGet();
+      if (frameSize > 0)
+      {
+        framesSent.incrementAndGet();
+        commandsSent.addAndGet(frameSize);
+        maxFrameSize.accumulateAndGet(frameSize, Math::max);
+        totalFrameTime.addAndGet(frameTime);
+        maxFrameTime.accumulateAndGet(frameTime, Math::max);
+      }
+      deadline += framePeriod;
+    }
+  }
+
+  /**
+   * Internal method used to send the registers that are ready and the indicators.
+   *
+   * @param now The start of the frame.
+   * @param displayInterface The display.
+   * @param indicatorInterface The indicators.
+   * @return The number of commands sent.
+   */
+  private int drawFrame(long now, DisplayInterface displayInterface, IndicatorInterface indicatorInterface)
+  {
+    int frameSize = 0;
+    for (int register = 0; register < REGISTER_WORDS.length; register++)
+    {
+      long first = firstChange.get(register);
+      if (first == CLEAN)
+      {
+        continue;
+      }
+
+      boolean settled = now - lastChange.get(register) >= settleTime;
+      if (!settled && now - first < maxHoldTime)
+      {
+        continue;
+      }
+      if (!settled)
+      {
+        registersForced.incrementAndGet();
+      }
+
+      // Marked clean before the words are read, so a write from now on is drawn next time.
+      firstChange.set(register, CLEAN);
+      for (int relayWord : REGISTER_WORDS[register])
+      {
+        int value = pendingWords.get(relayWord);
+        if (value != NOT_PENDING && displayInterface.publish(value))
+        {
+          frameSize++;
+        }
+      }
+    }
+
+    if (indicatorsChanged.getAndSet(false))
+    {
+      frameSize += indicatorInterface.commit();
+    }
+    return frameSize;
+  }
+
+  /**
+   * Method to get a one line summary of the frames.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    long sent = framesSent.get();
+    return "Frames: total = " + frames.get() + ", sent = " + sent + ", commands = " + commandsSent.get() +
+           " (max " + maxFrameSize.get() + " per frame), frame time = " +
+           (sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalFrameTime.get() / sent)) + " us (max " +
+           TimeUnit.NANOSECONDS.toMicros(maxFrameTime.get()) + " us), missed = " + missedDeadlines.get() +
+           ", coalesced = " + writesCoalesced.get() + ", forced = " + registersForced.get();
+  }
+}
@@ -7,31 +7,74 @@
   or any later version. This software is distributed without any warranty
   expressed or implied. See the GNU General Public License for more details.
 
-  Purpose:	This class is a singleton that provides the serial interface to the three Arduinos.  Each Arduino,
-            as it connects is assigned the tty device name starting with zero.  Each possible device is opened
-            and if a device is connected, an identify command is sent.  This is used to map each arduino to its
-            port.  All direct interfacing to the Arduinos is encapsulated within this class.
+  Purpose:	This class is a singleton that provides the serial interface to the three Arduinos.  The
+            Arduinos are found by PortDiscovery, which opens the candidate ports and sends an identify
+            command.  This is used to map each arduino to its port.  All direct interfacing to the Arduinos
+            is encapsulated within this class.  Commands are handed to a writer thread per Arduino so callers
+            never wait on the serial port.  Newer Arduino code adds its protocol version to the identify
+            reply and is then sent binary frames instead of ASCII commands.  See SerialProtocol.  Those
+            Arduinos are then stepped up to the fastest baud rate the link sustains.  See BaudNegotiator.
+            A failed write or read, or a port that goes away, is reported to the SerialSupervisor, which
+            reconnects just that Arduino.
 
   Mods:		  07/15/22  Initial Release.
             07/16/22  Performance improvements.
+            10/16/26  Commands are written by a per-port writer thread.
+            10/16/26  Coalesce display commands by relay word.
+            10/16/26  Negotiate the binary framed protocol at identify time.
+            10/16/26  Negotiate a higher baud rate with framed protocol Arduinos.
+            10/16/26  Find the Arduinos with a parallel probe of all candidate ports.
+            10/16/26  Keyboard input is delivered by a data listener instead of polling.
+            10/16/26  Commands are encoded by the writers without allocating.
+            10/16/26  Talk to the Arduinos through a transport so fakes can stand in.
+            10/16/26  Report port failures and reconnect single Arduinos.
+            10/16/26  Report whether a display command was queued.
+            10/16/26  Report whether an indicator command was queued.
+            10/16/26  Flash mode and blink mask commands for framed protocol Arduinos.
+            10/16/26  Report failures to close a port through the log.
+            10/16/26  Count the display updates deferred, not dropped, by a full queue.
+            10/16/26  Flush the log on close.
+            10/16/26  Report the port of each Arduino through the log.
 */
-import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortInvalidPortException;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class SerialInterface
 {
   private static final SerialInterface instance = new SerialInterface();
 
-  private static final String PORT0_NAME = "/dev/ttyACM0";
-  private static final String PORT1_NAME = "/dev/ttyACM1";
-  private static final String PORT2_NAME = "/dev/ttyACM2";
-  private SerialPort keyboardPort = null;
-  private SerialPort indicatorsPort = null;
-  private SerialPort displayPort = null;
+  // Command numbers understood by the Arduinos.
+  private static final int RESET_COMMAND = 1;
+  private static final int DISPLAY_COMMAND = 3;
+  private static final int COMP_ACTY_COMMAND = 4;
+  private static final int FLASH_COMMAND = 5;
+  private static final int DISPLAY_INDICATORS_COMMAND = 3;
+  private static final int OTHER_INDICATORS_COMMAND = 4;
+
+  // Framed protocol only: the Arduino blinks the verb/noun or the masked indicators itself.
+  private static final int FLASH_MODE_COMMAND = 9;
+  private static final int BLINK_MASK_COMMAND = 9;
+
+  // Replaced when an Arduino is reconnected.
+  private volatile SerialTransport keyboardPort = null;
+  private volatile SerialTransport indicatorsPort = null;
+  private volatile SerialTransport displayPort = null;
+  private volatile SerialWriter keyboardWriter = null;
+  private volatile SerialWriter indicatorsWriter = null;
+  private volatile SerialWriter displayWriter = null;
+  private volatile SerialTransport.Listener keyboardListener = null;
+
+  // Whether the Arduinos were found by scanning the serial ports, or on given transports.
+  private boolean scanPorts = true;
+  private volatile boolean closing = false;
+
+  // Used to throw away anything the display and indicators Arduinos send.
+  private final byte[] discardBuffer = new byte[64];
 
   private SerialInterface() { }
 
@@ -42,236 +85,279 @@ public class SerialInterface
 
   /**
    * Method called to initialize the interfaces to the display, indicators and keyboard
-   * Arduinos.  If something is connected to a port, then a call is made to identify
-   * the device.
+   * Arduinos.  The candidate ports are probed in parallel and each Arduino found is
+   * given its writer.
    */
   public void initInterface()
   {
-    try
-    {
-      SerialPort port = openPort(PORT0_NAME);
-      identifyPort(port);
-    }
-    catch (SerialPortInvalidPortException e)
-    {
-      System.out.println("Port " + PORT0_NAME + " has no device connected.");
-    }
-
-    try
-    {
-      SerialPort port = openPort(PORT1_NAME);
-      identifyPort(port);
-    }
-    catch (SerialPortInvalidPortException e)
-    {
-      System.out.println("Port " + PORT1_NAME + " has no device connected.");
-    }
+    scanPorts = true;
+    List<PortDiscovery.Result> results = PortDiscovery.discover(
+        Arrays.asList(PortDiscovery.KEYBOARD, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY),
+        Collections.emptySet());
 
-    try
-    {
-      SerialPort port = openPort(PORT2_NAME);
-      identifyPort(port);
-    }
-    catch (SerialPortInvalidPortException e)
+    for (PortDiscovery.Result result : results)
     {
-      System.out.println("Port " + PORT2_NAME + " has no device connected.");
+      attachPort(result);
     }
   }
 
   /**
-   * Internal method called to open the port specified.
+   * Method called to initialize the interfaces using the given transports in place of the
+   * serial ports, e.g. fake Arduinos.
    *
-   * @param portName  The name of the port.
-   * @return If opened, the port object.
-   * @throws SerialPortInvalidPortException  An error occurred opening the port.
+   * @param transports The transports to probe for the Arduinos.
    */
-  private SerialPort openPort(String portName) throws SerialPortInvalidPortException
+  public void initInterface(List<SerialTransport> transports)
   {
-    SerialPort port = SerialPort.getCommPort(portName);
-    port.setComPortParameters(9600, 8, 1, 0);
-
-    if (port.openPort())
-    {
-      System.out.println(portName + " is open.");
-    }
-    else
-    {
-      System.out.println("Failed to open " + portName);
-    }
+    scanPorts = false;
+    List<PortDiscovery.Result> results = PortDiscovery.discover(
+        Arrays.asList(PortDiscovery.KEYBOARD, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY),
+        transports, false);
 
-    try
+    for (PortDiscovery.Result result : results)
     {
-      //Delay to give Arduinos time to reset.
-      Thread.sleep(2000);
+      attachPort(result);
     }
-    catch (InterruptedException e)
-    {
-      e.printStackTrace();
-    }
-
-    return port;
   }
 
   /**
-   * Internal method used to identify which Arduino is connected to the port.  Each Arduino
-   * responds to a "2" command with their name as a string.
+   * Internal method used to start using an Arduino that was found.
    *
-   * @param port The port object to query.
+   * @param result The Arduino found.
    */
-  private void identifyPort(SerialPort port)
+  private void attachPort(PortDiscovery.Result result)
   {
-    // Send the identify command.
-    byte[] identifyCommand = new byte[1];
-    identifyCommand[0] = 50; //send identify command "2"
-    port.writeBytes(identifyCommand, 1);
-
-    // Read from the port to see which board it is.
-    byte[] readBuffer = new byte[20];
-    byte[] assembledInput = new byte[20];
-    int nextByte = 0;
-    int tries = 100;
-    while (tries > 0)
-    {
-      try
-      {
-        //Delay to give Arduinos time to reset.
-        Thread.sleep(120);
-      }
-      catch (InterruptedException e)
-      {
-        e.printStackTrace();
-      }
-      int numRead = port.readBytes(readBuffer, readBuffer.length);
+    String name = result.name;
+    SerialTransport port = result.transport;
+    SerialWriter writer = new SerialWriter(name, port, result.protocolVersion, () -> portFailed(name, port));
+    writer.start();
 
-      if (numRead > 0)
+    port.setListener(new SerialTransport.Listener()
+    {
+      @Override
+      public void dataAvailable()
       {
-        // Assemble string until you get a CR or LF.
-        for (int i = 0; i < numRead; i++)
+        if (name.equals(PortDiscovery.KEYBOARD))
         {
-          if (readBuffer[i] == '\n' || readBuffer[i] == '\r')
+          SerialTransport.Listener listener = keyboardListener;
+          if (listener != null)
           {
-            tries = 0;
-            break;
+            listener.dataAvailable();
           }
-          else
+        }
+        else
+        {
+          // Nothing the display or indicators send is used.
+          while (port.read(discardBuffer, discardBuffer.length, 0, 0) > 0)
           {
-            assembledInput[nextByte] = readBuffer[i];
-            nextByte++;
+            // Discard.
           }
         }
       }
-      tries--;
-    }
 
-    byte[] readBytes = Arrays.copyOfRange(assembledInput, 0, nextByte);
-    String stringRead = new String(readBytes, StandardCharsets.UTF_8);
+      @Override
+      public void disconnected()
+      {
+        portFailed(name, port);
+      }
+    });
 
-    if (stringRead.equalsIgnoreCase("Keyboard"))
+    if (result.name.equals(PortDiscovery.KEYBOARD))
     {
       keyboardPort = port;
-      System.out.println("Keyboard Port is " + port.getSystemPortName());
+      keyboardWriter = writer;
     }
-    else if (stringRead.equalsIgnoreCase("Indicators"))
+    else if (result.name.equals(PortDiscovery.INDICATORS))
     {
       indicatorsPort = port;
-      System.out.println("Indicators Port is " + port.getSystemPortName());
+      indicatorsWriter = writer;
     }
-    else if (stringRead.equalsIgnoreCase("Display"))
+    else
     {
       displayPort = port;
-      System.out.println("Display Port is " + port.getSystemPortName());
+      displayWriter = writer;
     }
+    Log.info("%s Port is %s, protocol v%d, %d baud", result.name, port.getName(), result.protocolVersion,
+             port.getBaudRate());
   }
 
   /**
-   * Method to send a RESET command.  There are no associated values.
+   * Internal method used to hand a failed port to the supervisor.  Failures of a port that
+   * has already been replaced are ignored.
+   *
+   * @param name The name of the Arduino on the port.
+   * @param port The port that failed.
    */
-  public void sendReset()
+  private void portFailed(String name, SerialTransport port)
+  {
+    if (!closing && getPort(name) == port)
+    {
+      SerialSupervisor.getInstance().reportFailure(name);
+    }
+  }
+
+  /**
+   * Method called by the supervisor to reconnect one Arduino.  The old port is closed and
+   * the same port is tried again first.  If the Arduino isn't there and the ports were
+   * scanned at start up, the ports not in use are scanned for it.
+   *
+   * @param name The name of the Arduino.
+   * @return Whether or not the Arduino was reconnected.
+   */
+  public boolean reconnect(String name)
   {
-    try
+    SerialTransport oldPort = getPort(name);
+    SerialWriter oldWriter = getWriter(name);
+    if (oldWriter != null)
+    {
+      oldWriter.shutdown();
+    }
+    if (oldPort != null)
+    {
+      // The old listener would swallow the replies to the identify command.
+      oldPort.setListener(null);
+      oldPort.close();
+    }
+
+    List<String> names = Collections.singletonList(name);
+    List<PortDiscovery.Result> results = Collections.emptyList();
+    if (oldPort != null)
+    {
+      results = PortDiscovery.discover(names, Collections.singletonList(oldPort), scanPorts);
+    }
+    if (results.isEmpty() && scanPorts)
     {
-      byte[] commandToSend = new byte[] { 49 };
-      displayPort.writeBytes(commandToSend, commandToSend.length);
-      Thread.sleep(120);
+      Set<String> portsInUse = new HashSet<>();
+      for (SerialTransport port : new SerialTransport[] { keyboardPort, indicatorsPort, displayPort })
+      {
+        if (port != null && port != oldPort)
+        {
+          portsInUse.add(PortDiscovery.realPath(port.getName()));
+        }
+      }
+      results = PortDiscovery.discover(names, portsInUse);
     }
-    catch (InterruptedException e)
+
+    if (results.isEmpty())
     {
-      e.printStackTrace();
+      return false;
     }
+    attachPort(results.get(0));
+    return true;
   }
 
   /**
-   * Method to set/clear the COMP ACTY indicator. 0 = off, 1 = on
+   * Internal method used to get the port of an Arduino.
    *
-   * @param value The value of the indicator.
+   * @param name The name of the Arduino.
+   * @return The port, null if not found.
    */
-  public void sendCompActy(boolean value)
+  private SerialTransport getPort(String name)
   {
-    try
+    if (name.equals(PortDiscovery.KEYBOARD))
     {
-      byte[] commandToSend;
-      if (value)
-        commandToSend = new byte[] { 52, 32, 49 };
-      else
-        commandToSend = new byte[] { 52, 32, 48 };
-      displayPort.writeBytes(commandToSend, commandToSend.length);
-      Thread.sleep(120);
+      return keyboardPort;
     }
-    catch (InterruptedException e)
+    return name.equals(PortDiscovery.INDICATORS) ? indicatorsPort : displayPort;
+  }
+
+  /**
+   * Internal method used to get the writer of an Arduino.
+   *
+   * @param name The name of the Arduino.
+   * @return The writer, null if not found.
+   */
+  private SerialWriter getWriter(String name)
+  {
+    if (name.equals(PortDiscovery.KEYBOARD))
     {
-      e.printStackTrace();
+      return keyboardWriter;
     }
+    return name.equals(PortDiscovery.INDICATORS) ? indicatorsWriter : displayWriter;
+  }
+
+  /**
+   * Method to get the protocol version an Arduino speaks.
+   *
+   * @param name The name of the Arduino.
+   * @return The protocol version, 0 if the Arduino is not connected.
+   */
+  public int getProtocolVersion(String name)
+  {
+    SerialWriter writer = getWriter(name);
+    return writer == null ? 0 : writer.getProtocolVersion();
+  }
+
+  /**
+   * Method to send a RESET command.  There are no associated values.
+   */
+  public void sendReset()
+  {
+    sendCommand(displayWriter, RESET_COMMAND, 0, 1);
+  }
+
+  /**
+   * Method to set/clear the COMP ACTY indicator. 0 = off, 1 = on
+   *
+   * @param value The value of the indicator.
+   * @return Whether or not the command was queued to be sent.
+   */
+  public boolean sendCompActy(boolean value)
+  {
+    return sendCommand(displayWriter, COMP_ACTY_COMMAND, value ? 1 : 0, 3);
   }
 
   /**
    * Method called to send a display command to the display Arduino.  The
    * entire 15 bit channel value is sent.  The format for this value is
    * xRRR RSHH HHHL LLLL where L = DSPL, H = DSPH, S = sign bit, R = relay
-   * word and x = don't care.
+   * word and x = don't care.  Each relay word addresses a fixed pair of digits,
+   * so only the latest value for a relay word is kept waiting to be sent.
    *
    * @param value The integer value to send.
+   * @return Whether or not the value was queued to be sent.
    */
-  public void sendDisplayCommand(int value)
+  public boolean sendDisplayCommand(int value)
   {
-    byte[] commandToSend = new byte[] { 51, 32, 32, 32, 32, 32, 32 };
-    String valueString = String.valueOf(value);
-    byte[] valueBytes = valueString.getBytes(StandardCharsets.UTF_8);
-    System.arraycopy(valueBytes, 0, commandToSend, 2, valueBytes.length);
+    SerialWriter writer = displayWriter;
+    return writer != null && writer.sendLatest(DisplayShadow.relayWord(value), DISPLAY_COMMAND, value & 0x7FFF, 7);
+  }
 
-    try
-    {
-      displayPort.writeBytes(commandToSend, commandToSend.length);
-      Thread.sleep(120);
-    }
-    catch (InterruptedException e)
-    {
-      e.printStackTrace();
-    }
+  /**
+   * Method to get the number of display updates for a relay word that were replaced by
+   * a newer value before being sent.
+   *
+   * @param relayWord The relay word, 0 - 15.
+   * @return The number of coalesced updates.
+   */
+  public long getCoalescedDisplayCount(int relayWord)
+  {
+    SerialWriter writer = displayWriter;
+    return writer == null ? 0 : writer.getCoalescedCount(relayWord);
+  }
+
+  /**
+   * Method to get the number of display updates for a relay word that found the display
+   * queue full and were queued once there was room.
+   *
+   * @param relayWord The relay word, 0 - 15.
+   * @return The number of deferred updates.
+   */
+  public long getDeferredDisplayCount(int relayWord)
+  {
+    SerialWriter writer = displayWriter;
+    return writer == null ? 0 : writer.getDeferredCount(relayWord);
   }
 
   /**
    * Method to set/clear the other indicators that originate from the channel 11 register.
    *
    * @param value The value to write.
+   * @return Whether or not the command was queued to be sent.
    */
-  public void sendOtherIndicatorsCommand(int value)
+  public boolean sendOtherIndicatorsCommand(int value)
   {
-    byte[] commandToSend = new byte[] { 52, 32, 32, 32 };
-    String stringValue = String.valueOf(value);
-    byte[] valueBytes = stringValue.getBytes(StandardCharsets.US_ASCII);
-    for (int i = 0; i < valueBytes.length; i++)
-    {
-      commandToSend[2+i] = valueBytes[i];
-    }
-    sendCommand(commandToSend);
-    try
-    {
-      Thread.sleep(120);
-    }
-    catch (InterruptedException e)
-    {
-      e.printStackTrace();
-    }
+    return sendCommand(indicatorsWriter, OTHER_INDICATORS_COMMAND, value, 4);
   }
 
   /**
@@ -279,93 +365,125 @@ public class SerialInterface
    * relay word 12.
    *
    * @param value The value to write.
+   * @return Whether or not the command was queued to be sent.
    */
-  public void sendDisplayIndicatorsCommand(int value)
+  public boolean sendDisplayIndicatorsCommand(int value)
   {
-    byte[] commandToSend = new byte[] { 51, 32, 32, 32 };
-    String stringValue = String.valueOf(value);
-    byte[] valueBytes = stringValue.getBytes(StandardCharsets.US_ASCII);
-    for (int i = 0; i < valueBytes.length; i++)
-    {
-      commandToSend[2+i] = valueBytes[i];
-    }
-    sendCommand(commandToSend);
+    return sendCommand(indicatorsWriter, DISPLAY_INDICATORS_COMMAND, value, 4);
+  }
 
-    try
-    {
-      Thread.sleep(120);
-    }
-    catch (InterruptedException e)
-    {
-      e.printStackTrace();
-    }
+  /**
+   * Method called to show or blank the verb and noun values, for Arduinos that can't flash
+   * them on their own.
+   *
+   * @param state Whether to show the verb and noun.
+   * @return Whether or not the command was queued to be sent.
+   */
+  public boolean flashVerbNoun(boolean state)
+  {
+    return sendCommand(displayWriter, FLASH_COMMAND, state ? 1 : 0, 3);
   }
 
   /**
-   * Method called to flash the verb and noun values.
+   * Method called to turn the verb and noun flashing on or off.  The Display Arduino does the
+   * blinking, so this is only sent when the mode changes.  Only framed protocol Arduinos
+   * understand the command.
    *
-   * @param state Whether to turn the flashing on or off.
+   * @param state Whether to flash the verb and noun.
+   * @return Whether or not the command was queued to be sent.
    */
-  public void flashVerbNoun(boolean state)
+  public boolean sendFlashMode(boolean state)
   {
-    byte[] commandToSend;
-    if (state)
-    {
-      commandToSend = new byte[] { 53, 32, 49 };
-    }
-    else
-    {
-      commandToSend = new byte[] { 53, 32, 48 };
-    }
-    try
-    {
-      displayPort.writeBytes(commandToSend, commandToSend.length);
-      Thread.sleep(120);
-    }
-    catch (InterruptedException e)
-    {
-      e.printStackTrace();
-    }
+    SerialWriter writer = displayWriter;
+    return writer != null && writer.getProtocolVersion() == SerialProtocol.VERSION_BINARY &&
+           sendCommand(writer, FLASH_MODE_COMMAND, state ? 1 : 0, 3);
+  }
+
+  /**
+   * Method called to set which of the other indicators the Indicators Arduino blinks while
+   * they are lit.  Only framed protocol Arduinos understand the command.
+   *
+   * @param mask The indicators that blink, same bits as the other indicators.
+   * @return Whether or not the command was queued to be sent.
+   */
+  public boolean sendBlinkMask(int mask)
+  {
+    SerialWriter writer = indicatorsWriter;
+    return writer != null && writer.getProtocolVersion() == SerialProtocol.VERSION_BINARY &&
+           sendCommand(writer, BLINK_MASK_COMMAND, mask, 4);
+  }
 
+  /**
+   * Internal method used to queue a command on an Arduino's writer.  The writer encodes the
+   * command in the protocol that Arduino speaks.  The call returns immediately and allocates
+   * nothing; the writer thread takes care of pacing the port.
+   *
+   * @param writer The writer of the Arduino to send to.
+   * @param command The command number.
+   * @param value The value sent with the command.
+   * @param width The length of the ASCII command.
+   * @return Whether or not the command was queued.
+   */
+  private boolean sendCommand(SerialWriter writer, int command, int value, int width)
+  {
+    return writer != null && writer.send(command, value, width);
   }
 
   /**
-   * Internal method used to send a command to the indicators Arduino.
+   * Method called to have the keyboard Arduino's input delivered to a listener as soon as
+   * it arrives rather than polling for it.  The listener is kept across reconnects.  Only
+   * its dataAvailable method is called; a lost keyboard is handled by the supervisor.
    *
-   * @param command The command to send.
+   * @param listener The listener.
+   * @throws IOException No keyboard was found.
    */
-  private void sendCommand(byte[] command)
+  public void addKeyboardListener(SerialTransport.Listener listener) throws IOException
   {
-    try
-    {
-      if (command != null)
-      {
-        indicatorsPort.writeBytes(command, command.length);
-        Thread.sleep(120);
-      }
-    }
-    catch (InterruptedException e)
+    if (keyboardPort == null)
     {
-      e.printStackTrace();
+      throw new IOException("No Keyboard found.");
     }
+    keyboardListener = listener;
   }
 
   /**
-   * Method called to read data from the keyboard Arduino.
+   * Method called to read the data waiting on the keyboard Arduino's port.
    *
-   * @return The bytes read from the interface.
-   * @throws IOException An error occured reading data.
+   * @param buffer The buffer to read into, reused by the caller.
+   * @return The number of bytes read, -1 on error.
+   * @throws IOException No keyboard was found.
    */
-  public byte[] readData() throws IOException
+  public int readKeyboardData(byte[] buffer) throws IOException
   {
-    if (keyboardPort == null)
+    SerialTransport port = keyboardPort;
+    if (port == null)
     {
       throw new IOException("No Keyboard found.");
     }
 
-    byte[] readBuffer = new byte[100];
-    int numRead = keyboardPort.readBytes(readBuffer, readBuffer.length);
-    return Arrays.copyOfRange(readBuffer, 0, numRead);
+    int available = port.bytesAvailable();
+    int numRead = available <= 0 ? available : port.read(buffer, Math.min(available, buffer.length), 0, 0);
+    if (numRead < 0)
+    {
+      portFailed(PortDiscovery.KEYBOARD, port);
+    }
+    return numRead;
+  }
+
+  /**
+   * Method called to print the statistics of each Arduino's writer.
+   */
+  public void printStatistics()
+  {
+    SerialWriter[] writers = { keyboardWriter, indicatorsWriter, displayWriter };
+    for (SerialWriter writer : writers)
+    {
+      if (writer != null)
+      {
+        System.out.println(writer.getStatistics());
+      }
+    }
+    System.out.println(SerialSupervisor.getInstance().getStatistics());
   }
 
   /**
@@ -373,31 +491,44 @@ public class SerialInterface
    */
   public void closeInterface()
   {
-    if (keyboardPort != null && keyboardPort.closePort())
+    closing = true;
+    SerialWriter[] writers = { keyboardWriter, indicatorsWriter, displayWriter };
+    for (SerialWriter writer : writers)
+    {
+      if (writer != null)
+      {
+        writer.shutdown();
+      }
+    }
+
+    if (keyboardPort != null && keyboardPort.close())
     {
-      System.out.println("Keyboard port is closed.");
+      Log.info("Keyboard port is closed.");
     }
     else
     {
-      System.out.println("Failed to close keyboard port.");
+      Log.warn("Failed to close keyboard port.");
     }
 
-    if (indicatorsPort != null && indicatorsPort.closePort())
+    if (indicatorsPort != null && indicatorsPort.close())
     {
-      System.out.println("Indicators Port is closed.");
+      Log.info("Indicators Port is closed.");
     }
     else
     {
-      System.out.println("Failed to close indicators port.");
+      Log.warn("Failed to close indicators port.");
     }
 
-    if (displayPort != null && displayPort.closePort())
+    if (displayPort != null && displayPort.close())
     {
-      System.out.println("Display port is closed.");
+      Log.info("Display port is closed.");
     }
     else
     {
-      System.out.println("Failed to close display port.");
+      Log.warn("Failed to close display port.");
     }
+
+    // The program often exits next, so don't leave these messages in the log's ring.
+    Log.flush(1000);
   }
 }
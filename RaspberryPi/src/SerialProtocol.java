@@ -0,0 +1,175 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a utility class that encodes commands for the Arduinos.  Two protocols are
+            supported.  Version 1 is the original ASCII protocol where the command digit is followed by
+            a space and the value as a decimal string.  Version 2 is a binary framed protocol.  Each
+            frame is five bytes:
+
+              SYNC (0xA5), command, value high byte, value low byte, checksum
+
+            where the checksum is the one's complement of the 8-bit sum of the command and value bytes.
+            An Arduino that speaks version 2 says so in its reply to the identify command, e.g.
+            "Display V2".  Anything else is treated as version 1.
+
+            Version 2 also has link commands used to raise the baud rate.  SET BAUD carries the new rate
+            divided by 100.  The Arduino switches to the new rate and echoes every ECHO and COMMIT frame
+            it receives.  If no COMMIT frame arrives within half a second it returns to the old rate.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Baud rate negotiation commands.
+            10/16/26  Encode into a caller supplied buffer without allocating.
+*/
+
+public class SerialProtocol
+{
+  public static final int VERSION_ASCII = 1;
+  public static final int VERSION_BINARY = 2;
+
+  public static final byte FRAME_SYNC = (byte)0xA5;
+  public static final int FRAME_SIZE = 5;
+
+  // Link commands, version 2 only.
+  public static final int SET_BAUD_COMMAND = 6;
+  public static final int ECHO_COMMAND = 7;
+  public static final int COMMIT_COMMAND = 8;
+
+  private static final String VERSION_BINARY_TAG = "V2";
+
+  /**
+   * Method to get the protocol version from an identify reply.
+   *
+   * @param reply The reply with the device name removed, e.g. "V2" or "".
+   * @return The protocol version.
+   */
+  public static int parseVersion(String reply)
+  {
+    return reply.trim().equalsIgnoreCase(VERSION_BINARY_TAG) ? VERSION_BINARY : VERSION_ASCII;
+  }
+
+  /**
+   * Method to encode a command that has a value.
+   *
+   * @param version The protocol version the Arduino speaks.
+   * @param command The command number.
+   * @param value The value sent with the command.
+   * @param width The ASCII command length.  Shorter values are padded with spaces.
+   * @return The bytes to send.
+   */
+  public static byte[] encode(int version, int command, int value, int width)
+  {
+    byte[] commandToSend = new byte[version == VERSION_BINARY ? FRAME_SIZE : width];
+    encode(version, command, value, width, commandToSend);
+    return commandToSend;
+  }
+
+  /**
+   * Method to encode a command that has no value.
+   *
+   * @param version The protocol version the Arduino speaks.
+   * @param command The command number.
+   * @return The bytes to send.
+   */
+  public static byte[] encode(int version, int command)
+  {
+    return encode(version, command, 0, 1);
+  }
+
+  /**
+   * Method to encode a command into a buffer.  Nothing is allocated.  An ASCII command of
+   * width 1 is the command digit alone.
+   *
+   * @param version The protocol version the Arduino speaks.
+   * @param command The command number.
+   * @param value The value sent with the command.  Must not be negative.
+   * @param width The ASCII command length.  Shorter values are padded with spaces.
+   * @param buffer The buffer to encode into, at least FRAME_SIZE and width bytes long.
+   * @return The number of bytes encoded.
+   */
+  public static int encode(int version, int command, int value, int width, byte[] buffer)
+  {
+    if (version == VERSION_BINARY)
+    {
+      return encodeFrame(command, value, buffer);
+    }
+
+    buffer[0] = (byte)('0' + command);
+    if (width == 1)
+    {
+      return 1;
+    }
+    buffer[1] = ' ';
+
+    // Write the digits from the last one back.  Any that don't fit the width are cut off the end.
+    int end = 2 + digitCount(value);
+    for (int i = end - 1; i >= 2; i--)
+    {
+      if (i < width)
+      {
+        buffer[i] = (byte)('0' + value % 10);
+      }
+      value /= 10;
+    }
+    for (int i = end; i < width; i++)
+    {
+      buffer[i] = ' ';
+    }
+    return width;
+  }
+
+  /**
+   * Internal method used to count the decimal digits of a value.
+   *
+   * @param value The value, not negative.
+   * @return The number of digits.
+   */
+  private static int digitCount(int value)
+  {
+    int count = 1;
+    while (value >= 10)
+    {
+      value /= 10;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Internal method used to build a version 2 frame.
+   *
+   * @param command The command number.
+   * @param value The 16 bit value.
+   * @param frame The buffer to build the frame in.
+   * @return The frame length.
+   */
+  private static int encodeFrame(int command, int value, byte[] frame)
+  {
+    byte high = (byte)(value >> 8);
+    byte low = (byte)value;
+    frame[0] = FRAME_SYNC;
+    frame[1] = (byte)command;
+    frame[2] = high;
+    frame[3] = low;
+    frame[4] = checksum(command, high, low);
+    return FRAME_SIZE;
+  }
+
+  /**
+   * Method to calculate a frame checksum.
+   *
+   * @param command The command byte.
+   * @param high The value high byte.
+   * @param low The value low byte.
+   * @return The checksum byte.
+   */
+  public static byte checksum(int command, byte high, byte low)
+  {
+    return (byte)~((command & 0xFF) + (high & 0xFF) + (low & 0xFF));
+  }
+}
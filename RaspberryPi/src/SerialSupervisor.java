@@ -0,0 +1,193 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton thread that brings an Arduino back after its port fails, e.g. when
+            a USB cable glitches.  The SerialInterface reports the failed Arduino and the supervisor
+            reopens and identifies only that one, retrying until it is back.  The current display or
+            indicator state is then sent again so the panel is correct without waiting for the AGC to
+            rewrite it.  The number of reconnects and the time each Arduino was down are kept.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Log through the asynchronous log.
+*/
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SerialSupervisor extends Thread
+{
+  // Time between attempts to reconnect an Arduino (ms).
+  private static final int RETRY_INTERVAL = 1000;
+
+  private static final List<String> DEVICES =
+      Arrays.asList(PortDiscovery.KEYBOARD, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY);
+  private static final long UP = 0;
+
+  private static final SerialSupervisor instance = new SerialSupervisor();
+
+  private final BlockingQueue<String> failedDevices = new LinkedBlockingQueue<>();
+
+  // When each device went down, UP while it is connected.
+  private final AtomicLongArray downSince = new AtomicLongArray(DEVICES.size());
+
+  // Statistics.
+  private final AtomicLongArray reconnects = new AtomicLongArray(DEVICES.size());
+  private final AtomicLongArray totalDowntime = new AtomicLongArray(DEVICES.size());
+  private final AtomicLongArray maxDowntime = new AtomicLongArray(DEVICES.size());
+  private final AtomicLong attempts = new AtomicLong();
+
+  public static SerialSupervisor getInstance()
+  {
+    return instance;
+  }
+
+  private SerialSupervisor()
+  {
+    super("Serial Supervisor");
+    setDaemon(true);
+  }
+
+  /**
+   * Method called when an Arduino's port has failed.  The Arduino is queued to be
+   * reconnected unless it already is.  This method does not block.
+   *
+   * @param name The name of the Arduino.
+   */
+  public void reportFailure(String name)
+  {
+    int index = DEVICES.indexOf(name);
+    if (index < 0 || !downSince.compareAndSet(index, UP, System.nanoTime()))
+    {
+      return;
+    }
+
+    Log.warn("%s port failed, reconnecting.", name);
+    failedDevices.offer(name);
+    synchronized (this)
+    {
+      if (getState() == State.NEW)
+      {
+        start();
+      }
+    }
+  }
+
+  /**
+   * Loop reconnecting the failed Arduinos.  An Arduino that can't be reconnected goes to the
+   * back of the queue so the others get their turn.
+   */
+  public void run()
+  {
+    SerialInterface serialInterface = SerialInterface.getInstance();
+    while (true)
+    {
+      try
+      {
+        String name = failedDevices.take();
+        attempts.incrementAndGet();
+        if (serialInterface.reconnect(name))
+        {
+          connected(name);
+        }
+        else
+        {
+          Thread.sleep(RETRY_INTERVAL);
+          failedDevices.offer(name);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Internal method used to record a reconnect and bring the Arduino up to date.
+   *
+   * @param name The name of the Arduino.
+   */
+  private void connected(String name)
+  {
+    if (name.equals(PortDiscovery.DISPLAY))
+    {
+      DisplayInterface.getInstance().refresh();
+      IndicatorInterface.getInstance().refreshDisplay();
+    }
+    else if (name.equals(PortDiscovery.INDICATORS))
+    {
+      IndicatorInterface.getInstance().refreshIndicators();
+    }
+
+    int index = DEVICES.indexOf(name);
+    long downtime = System.nanoTime() - downSince.getAndSet(index, UP);
+    reconnects.incrementAndGet(index);
+    totalDowntime.addAndGet(index, downtime);
+    maxDowntime.accumulateAndGet(index, downtime, Math::max);
+    Log.info("%s reconnected after %d ms.", name, TimeUnit.NANOSECONDS.toMillis(downtime));
+  }
+
+  /**
+   * Method to get the number of times an Arduino has been reconnected.
+   *
+   * @param name The name of the Arduino.
+   * @return The number of reconnects.
+   */
+  public long getReconnectCount(String name)
+  {
+    return reconnects.get(DEVICES.indexOf(name));
+  }
+
+  /**
+   * Method to get the total time an Arduino has been down, including any current outage.
+   *
+   * @param name The name of the Arduino.
+   * @return The downtime in milliseconds.
+   */
+  public long getDowntime(String name)
+  {
+    int index = DEVICES.indexOf(name);
+    long since = downSince.get(index);
+    long current = since == UP ? 0 : System.nanoTime() - since;
+    return TimeUnit.NANOSECONDS.toMillis(totalDowntime.get(index) + current);
+  }
+
+  /**
+   * Method to determine if an Arduino is connected.
+   *
+   * @param name The name of the Arduino.
+   * @return Whether or not the Arduino is connected.
+   */
+  public boolean isConnected(String name)
+  {
+    return downSince.get(DEVICES.indexOf(name)) == UP;
+  }
+
+  /**
+   * Method to get a one line summary of the reconnects.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    StringBuilder builder = new StringBuilder("Supervisor: attempts = " + attempts.get());
+    for (int i = 0; i < DEVICES.size(); i++)
+    {
+      String name = DEVICES.get(i);
+      builder.append(", ").append(name).append(" reconnects = ").append(reconnects.get(i))
+             .append(" down = ").append(getDowntime(name)).append(" ms (max ")
+             .append(TimeUnit.NANOSECONDS.toMillis(maxDowntime.get(i))).append(" ms)");
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This interface is the byte link to one Arduino.  Everything above it talks to a transport
+            rather than a serial port, so the host code can be run against the real Arduinos through
+            JSerialCommTransport or against simulated ones through FakeArduino.
+
+  Mods:		  10/16/26  Initial Release.
+*/
+public interface SerialTransport
+{
+  /**
+   * Receives notice of input from the Arduino.  Called on a thread owned by the transport.
+   */
+  interface Listener
+  {
+    /**
+     * Method called when bytes from the Arduino are waiting to be read.
+     */
+    void dataAvailable();
+
+    /**
+     * Method called when the Arduino has gone away.
+     */
+    void disconnected();
+  }
+
+  /**
+   * Method to get the name of the port, e.g. its device path.
+   *
+   * @return The port name.
+   */
+  String getName();
+
+  /**
+   * Method to get the USB serial number of the device on the port.
+   *
+   * @return The serial number, null or empty if not known.
+   */
+  String getSerialNumber();
+
+  /**
+   * Method called to open the port.  Opening the port resets the Arduino.
+   *
+   * @param baudRate The baud rate to open at.
+   * @return Whether or not the port was opened.
+   */
+  boolean open(int baudRate);
+
+  /**
+   * Method called to close the port.
+   *
+   * @return Whether or not the port was closed.
+   */
+  boolean close();
+
+  /**
+   * Method to determine if the port is open.
+   *
+   * @return Whether or not the port is open.
+   */
+  boolean isOpen();
+
+  /**
+   * Method called to write bytes to the Arduino.  This does not wait for the bytes to be sent.
+   *
+   * @param data The bytes to write.
+   * @param length The number of bytes to write.
+   * @return The number of bytes written, -1 on error.
+   */
+  int write(byte[] data, int length);
+
+  /**
+   * Method called to read bytes from the Arduino.  Returns as soon as any bytes are available
+   * or the timeout passes.
+   *
+   * @param buffer The buffer to read into.
+   * @param length The most bytes to read.
+   * @param offset Where in the buffer to start.
+   * @param timeout How long to wait for the first byte in milliseconds, 0 to not wait.
+   * @return The number of bytes read, -1 on error.
+   */
+  int read(byte[] buffer, int length, int offset, int timeout);
+
+  /**
+   * Method to get the number of bytes waiting to be read.
+   *
+   * @return The number of bytes available, -1 on error.
+   */
+  int bytesAvailable();
+
+  /**
+   * Method called to change the baud rate of the open port.
+   *
+   * @param baudRate The new baud rate.
+   * @return Whether or not the rate was changed.
+   */
+  boolean setBaudRate(int baudRate);
+
+  /**
+   * Method to get the baud rate of the port.
+   *
+   * @return The baud rate.
+   */
+  int getBaudRate();
+
+  /**
+   * Method called to discard any bytes waiting in either direction.
+   */
+  void flush();
+
+  /**
+   * Method called to have input delivered to a listener rather than polled for.  Any
+   * previous listener is replaced.
+   *
+   * @param listener The listener, null to remove the listener.
+   * @return Whether or not the listener was added.
+   */
+  boolean setListener(Listener listener);
+}
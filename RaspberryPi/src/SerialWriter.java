@@ -0,0 +1,609 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a thread that owns all writes to one Arduino serial port.  Callers place
+            commands on a bounded queue and return immediately.  The writer thread sends the commands
+            in order and paces the port so the Arduino has time to process one command before the next
+            one arrives.  There is one writer per Arduino so the three Arduinos are driven in parallel.
+            Commands that only matter in their latest state, such as a channel 10 relay word, can be sent
+            through a keyed slot.  A slot holds at most one pending value and a newer value overwrites it
+            in place, so a slow link carries only the newest state rather than a backlog.  Any other
+            command is a barrier: a value sent after it is queued behind it rather than coalesced into
+            a slot queued before it, so e.g. a relay word sent after a RESET is not blanked by it.  A
+            slot that finds the queue full stays pending and is queued as soon as the writer makes room.
+            An Arduino speaking the ASCII protocol needs a long gap to separate one command from the next.
+            With the framed binary protocol the gap only has to cover the time to process a command, and
+            commands may be written ahead of the Arduino as long as they fit in its receive buffer, so a
+            burst such as the relay words of one display frame goes out together.
+            Queue entries come from a fixed pool and each command is encoded by the writer thread into a
+            buffer it owns, so sending a command allocates nothing.  If a write fails the writer stops
+            and reports the failure so the port can be reconnected.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Latest-wins keyed slots.
+            10/16/26  Pacing depends on the protocol version.
+            10/16/26  Report the effective bytes per second.
+            10/16/26  Pooled queue entries and encoding into a reused buffer.
+            10/16/26  Write to a transport.
+            10/16/26  Report write failures.
+            10/16/26  Write framed commands ahead into the Arduino receive buffer.
+            10/16/26  Log through the asynchronous log.
+            10/16/26  Don't lose a value coalesced into a slot the queue had no room for.
+            10/16/26  Queue a slot the queue had no room for once there is room, instead of dropping it.
+            10/16/26  Don't coalesce a value into a slot queued before a later ordered command.
+*/
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SerialWriter extends Thread
+{
+  private static final int QUEUE_SIZE = 64;
+
+  // Number of keyed slots.  This covers the 4-bit channel 10 relay word.
+  public static final int SLOT_COUNT = 16;
+  private static final int EMPTY_SLOT = -1;
+
+  // Minimum time between two commands written to the same Arduino.
+  private static final long ASCII_PACING_NANOS = TimeUnit.MILLISECONDS.toNanos(120);
+  private static final long BINARY_PACING_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  // The receive buffer of the Arduino serial port.
+  private static final int ARDUINO_RX_BUFFER = 64;
+
+  private final String deviceName;
+  private final SerialTransport port;
+  private final int protocolVersion;
+  private final long pacingNanos;
+  private final int maxBacklog;
+  private final Runnable failureHandler;
+  private final BlockingQueue<QueuedCommand> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private final BlockingQueue<QueuedCommand> freeCommands = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+  // Guards the keyed slots, and orders them against the other commands.
+  private final Object slotLock = new Object();
+
+  // The queued entry a new value for each slot is coalesced into, null if there is none.
+  private final QueuedCommand[] slotEntries = new QueuedCommand[SLOT_COUNT];
+
+  // The number of ordered commands queued.  A slot entry only takes new values while no ordered
+  // command has been queued behind it, so a value never overtakes a command sent before it.
+  private long barriers = 0;
+
+  // The slots, one bit each, that found the queue full, with the command and latest value of each.
+  private int deferredSlots = 0;
+  private final int[] deferredCommands = new int[SLOT_COUNT];
+  private final int[] deferredValues = new int[SLOT_COUNT];
+  private final int[] deferredWidths = new int[SLOT_COUNT];
+
+  // Only used by the writer thread.
+  private final byte[] writeBuffer = new byte[16];
+
+  private volatile boolean runThread = true;
+  private long lastWriteTime = 0;
+
+  // When the Arduino is expected to have processed the commands written so far.
+  private long busyUntil = 0;
+  private volatile long firstWriteTime = 0;
+
+  // Statistics.
+  private final AtomicLong commandsQueued = new AtomicLong();
+  private final AtomicLong commandsDropped = new AtomicLong();
+  private final AtomicLong commandsSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+  private final AtomicLong totalPacing = new AtomicLong();
+  private final AtomicLongArray slotsCoalesced = new AtomicLongArray(SLOT_COUNT);
+  private final AtomicLongArray slotsDeferred = new AtomicLongArray(SLOT_COUNT);
+
+  /**
+   * A command waiting to be written along with the time it was queued.  Entries are reused.
+   * A keyed entry holds the latest value of its slot until it is written.
+   */
+  private static final class QueuedCommand
+  {
+    private int slot = EMPTY_SLOT;
+    private int command;
+    private int value;
+    private int width;
+    private long queuedTime;
+    private long barrier;
+  }
+
+  /**
+   * Create a writer for the given port.
+   *
+   * @param deviceName The name of the Arduino connected to the port.
+   * @param port The port to write to.
+   * @param protocolVersion The protocol version the Arduino speaks.
+   * @param failureHandler Called on the writer thread if a write fails, may be null.
+   */
+  public SerialWriter(String deviceName, SerialTransport port, int protocolVersion, Runnable failureHandler)
+  {
+    super(deviceName + " Writer");
+    this.deviceName = deviceName;
+    this.port = port;
+    this.protocolVersion = protocolVersion;
+    this.failureHandler = failureHandler;
+    this.pacingNanos = protocolVersion == SerialProtocol.VERSION_BINARY ? BINARY_PACING_NANOS : ASCII_PACING_NANOS;
+
+    // ASCII commands are separated by the gap, so only one can be outstanding.
+    this.maxBacklog = protocolVersion == SerialProtocol.VERSION_BINARY ?
+                      ARDUINO_RX_BUFFER / SerialProtocol.FRAME_SIZE : 1;
+    setDaemon(true);
+
+    for (int i = 0; i < QUEUE_SIZE; i++)
+    {
+      freeCommands.add(new QueuedCommand());
+    }
+  }
+
+  /**
+   * Method called to queue a command to be written to the port.  This method does not block.
+   * If the queue is full the command is dropped and counted.  The command is written after
+   * every value sent before it, and values sent after it are written after it.
+   *
+   * @param command The command number.
+   * @param value The value sent with the command.
+   * @param width The length of the ASCII command.
+   * @return Whether or not the command was queued.
+   */
+  public boolean send(int command, int value, int width)
+  {
+    synchronized (slotLock)
+    {
+      // A slot waiting for room was sent first, so it has to go first.
+      queueDeferredSlots();
+      QueuedCommand entry = deferredSlots == 0 ? freeCommands.poll() : null;
+      if (entry == null)
+      {
+        commandsDropped.incrementAndGet();
+        return false;
+      }
+
+      entry.slot = EMPTY_SLOT;
+      entry.command = command;
+      entry.value = value;
+      entry.width = width;
+      entry.queuedTime = System.nanoTime();
+      if (!queue.offer(entry))
+      {
+        freeCommands.offer(entry);
+        commandsDropped.incrementAndGet();
+        return false;
+      }
+      barriers++;
+    }
+
+    commandsQueued.incrementAndGet();
+    updateMax(maxQueueDepth, queue.size());
+    return true;
+  }
+
+  /**
+   * Method called to send the latest value for a keyed slot.  If a value for the slot is
+   * already waiting to be written, and no other command has been sent since, it is overwritten
+   * in place and counted as coalesced.  Otherwise the slot takes a place in the queue behind
+   * the commands already there.  If the queue is full the slot waits and is queued by the
+   * writer thread as soon as there is room, so a value taken is always written, or replaced
+   * by a newer one.  This method does not block.
+   *
+   * @param slot The slot, 0 - 15.
+   * @param command The command number.  The same slot must always be sent the same command.
+   * @param value The value to send.
+   * @param width The length of the ASCII command.
+   * @return Whether or not the value was taken.
+   */
+  public boolean sendLatest(int slot, int command, int value, int width)
+  {
+    synchronized (slotLock)
+    {
+      QueuedCommand current = slotEntries[slot];
+      if (current != null && current.barrier == barriers)
+      {
+        // The queued slot has not been written yet and will go out with the new value.
+        current.value = value;
+        slotsCoalesced.incrementAndGet(slot);
+        return true;
+      }
+
+      int bit = 1 << slot;
+      if ((deferredSlots & bit) != 0)
+      {
+        deferredValues[slot] = value;
+        slotsCoalesced.incrementAndGet(slot);
+        return true;
+      }
+
+      if (!queueSlot(slot, command, value, width))
+      {
+        // Keep the value, so later values coalesce into it, and queue the slot later.
+        deferredSlots |= bit;
+        deferredCommands[slot] = command;
+        deferredValues[slot] = value;
+        deferredWidths[slot] = width;
+        slotsDeferred.incrementAndGet(slot);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Internal method used to queue a value for a slot in a free entry.  The slot lock must be
+   * held.
+   *
+   * @param slot The slot.
+   * @param command The command number.
+   * @param value The value to send.
+   * @param width The length of the ASCII command.
+   * @return Whether or not there was room for it.
+   */
+  private boolean queueSlot(int slot, int command, int value, int width)
+  {
+    QueuedCommand entry = freeCommands.poll();
+    if (entry == null)
+    {
+      return false;
+    }
+
+    entry.slot = slot;
+    entry.command = command;
+    entry.value = value;
+    entry.width = width;
+    entry.queuedTime = System.nanoTime();
+    entry.barrier = barriers;
+    if (!queue.offer(entry))
+    {
+      freeCommands.offer(entry);
+      return false;
+    }
+    slotEntries[slot] = entry;
+    commandsQueued.incrementAndGet();
+    updateMax(maxQueueDepth, queue.size());
+    return true;
+  }
+
+  /**
+   * Internal method used to queue the slots that found the queue full, lowest slot first.  It is
+   * called by a sender before an ordered command and by the writer thread each time it frees an
+   * entry.  The slot lock must be held.
+   */
+  private void queueDeferredSlots()
+  {
+    while (deferredSlots != 0)
+    {
+      int slot = Integer.numberOfTrailingZeros(deferredSlots);
+      if (!queueSlot(slot, deferredCommands[slot], deferredValues[slot], deferredWidths[slot]))
+      {
+        return;
+      }
+      deferredSlots &= ~(1 << slot);
+    }
+  }
+
+  /**
+   * Method called to stop the writer thread.  Any commands still queued are discarded.
+   */
+  public void shutdown()
+  {
+    runThread = false;
+    interrupt();
+    try
+    {
+      join(500);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Loop taking commands off the queue and writing them to the port.
+   */
+  public void run()
+  {
+    while (runThread)
+    {
+      try
+      {
+        QueuedCommand command = queue.take();
+
+        // Each command takes the pacing interval to process.  Wait until the commands the
+        // Arduino has not processed yet leave room for one more.
+        long waitTime = busyUntil - (maxBacklog - 1) * pacingNanos - System.nanoTime();
+        if (waitTime > 0)
+        {
+          TimeUnit.NANOSECONDS.sleep(waitTime);
+          totalPacing.addAndGet(waitTime);
+        }
+
+        long queuedTime = command.queuedTime;
+        int length = encode(command);
+        if (port.write(writeBuffer, length) < 0)
+        {
+          Log.error("%s write failed.", deviceName);
+          runThread = false;
+          if (failureHandler != null)
+          {
+            failureHandler.run();
+          }
+          break;
+        }
+        lastWriteTime = System.nanoTime();
+        busyUntil = Math.max(busyUntil, lastWriteTime) + pacingNanos;
+        if (firstWriteTime == 0)
+        {
+          firstWriteTime = lastWriteTime;
+        }
+
+        long latency = lastWriteTime - queuedTime;
+        totalLatency.addAndGet(latency);
+        updateMax(maxLatency, latency);
+        bytesSent.addAndGet(length);
+        commandsSent.incrementAndGet();
+      }
+      catch (InterruptedException e)
+      {
+        // Shutting down.
+      }
+    }
+  }
+
+  /**
+   * Internal method used to encode a queued command into the write buffer and release its
+   * entry.  A keyed entry is encoded with the latest value coalesced into it, and a slot that
+   * was waiting for room is queued in its place.
+   *
+   * @param command The queued command.
+   * @return The number of bytes to write.
+   */
+  private int encode(QueuedCommand command)
+  {
+    int value;
+    synchronized (slotLock)
+    {
+      value = command.value;
+      if (command.slot != EMPTY_SLOT && slotEntries[command.slot] == command)
+      {
+        slotEntries[command.slot] = null;
+      }
+    }
+
+    int length = SerialProtocol.encode(protocolVersion, command.command, value, command.width, writeBuffer);
+    synchronized (slotLock)
+    {
+      freeCommands.offer(command);
+      queueDeferredSlots();
+    }
+    return length;
+  }
+
+  /**
+   * Method to get the protocol version the Arduino speaks.
+   *
+   * @return The protocol version.
+   */
+  public int getProtocolVersion()
+  {
+    return protocolVersion;
+  }
+
+  /**
+   * Method to get the number of commands currently waiting to be written.
+   *
+   * @return The queue depth.
+   */
+  public int getQueueDepth()
+  {
+    return queue.size();
+  }
+
+  /**
+   * Method to get the largest queue depth seen.
+   *
+   * @return The maximum queue depth.
+   */
+  public long getMaxQueueDepth()
+  {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * Method to get the number of commands written to the port.
+   *
+   * @return The number of commands sent.
+   */
+  public long getCommandsSent()
+  {
+    return commandsSent.get();
+  }
+
+  /**
+   * Method to get the number of commands dropped because the queue was full.
+   *
+   * @return The number of commands dropped.
+   */
+  public long getCommandsDropped()
+  {
+    return commandsDropped.get();
+  }
+
+  /**
+   * Method to get the average time from a command being queued to it being written.
+   *
+   * @return The average latency in microseconds.
+   */
+  public long getAverageLatency()
+  {
+    long sent = commandsSent.get();
+    return sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / sent);
+  }
+
+  /**
+   * Method to get the longest time from a command being queued to it being written.
+   *
+   * @return The maximum latency in microseconds.
+   */
+  public long getMaxLatency()
+  {
+    return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+  }
+
+  /**
+   * Method to get the total time the writer has spent waiting between commands.
+   *
+   * @return The pacing time in milliseconds.
+   */
+  public long getPacingTime()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(totalPacing.get());
+  }
+
+  /**
+   * Method to get the average number of bytes per second written since the first write.
+   *
+   * @return The effective bytes per second.
+   */
+  public long getBytesPerSecond()
+  {
+    long elapsed = System.nanoTime() - firstWriteTime;
+    if (firstWriteTime == 0 || elapsed <= 0)
+    {
+      return 0;
+    }
+    return bytesSent.get() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+  }
+
+  /**
+   * Method to get the number of values for a slot that were overwritten before being written.
+   *
+   * @param slot The slot.
+   * @return The number of coalesced values.
+   */
+  public long getCoalescedCount(int slot)
+  {
+    return slotsCoalesced.get(slot);
+  }
+
+  /**
+   * Method to get the number of times a slot found the queue full and was queued later.
+   *
+   * @param slot The slot.
+   * @return The number of deferred values.
+   */
+  public long getDeferredCount(int slot)
+  {
+    return slotsDeferred.get(slot);
+  }
+
+  /**
+   * Method to get a one line summary of the writer statistics.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return deviceName + " (v" + protocolVersion + "): queued = " + commandsQueued.get() + ", sent = " + commandsSent.get() +
+           ", dropped = " + commandsDropped.get() + ", bytes = " + bytesSent.get() +
+           " (" + getBytesPerSecond() + " B/s at " + port.getBaudRate() + " baud)" +
+           ", depth = " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")" +
+           ", latency = " + getAverageLatency() + " us (max " + getMaxLatency() + " us)" +
+           ", pacing = " + getPacingTime() + " ms" + getSlotStatistics();
+  }
+
+  /**
+   * Internal method used to summarize the slots that have coalesced or dropped values.
+   *
+   * @return The slot statistics, empty if there are none.
+   */
+  private String getSlotStatistics()
+  {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < SLOT_COUNT; i++)
+    {
+      if (slotsCoalesced.get(i) != 0 || slotsDeferred.get(i) != 0)
+      {
+        builder.append(builder.length() == 0 ? ", slots:" : ",");
+        builder.append(' ').append(i).append('=').append(slotsCoalesced.get(i)).append('/').append(slotsDeferred.get(i));
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Internal method used to keep a running maximum.
+   *
+   * @param max The maximum to update.
+   * @param value The new value.
+   */
+  private static void updateMax(AtomicLong max, long value)
+  {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value))
+    {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Measure the allocations made sending and encoding commands.  No port is needed: the
+   * queue is drained and encoded on this thread in place of the writer thread.
+   *
+   * @param args [iterations]
+   */
+  public static void main(String[] args)
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean))
+    {
+      System.out.println("Thread allocation counting is not available on this JVM.");
+      return;
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+    long threadId = Thread.currentThread().getId();
+
+    int[] versions = { SerialProtocol.VERSION_ASCII, SerialProtocol.VERSION_BINARY };
+    for (int version : versions)
+    {
+      SerialWriter writer = new SerialWriter("Test", null, version, null);
+
+      // Run once to warm up, then again to measure.
+      for (int pass = 0; pass < 2; pass++)
+      {
+        long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        long totalLength = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+          writer.sendLatest(i & 0x0F, 3, (i & 0x0F) << 11 | (i & 0x7FF), 7);
+          writer.send(4, i & 1, 3);
+          writer.send(3, i & 0x1FF, 4);
+          QueuedCommand command;
+          while ((command = writer.queue.poll()) != null)
+          {
+            totalLength += writer.encode(command);
+          }
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+        if (pass == 1)
+        {
+          System.out.printf("Protocol v%d: %d commands, %d bytes encoded, %d bytes allocated (%.4f per command)%n",
+                            version, 3L * iterations, totalLength, allocated, allocated / (3.0 * iterations));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a singleton that holds the settings that can be tuned without rebuilding.  The
+            settings are read from a properties file in the user's home directory.  A system property
+            of the same name prefixed with "dsky." overrides the file, e.g. -Ddsky.frameRate=30.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Report problems through the log.
+*/
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class Settings
+{
+  // The rate the display is redrawn at (Hz), zero to send every change as it arrives.
+  public static final String FRAME_RATE = "frameRate";
+
+  // How long a display register must be unchanged before it is drawn (ms).
+  public static final String SETTLE_TIME = "settleTime";
+
+  // The longest a changed display register is held back waiting to settle (ms).
+  public static final String MAX_HOLD_TIME = "maxHoldTime";
+
+  // How long the flashing verb/noun and indicators stay on and off (ms).
+  public static final String FLASH_INTERVAL = "flashInterval";
+
+  // The host and port of the simulator.
+  public static final String SIM_HOST = "simHost";
+  public static final String SIM_PORT = "simPort";
+
+  // The lowest level of message logged (ERROR, WARN, INFO or DEBUG), the most messages a log
+  // site may log a second, and whether every simulator packet is logged.
+  public static final String LOG_LEVEL = "logLevel";
+  public static final String LOG_SITE_LIMIT = "logSiteLimit";
+  public static final String TRACE_PACKETS = "tracePackets";
+
+  // The GPIO register device, or a file standing in for it.
+  public static final String GPIO_MEMORY = "gpioMemory";
+
+  // How the hardware mode reaches the AGC (pi4j, mapped or simulated), and how often the mapped
+  // backend polls the control lines (us, zero to spin).
+  public static final String GPIO_BACKEND = "gpioBackend";
+  public static final String GPIO_POLL_INTERVAL = "gpioPollInterval";
+
+  // The script the simulated AGC plays, empty for the default, and the strobes a second it drives.
+  public static final String SIM_BUS_SCRIPT = "simBusScript";
+  public static final String SIM_BUS_RATE = "simBusRate";
+
+  // How long the channel bus is held for the AGC to read the keys (us).
+  public static final String BUS_HOLD_TIME = "busHoldTime";
+
+  // The time the CLK1 frequency is measured over (ms), and the slowest clock counted as the AGC
+  // running (Hz).
+  public static final String CLOCK_WINDOW = "clockWindow";
+  public static final String CLOCK_MIN_FREQUENCY = "clockMinFrequency";
+
+  // Must come before the instance, which reads it.
+  private static final File SETTINGS_FILE = new File(System.getProperty("user.home"), ".dsky/dsky.properties");
+
+  private static final Settings instance = new Settings();
+
+  private final Properties properties = new Properties();
+
+  // Why the settings file couldn't be read, null if it was.  The log reports it, as the log
+  // itself reads the settings and so can't be used while they are being read.
+  private String readError = null;
+
+  public static Settings getInstance()
+  {
+    return instance;
+  }
+
+  private Settings()
+  {
+    if (SETTINGS_FILE.exists())
+    {
+      try (InputStream in = new FileInputStream(SETTINGS_FILE))
+      {
+        properties.load(in);
+      }
+      catch (IOException e)
+      {
+        readError = "Unable to read " + SETTINGS_FILE + ": " + e.getMessage();
+      }
+    }
+  }
+
+  /**
+   * Method to get why the settings file couldn't be read.
+   *
+   * @return The error, null if the file was read or there is none.
+   */
+  public String getReadError()
+  {
+    return readError;
+  }
+
+  /**
+   * Method to get a setting.
+   *
+   * @param name The name of the setting.
+   * @param defaultValue The value to use if the setting is not given.
+   * @return The value of the setting.
+   */
+  public String getString(String name, String defaultValue)
+  {
+    return System.getProperty("dsky." + name, properties.getProperty(name, defaultValue)).trim();
+  }
+
+  /**
+   * Method to get a numeric setting.
+   *
+   * @param name The name of the setting.
+   * @param defaultValue The value to use if the setting is not given or is not a number.
+   * @return The value of the setting.
+   */
+  public int getInt(String name, int defaultValue)
+  {
+    String value = getString(name, String.valueOf(defaultValue));
+    try
+    {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e)
+    {
+      Log.warn("Setting %s = %s is not a number, using %d", name, value, defaultValue);
+      return defaultValue;
+    }
+  }
+}
@@ -8,25 +8,60 @@
   expressed or implied. See the GNU General Public License for more details.
 
   Purpose:	This class provides an interface to the simulators.  Both simulators
-            have the same interface for ease of coding.
+            have the same interface for ease of coding.  The simulator may start after the DSKY or
+            be restarted, so the connection is retried with a growing wait until it is made.  Keys
+            pressed while it is away are dropped.
 
   Mods:		  07/15/22  Initial Release.
             07/16/22  Performance improvements.
+            10/16/26  Keep partial packets between reads and resync on the packet signatures.
+            10/16/26  Read with a timeout and stop when the connection closes.
+            10/16/26  Hand the packets to the channel dispatcher.
+            10/16/26  Reconnect with backoff and send the keys held while disconnected.
+            10/16/26  Log through the asynchronous log.
+            10/16/26  Drop keys pressed while disconnected.
+            10/16/26  Guard the key code message by level, and flush the log on close.
 */
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class SimInterface extends Thread
 {
   private final SocketClient socketClient = new SocketClient();
-  private final DisplayInterface displayInterface = DisplayInterface.getInstance();
-  private final IndicatorInterface indicatorInterface = IndicatorInterface.getInstance();
+  private final ChannelDispatcher channelDispatcher = ChannelDispatcher.getInstance();
+  private final PacketFramer framer = new PacketFramer(channelDispatcher::dispatch);
+
+  // The longest a read waits, so a close is noticed (ms).
+  private static final long READ_TIMEOUT = 250;
+
+  // The wait before the first attempt to reconnect, doubled after each failure up to the maximum (ms).
+  private static final long MIN_BACKOFF = 250;
+  private static final long MAX_BACKOFF = 8000;
 
-  private boolean runThread = true;
+  private volatile boolean runThread = true;
+  private volatile long connectedSince = 0;
+
+  // Statistics.
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong attempts = new AtomicLong();
+  private final AtomicLong totalReconnectTime = new AtomicLong();
+  private final AtomicLong maxReconnectTime = new AtomicLong();
+  private final AtomicLong maxUptime = new AtomicLong();
+  private final AtomicLong keysDropped = new AtomicLong();
+
+  public SimInterface()
+  {
+    super("Simulator Interface");
+  }
 
   /**
-   * Initialize the interface to the simulator.
+   * Initialize the interface to the simulator.  The connection is made by the interface's
+   * thread, which keeps trying until the simulator is there.
    */
   public void initInterface()
   {
-    socketClient.openInterface();
+    channelDispatcher.registerDskyChannels();
   }
 
   /**
@@ -35,140 +70,158 @@ public class SimInterface extends Thread
   public void closeInterface()
   {
     runThread = false;
+    interrupt();
     socketClient.closeInterfaces();
+    Log.flush(1000);
   }
 
   /**
    * Send a key code for a key that was pressed to the AGC.  There are four packets of data sent.
    * The format for the four packets is 0000pppp 01pppdddd 10dddddd 11dddddd
    * where p = the channel number and d = the 15 bits of channel data.
-   * For a keycode, the channel number is always octal 15 for DSKY #1.
+   * For a keycode, the channel number is always octal 15 for DSKY #1.  If the simulator is not
+   * connected the key is dropped, as a keystroke sent later could land in the middle of whatever
+   * the AGC is doing by then.  This method does not block.
    *
    * @param keycode The keycode (as defined by NASA) to send.
    */
   public void sendKeyCode(int keycode)
   {
-    byte[] bytesToSend = new byte[4];
-    bytesToSend[0] = (byte)0x01;
-    bytesToSend[1] = (byte)0x68;
-    bytesToSend[2] = (byte)0x80;
-    bytesToSend[3] = (byte)(0xC0 | keycode);
-    socketClient.sendData(bytesToSend);
-    System.out.println("Sent Key Code: " + keycode);
+    if (socketClient.isConnected() && socketClient.sendPacket(ChannelDispatcher.KEYBOARD_CHANNEL, keycode))
+    {
+      if (Log.isEnabled(Log.Level.INFO))
+      {
+        Log.info("Sent Key Code: %d", keycode);
+      }
+    }
+    else
+    {
+      keysDropped.incrementAndGet();
+      Log.warn("Dropped Key Code: %d, the simulator is not connected.", keycode);
+    }
   }
 
   /**
    * Start a thread that loops waiting on data from the AGC.  Upon data receipt,
-   * decode and process the data.
+   * decode and process the data.  When the connection is lost or can't be made it is
+   * tried again, waiting longer after each failure.
    */
   public void run()
   {
+    long downSince = System.nanoTime();
+    long backoff = MIN_BACKOFF;
+    boolean reported = false;
     while(runThread)
     {
-      getData();
-    }
-  }
-
-  /**
-   * Method to get data from the AGC, decode it and process it.
-   */
-  public void getData()
-  {
-    // Read an array of bytes from the interface.
-    byte[] data = socketClient.receiveData();
-    if (data == null)
-      return;
-
-    int index = 0;
-    byte pValue = 0;
-    int dValue = 0;
-    for (int i = 0; i < data.length; i++)
-    {
-      if (index == 0)
+      if (!connect())
       {
-        byte indexRead = (byte)((data[i] & 0xC0) >> 6);
-        if (indexRead == 0)
+        if (!reported)
         {
-          pValue = (byte)((data[i] & 0x3F) << 3);
+          Log.warn("Simulator not available, retrying.");
+          reported = true;
         }
-        index++;
-      }
-      else if (index == 1)
-      {
-        byte indexRead = (byte)((data[i] & 0xC0) >> 6);
-        if (indexRead == 1)
+        try
         {
-          pValue = (byte)(pValue | (data[i] & 0x38) >> 3);
-          dValue = data[i] & 0x0007;
+          Thread.sleep(backoff);
         }
-        index++;
-      }
-      else if (index == 2)
-      {
-        byte indexRead = (byte)((data[i] & 0xC0) >> 6);
-        if (indexRead == 2)
+        catch (InterruptedException e)
         {
-          dValue = (dValue << 6) | (data[i] & 0x3F);
+          // Closing.
         }
-        index++;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        continue;
       }
-      else if (index == 3)
+
+      long reconnectTime = System.nanoTime() - downSince;
+      connectedSince = System.nanoTime();
+      if (connects.incrementAndGet() > 1)
       {
-        byte indexRead = (byte)((data[i] & 0xC0) >> 6);
-        if (indexRead == 3)
-        {
-          dValue = (dValue << 6) | (data[i] & 0x3F);
-        }
+        totalReconnectTime.addAndGet(reconnectTime);
+        maxReconnectTime.accumulateAndGet(reconnectTime, Math::max);
+      }
+      Log.info("Simulator connected after %d ms.", TimeUnit.NANOSECONDS.toMillis(reconnectTime));
+      backoff = MIN_BACKOFF;
+      reported = false;
 
-        // Ignore all but channels 10, 11 and 0163 (octal).
-        if (pValue == 8 || pValue == 9 || pValue == 115)
-        {
-          // TODO: temp code, remove...
-          if (!(pValue == 8 && dValue == 0))
-          {
-            System.out.print("Received: Channel = " + Integer.toOctalString(pValue) + ", D = " + dValue);
-            System.out.println(", Original Bytes: " + Utils.byteToHex(data[i-3]) + " " + Utils.byteToHex(data[i-2]) +
-                               " " + Utils.byteToHex(data[i-1]) + " " + Utils.byteToHex(data[i]));
-          }
+      while (runThread && getData())
+      {
+        // Process packets until the connection is lost.
+      }
 
-          // Process Channel 11 - indicator status.
-          if (pValue == 9)
-          {
-            indicatorInterface.setCompActy((dValue & 0x0002) != 0);
-            indicatorInterface.setUplinkActy((dValue & 0x0004) != 0);
-            indicatorInterface.setTemp((dValue & 0x0008) != 0);
-            indicatorInterface.setKeyRel((dValue & 0x0010) != 0);
-            indicatorInterface.setOprErr((dValue & 0x0040) != 0);
-            indicatorInterface.sendOtherIndidatorsCommand();
-          }
-          // Process Channel 10 - display data.
-          else if (pValue == 8)
-          {
-            if (dValue != 0)
-            {
-              displayInterface.setChannel10Register(dValue);
-              displayInterface.decodeData();
-            }
-          }
-          // Process pseudo channel 163 - What in the real system is Channel 10, Relay Word 12 data.
-          else if (pValue == 115)
-          {
-            indicatorInterface.setTemp((dValue & 0x0008) != 0);
-            indicatorInterface.setKeyRel((dValue & 0x0010) != 0);
-            indicatorInterface.setFlashVerbNoun((dValue & 0x0020) != 0);
-            indicatorInterface.setOprErr((dValue & 0x0040) != 0);
-            indicatorInterface.setRestart((dValue & 0x0080) != 0);
-            indicatorInterface.setStandby((dValue & 0x0100) != 0);
-            indicatorInterface.sendOtherIndidatorsCommand();
-          }
-        }
-        index = 0;
-        pValue = 0;
-        dValue = 0;
+      downSince = System.nanoTime();
+      maxUptime.accumulateAndGet(downSince - connectedSince, Math::max);
+      connectedSince = 0;
+      socketClient.closeInterfaces();
+      if (runThread)
+      {
+        Log.warn("Simulator connection lost, reconnecting.");
       }
     }
   }
 
+  /**
+   * Internal method used to open the connection to the simulator.
+   *
+   * @return Whether or not the connection was opened.
+   */
+  private boolean connect()
+  {
+    attempts.incrementAndGet();
+    try
+    {
+      socketClient.openInterface();
+      return true;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Method to get data from the AGC, decode it and process it.  A packet split across two
+   * reads is finished by the next read.
+   *
+   * @return Whether or not the connection is still open.
+   */
+  public boolean getData()
+  {
+    if (socketClient.receiveData(framer, READ_TIMEOUT) < 0)
+    {
+      framer.reset();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Method to determine if the simulator is connected.
+   *
+   * @return Whether or not the simulator is connected.
+   */
+  public boolean isConnected()
+  {
+    return connectedSince != 0;
+  }
+
+  /**
+   * Method to get a one line summary of the connection.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    long since = connectedSince;
+    long uptime = since == 0 ? 0 : System.nanoTime() - since;
+    long reconnects = Math.max(0, connects.get() - 1);
+    return "Simulator: connected = " + (since != 0) + ", uptime = " + TimeUnit.NANOSECONDS.toSeconds(uptime) +
+           " s (max " + TimeUnit.NANOSECONDS.toSeconds(Math.max(uptime, maxUptime.get())) + " s), attempts = " +
+           attempts.get() + ", reconnects = " + reconnects + ", reconnect time = " +
+           (reconnects == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalReconnectTime.get() / reconnects)) +
+           " ms (max " + TimeUnit.NANOSECONDS.toMillis(maxReconnectTime.get()) + " ms), keys dropped = " +
+           keysDropped.get() + ", " + framer.getStatistics();
+  }
+
   /**
    * Used to test the interface separate from everything else.
    *
@@ -178,6 +231,7 @@ public class SimInterface extends Thread
   {
     SimInterface simInterface = new SimInterface();
     simInterface.initInterface();
+    simInterface.start();
     try
     {
       // ---------- V35E ------------------
@@ -263,10 +317,8 @@ public class SimInterface extends Thread
 //      simInterface.sendKeyCode(28);
 //      System.out.println("Sent enter key...");
 
-      while(true)
-      {
-        simInterface.getData();
-      }
+      // Process packets, reconnecting as needed, until stopped.
+      simInterface.join();
     }
     catch( Exception e )
     {
@@ -0,0 +1,320 @@
+/*
+  Copyright 2022, William Glasford
+
+  This file is part of the DSKY Model.  You can redistribute it
+  and/or modify it under the terms of the GNU General Public License as
+  published by the Free Software Foundation; either version 3 of the License,
+  or any later version. This software is distributed without any warranty
+  expressed or implied. See the GNU General Public License for more details.
+
+  Purpose:	This class is a GPIO backend with a simulated AGC on the other end, so the hardware mode can be
+            run and load tested on any machine.  A thread plays a script of strobes over and over at a
+            set rate.  Each line of the script names a control line and, for DISP and INDC, the octal word
+            to put on the channel bus, e.g. "DISP 05673".  The line is strobed low and back high, as the
+            AGC's inverse logic does, with the word on the bus throughout.  Blank lines and lines starting
+            with # are skipped.  With no script the display is filled with 8s and the indicators lit.
+            The rate actually reached is measured, so the strobe rate the pipeline can sustain can be found
+            by asking for more than it can take.
+
+  Mods:		  10/16/26  Initial Release.
+            10/16/26  Check the hardware mode against a fake display and step the strobe rate up.
+            10/16/26  Warm the pipeline up before the check and hold each rate for a second.
+*/
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SimulatedGpioBackend implements GpioBackend
+{
+  // The script played when none is given.
+  private static final List<String> DEFAULT_SCRIPT =
+      Arrays.asList("DISP 055675", "DISP 051675", "DISP 045675", "DISP 041675", "DISP 035675", "DISP 031675",
+                    "DISP 025675", "DISP 021675", "DISP 015675", "DISP 011675", "DISP 005675", "INDC 000734");
+
+  private final String script;
+  private final int rate;
+  private final long strobes;
+
+  // The script, one line and word per step.
+  private Line[] stepLines;
+  private int[] stepWords;
+
+  private final boolean[] levels = new boolean[Line.values().length];
+  private volatile int agcWord = 0;
+  private volatile int dskyWord = 0;
+  private volatile boolean output = false;
+  private volatile Listener listener = null;
+  private volatile Thread agc = null;
+
+  // Statistics.
+  private final AtomicLong strobesDriven = new AtomicLong();
+  private final AtomicLong kbStrPulses = new AtomicLong();
+  private volatile long runTime = 0;
+
+  /**
+   * Build the backend.
+   *
+   * @param script The script file, null for the default script.
+   * @param rate The strobes a second to drive, 0 to drive them back to back.
+   * @param strobes The number of strobes to drive before stopping, 0 to not stop.
+   */
+  public SimulatedGpioBackend(String script, int rate, long strobes)
+  {
+    this.script = script;
+    this.rate = rate;
+    this.strobes = strobes;
+    Arrays.fill(levels, true);
+  }
+
+  /**
+   * Method to get a backend playing the script at the rate in the settings, without stopping.
+   *
+   * @return The backend.
+   */
+  public static SimulatedGpioBackend create()
+  {
+    Settings settings = Settings.getInstance();
+    String script = settings.getString(Settings.SIM_BUS_SCRIPT, "");
+    return new SimulatedGpioBackend(script.isEmpty() ? null : script, settings.getInt(Settings.SIM_BUS_RATE, 100), 0);
+  }
+
+  public String getName()
+  {
+    return "Simulated AGC playing " + (script != null ? script : "the default script") + " at " +
+           (rate > 0 ? rate + " strobes/s" : "full speed");
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  public void open() throws IOException
+  {
+    List<String> lines = script != null ? Files.readAllLines(Paths.get(script)) : DEFAULT_SCRIPT;
+    List<Line> parsedLines = new ArrayList<>();
+    List<Integer> parsedWords = new ArrayList<>();
+    for (String text : lines)
+    {
+      String[] fields = text.trim().split("\\s+");
+      if (fields[0].isEmpty() || fields[0].startsWith("#"))
+      {
+        continue;
+      }
+      try
+      {
+        parsedLines.add(Line.valueOf(fields[0].toUpperCase()));
+        parsedWords.add(fields.length > 1 ? Integer.parseInt(fields[1], 8) & 077777 : 0);
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IOException("Bad script line \"" + text + "\"");
+      }
+    }
+    if (parsedLines.isEmpty())
+    {
+      throw new IOException("Script " + script + " has no strobes.");
+    }
+    stepLines = parsedLines.toArray(new Line[0]);
+    stepWords = parsedWords.stream().mapToInt(Integer::intValue).toArray();
+
+    Thread thread = new Thread(this::play, "Simulated AGC");
+    thread.setDaemon(true);
+    agc = thread;
+    thread.start();
+  }
+
+  public void close()
+  {
+    Thread thread = agc;
+    agc = null;
+    if (thread != null)
+    {
+      thread.interrupt();
+    }
+  }
+
+  public boolean isHigh(Line line)
+  {
+    // There is always a simulated AGC.
+    return line == Line.HW_PRESENT || levels[line.ordinal()];
+  }
+
+  public int readChannelBus()
+  {
+    return output ? dskyWord : agcWord;
+  }
+
+  public void writeChannelBus(int word, int mask)
+  {
+    dskyWord = (dskyWord & ~mask) | (word & mask);
+  }
+
+  public void setChannelBusOutput(boolean output)
+  {
+    this.output = output;
+  }
+
+  public void pulseKbStr(int duration)
+  {
+    kbStrPulses.incrementAndGet();
+    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(duration));
+  }
+
+  /**
+   * Method to wait for the script to finish the strobes it was asked for.
+   *
+   * @param timeout How long to wait in milliseconds.
+   * @return Whether or not the strobes were all driven.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public boolean waitForStrobes(long timeout) throws InterruptedException
+  {
+    Thread thread = agc;
+    if (thread != null)
+    {
+      thread.join(timeout);
+    }
+    return strobes > 0 && strobesDriven.get() >= strobes;
+  }
+
+  /**
+   * Method to get the strobes a second actually driven.
+   *
+   * @return The rate reached.
+   */
+  public double getRateReached()
+  {
+    long time = runTime;
+    return time == 0 ? 0 : strobesDriven.get() * 1e9 / time;
+  }
+
+  /**
+   * Method to get a one line summary of the strobes driven.
+   *
+   * @return The statistics.
+   */
+  public String getStatistics()
+  {
+    return "Simulated AGC: strobes = " + strobesDriven.get() + " in " + TimeUnit.NANOSECONDS.toMillis(runTime) +
+           " ms, " + Math.round(getRateReached()) + " strobes/s, KB_STR pulses = " + kbStrPulses.get();
+  }
+
+  /**
+   * Internal method used to play the script until the strobes are driven or the backend is closed.
+   */
+  private void play()
+  {
+    long period = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    long start = System.nanoTime();
+    int step = 0;
+    for (long count = 0; (strobes == 0 || count < strobes) && agc == Thread.currentThread(); count++)
+    {
+      // Keep to the schedule from the start, so a late strobe is not followed by a late one.
+      long wait = start + count * period - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos(wait);
+      }
+
+      strobe(stepLines[step], stepWords[step]);
+      strobesDriven.incrementAndGet();
+      runTime = System.nanoTime() - start;
+      step = (step + 1) % stepLines.length;
+    }
+  }
+
+  /**
+   * Internal method used to put a word on the bus and strobe a line low and back high.
+   *
+   * @param line The line.
+   * @param word The bus word.
+   */
+  private void strobe(Line line, int word)
+  {
+    agcWord = word;
+    Listener lineListener = listener;
+    levels[line.ordinal()] = false;
+    if (lineListener != null)
+    {
+      lineListener.lineChanged(line, System.nanoTime(), false);
+    }
+    levels[line.ordinal()] = true;
+    if (lineListener != null)
+    {
+      lineListener.lineChanged(line, System.nanoTime(), true);
+    }
+  }
+
+  /**
+   * Used to fill a fake display with 8s from the simulated AGC at a rate the pipeline should keep
+   * up with, then step the rate up, a second at each, until edges are lost or the rate can't be
+   * reached, to find the rate it sustains.  The pipeline is warmed up first, so the classes are
+   * loaded and the handler compiled before anything is checked or measured.
+   *
+   * @param args The protocol version the fakes speak.
+   * @throws InterruptedException Interrupted while waiting.
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    int version = args.length > 0 ? Integer.parseInt(args[0]) : SerialProtocol.VERSION_BINARY;
+    FakeArduino display = FakeArduino.connect(version, 2000, 115200, PortDiscovery.INDICATORS, PortDiscovery.DISPLAY)[1];
+    SerialInterface serialInterface = SerialInterface.getInstance();
+
+    // Warm up, then blank the display again for the check.
+    SimulatedGpioBackend warmUpAgc = new SimulatedGpioBackend(null, 5000, 5000);
+    AGCInterface agcInterface = new AGCInterface(warmUpAgc);
+    agcInterface.init();
+    warmUpAgc.waitForStrobes(5000);
+    TimeUnit.MILLISECONDS.sleep(200);
+    agcInterface.closeInterface();
+    DisplayInterface.getInstance().resetDisplay();
+    TimeUnit.MILLISECONDS.sleep(200);
+    boolean passed = display.getRelayWord(1) == 0;
+
+    EdgeDispatcher edgeDispatcher = EdgeDispatcher.getInstance();
+    long overflowsBefore = edgeDispatcher.getOverflows();
+    SimulatedGpioBackend pacedAgc = new SimulatedGpioBackend(null, 5000, 5000);
+    agcInterface = new AGCInterface(pacedAgc);
+    passed &= agcInterface.init() && pacedAgc.waitForStrobes(5000);
+    TimeUnit.MILLISECONDS.sleep(500);
+    agcInterface.closeInterface();
+    passed &= edgeDispatcher.getOverflows() == overflowsBefore && pacedAgc.getRateReached() > 4500;
+    for (int relayWord = 1; relayWord <= 11; relayWord++)
+    {
+      passed &= display.getRelayWord(relayWord) == ((relayWord << 11) | 0x3BD);
+    }
+    System.out.println("Hardware mode: " + Math.round(pacedAgc.getRateReached()) + " strobes/s, " +
+                       DskyModel.getInstance().getSnapshot().getRegister(1) + " in R1, " +
+                       (passed ? "PASS" : "FAIL"));
+
+    int sustainedRate = 0;
+    for (int rate = 10000; rate <= 640000; rate *= 2)
+    {
+      overflowsBefore = edgeDispatcher.getOverflows();
+      SimulatedGpioBackend loadAgc = new SimulatedGpioBackend(null, rate, rate);
+      agcInterface = new AGCInterface(loadAgc);
+      agcInterface.init();
+      loadAgc.waitForStrobes(10000);
+      TimeUnit.MILLISECONDS.sleep(200);
+      agcInterface.closeInterface();
+      long edgesLost = edgeDispatcher.getOverflows() - overflowsBefore;
+      System.out.println("  " + rate + " strobes/s asked, " + Math.round(loadAgc.getRateReached()) + " driven, " +
+                         edgesLost + " edges lost");
+      if (edgesLost > 0 || loadAgc.getRateReached() < rate * 0.9)
+      {
+        break;
+      }
+      sustainedRate = rate;
+    }
+    System.out.println("Hardware mode sustains " + sustainedRate + " strobes/s");
+    System.out.println(edgeDispatcher.getStatistics());
+    serialInterface.closeInterface();
+  }
+}
@@ -7,93 +7,213 @@
   or any later version. This software is distributed without any warranty
   expressed or implied. See the GNU General Public License for more details.
 
-  Purpose:	This class encapsulates the socket connection.
+  Purpose:	This class encapsulates the socket connection.  The connection is a non-blocking socket
+            channel.  Reads wait on a selector with a timeout, so the reading thread can notice it is being
+            stopped, and go into one direct buffer that is handed straight to the packet framer.  Packets
+            are sent from another direct buffer, waiting on a second selector with a timeout when the
+            socket's send buffer is full.  Nagle's algorithm is turned off so each key press goes out
+            at once.  The simulator's host and port come from the settings.  Reconnecting is left to
+            the caller; a failed open leaves the client closed and ready to try again.
 
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Read into the caller's buffer.
+            10/16/26  Use a socket channel with direct buffers and a read timeout.
+            10/16/26  Report a failed open to the caller so it can retry.
+            10/16/26  Log through the asynchronous log.
+            10/16/26  Wait for room to send instead of spinning, and close safely from two threads.
 */
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 public class SocketClient
 {
-  private OutputStream out = null;
-  private InputStream in = null;
-  private Socket socket = null;
+  private static final String DEFAULT_HOST = "127.0.0.1";
+  private static final int DEFAULT_PORT = 19697;
+
+  private static final int READ_BUFFER_SIZE = 4096;
+  private static final int SOCKET_BUFFER_SIZE = 16384;
+  private static final int PACKET_SIZE = 4;
+  private static final int CONNECT_TIMEOUT = 2000;
+
+  // The longest a packet waits for room in the socket's send buffer (ms).
+  private static final int SEND_TIMEOUT = 1000;
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+  private volatile SocketChannel channel = null;
+  private volatile Selector selector = null;
+  private volatile Selector writeSelector = null;
 
   /**
    * Open the socket connection to the simulator.
+   *
+   * @throws IOException The simulator could not be reached.
    */
-  public void openInterface()
+  public void openInterface() throws IOException
   {
+    Settings settings = Settings.getInstance();
+    String host = settings.getString(Settings.SIM_HOST, DEFAULT_HOST);
+    int port = settings.getInt(Settings.SIM_PORT, DEFAULT_PORT);
     try
     {
-      socket = new Socket( "127.0.0.1", 19697 );
-      if (!socket.isConnected())
-      {
-        System.out.println("Connection failed to open.");
-      }
-
-      out = new DataOutputStream(socket.getOutputStream());
-      in = new DataInputStream(socket.getInputStream());
+      SocketChannel socketChannel = SocketChannel.open();
+      channel = socketChannel;
+      socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+      socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+      socketChannel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+      socketChannel.configureBlocking(false);
+      Selector readSelector = Selector.open();
+      selector = readSelector;
+      socketChannel.register(readSelector, SelectionKey.OP_READ);
+      Selector sendSelector = Selector.open();
+      writeSelector = sendSelector;
+      socketChannel.register(sendSelector, SelectionKey.OP_WRITE);
+      readBuffer.clear();
     }
     catch (IOException e)
     {
-      e.printStackTrace();
+      closeInterfaces();
+      throw new IOException(host + ":" + port + ": " + e.getMessage(), e);
     }
   }
 
   /**
-   * Send an array of bytes over the socket.
+   * Method to determine if the connection is open.
+   *
+   * @return Whether or not the socket is connected.
+   */
+  public boolean isConnected()
+  {
+    SocketChannel socketChannel = channel;
+    return socketChannel != null && socketChannel.isConnected();
+  }
+
+  /**
+   * Send a packet over the socket.
    *
-   * @param data The data to send.
+   * @param channelNumber The AGC channel.
+   * @param value The 15 bits of channel data.
+   * @return Whether or not the packet was sent.
    */
-  public void sendData(byte[] data)
+  public synchronized boolean sendPacket(int channelNumber, int value)
   {
+    SocketChannel socketChannel = channel;
+    Selector sendSelector = writeSelector;
+    if (socketChannel == null || sendSelector == null)
+    {
+      return false;
+    }
+
+    sendBuffer.clear();
+    PacketFramer.encode(channelNumber, value, sendBuffer);
+    sendBuffer.flip();
     try
     {
-      out.write(data);
+      socketChannel.write(sendBuffer);
+      while (sendBuffer.hasRemaining())
+      {
+        // The send buffer is full; wait for the simulator to take some of it rather than spin.
+        if (sendSelector.select(SEND_TIMEOUT) == 0)
+        {
+          Log.warn("Timed out sending to the simulator.");
+          return false;
+        }
+        sendSelector.selectedKeys().clear();
+        socketChannel.write(sendBuffer);
+      }
+      return true;
+    }
+    catch (ClosedSelectorException e)
+    {
+      // Closed while waiting.
+      return false;
     }
     catch (IOException e)
     {
-      e.printStackTrace();
+      Log.warn("Unable to send to the simulator: %s", e.getMessage());
+      return false;
     }
   }
 
   /**
-   * Receive data from the socket.
+   * Receive data from the socket and hand it to the framer.
    *
-   * @return The array of bytes read from the socket.
+   * @param framer The framer that decodes the data.
+   * @param timeout The longest to wait for data (ms).
+   * @return The number of packets decoded, 0 if none arrived in time, -1 if the socket is closed.
    */
-  public byte[] receiveData()
+  public int receiveData(PacketFramer framer, long timeout)
   {
+    SocketChannel socketChannel = channel;
+    Selector readSelector = selector;
+    if (socketChannel == null || readSelector == null)
+    {
+      return -1;
+    }
+
     try
     {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      byte[] buffer = new byte[1024];
-      baos.write(buffer, 0 , in.read(buffer));
-      return baos.toByteArray();
+      if (readSelector.select(timeout) == 0)
+      {
+        return 0;
+      }
+      readSelector.selectedKeys().clear();
+
+      if (socketChannel.read(readBuffer) < 0)
+      {
+        return -1;
+      }
+      readBuffer.flip();
+      int packets = framer.decode(readBuffer);
+      readBuffer.clear();
+      return packets;
     }
-    catch (IOException e)
+    catch (IOException | ClosedSelectorException e)
     {
-      return null;
+      // Closed while waiting.
+      return -1;
     }
   }
 
   /**
-   * Close the socket connection.
+   * Close the socket connection.  Both the reading thread and the thread stopping the interface
+   * may call this.
    */
   public void closeInterfaces()
   {
+    // Take the fields first, so a close on another thread can't clear them under us.
+    Selector readSelector = selector;
+    Selector sendSelector = writeSelector;
+    SocketChannel socketChannel = channel;
+    selector = null;
+    writeSelector = null;
+    channel = null;
     try
     {
-      // Close our streams
-      in.close();
-      out.close();
-      socket.close();
+      if (readSelector != null)
+      {
+        readSelector.close();
+      }
+      if (sendSelector != null)
+      {
+        sendSelector.close();
+      }
+      if (socketChannel != null)
+      {
+        socketChannel.close();
+      }
     }
     catch (IOException e)
     {
-      e.printStackTrace();
+      Log.error(e, "Unable to close the simulator connection.");
     }
   }
-}
\ No newline at end of file
+}
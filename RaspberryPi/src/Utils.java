@@ -10,29 +10,58 @@
   Purpose:	This class is a utility class that contains common methods.
 
   Mods:		  07/15/22  Initial Release.
+            10/16/26  Lock free bit updates of int registers replace the bitset conversion.
 */
 import java.math.BigInteger;
-import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Utils
 {
   /**
-   * Method to convert a bitset to an integer value.
+   * Method to set or clear the masked bits of a register.  The update is retried if another
+   * thread changed the register in between, so concurrent updates never lose bits.
    *
-   * @param bitSet The bitset to convert.
-   * @return The integer value.
+   * @param register The register.
+   * @param mask The bits to update.
+   * @param value Whether to set or clear the bits.
+   * @return The new value of the register.
    */
-  public static int toInt(BitSet bitSet)
+  public static int setBits(AtomicInteger register, int mask, boolean value)
   {
-    int intValue = 0;
-    for (int bit = 0; bit < bitSet.length(); bit++)
+    int oldValue;
+    int newValue;
+    do
     {
-      if (bitSet.get(bit))
-      {
-        intValue |= (1 << bit);
-      }
+      oldValue = register.get();
+      newValue = value ? oldValue | mask : oldValue & ~mask;
     }
-    return intValue;
+    while (oldValue != newValue && !register.compareAndSet(oldValue, newValue));
+    return newValue;
+  }
+
+  /**
+   * Method to set or clear one bit of a register.
+   *
+   * @param register The register.
+   * @param bit The bit, starting at zero.
+   * @param value Whether to set or clear the bit.
+   * @return The new value of the register.
+   */
+  public static int setBit(AtomicInteger register, int bit, boolean value)
+  {
+    return setBits(register, 1 << bit, value);
+  }
+
+  /**
+   * Method to test one bit of a register value.
+   *
+   * @param value The register value.
+   * @param bit The bit, starting at zero.
+   * @return Whether or not the bit is set.
+   */
+  public static boolean getBit(int value, int bit)
+  {
+    return (value & (1 << bit)) != 0;
   }
 
   // TODO: temp for debug purposes <-- REMOVE